@@ -0,0 +1,529 @@
+package com.test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Provides asynchronous access to Content storage.
+ *
+ * Requests are queued in the channel and served in batches by the I/O executor.
+ * A run of reads (or writes) from the batch takes single file lock
+ * with enclosed transaction. Adjacent reads are coalesced to single
+ * scattering read, and reads are served in order of the physical offset
+ * in the host file. Writes are served in the same order if they do not
+ * overlap, else in the order of submission.
+ *
+ * Only one executor task per channel is active at once, so the channel
+ * does not need a thread per request.
+ *
+ * @see FATFileChannel
+ * @see java.nio.channels.AsynchronousFileChannel
+ */
+public class FATAsyncFileChannel implements Closeable {
+    private final FATFile fatFile;
+    private final FATFileChannel channel;
+    private final ExecutorService executor;
+
+    // guarded by [queueLock]
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private ArrayList<Request> pending = new ArrayList<>();
+    private boolean drainScheduled = false;
+    private boolean closed = false;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Returns the asynchronous channel to work with file content
+     *
+     * @param file the FAT file for read-write operations
+     * @param executor the executor that serves the requests
+     */
+    FATAsyncFileChannel(FATFile file, ExecutorService executor) {
+        fatFile = file;
+        channel = new FATFileChannel(file, false);
+        this.executor = executor;
+    }
+
+    /**
+     * Reads a sequence of bytes from this channel into the given buffer,
+     * starting at the given file position.
+     *
+     * @param dst the buffer into which bytes are to be transferred
+     * @param position the file position at which the transfer is to begin;
+     *                 must be non-negative
+     * @return the future with the number of bytes read or <tt>-1</tt> if the
+     *         given position is greater than or equal to the file's size
+     */
+    public Future<Integer> read(ByteBuffer dst, long position) {
+        return submit(new Request(false, dst, position, null, null));
+    }
+
+    /**
+     * Reads a sequence of bytes from this channel into the given buffer,
+     * starting at the given file position.
+     *
+     * @param dst the buffer into which bytes are to be transferred
+     * @param position the file position at which the transfer is to begin;
+     *                 must be non-negative
+     * @param attachment the object to attach to the I/O operation; can be <tt>null</tt>
+     * @param handler the handler for consuming the result
+     */
+    public <A> void read(ByteBuffer dst, long position, A attachment,
+                         CompletionHandler<Integer, ? super A> handler) {
+        if (handler == null)
+            throw new NullPointerException("handler");
+        submit(new Request(false, dst, position, attachment, handler));
+    }
+
+    /**
+     * Writes a sequence of bytes to this channel from the given buffer,
+     * starting at the given file position. The file is grown, if necessary,
+     * to accommodate the written bytes.
+     *
+     * @param src the buffer from which bytes are to be transferred
+     * @param position the file position at which the transfer is to begin;
+     *                 must be non-negative
+     * @return the future with the number of bytes written
+     */
+    public Future<Integer> write(ByteBuffer src, long position) {
+        return submit(new Request(true, src, position, null, null));
+    }
+
+    /**
+     * Writes a sequence of bytes to this channel from the given buffer,
+     * starting at the given file position. The file is grown, if necessary,
+     * to accommodate the written bytes.
+     *
+     * @param src the buffer from which bytes are to be transferred
+     * @param position the file position at which the transfer is to begin;
+     *                 must be non-negative
+     * @param attachment the object to attach to the I/O operation; can be <tt>null</tt>
+     * @param handler the handler for consuming the result
+     */
+    public <A> void write(ByteBuffer src, long position, A attachment,
+                          CompletionHandler<Integer, ? super A> handler) {
+        if (handler == null)
+            throw new NullPointerException("handler");
+        submit(new Request(true, src, position, attachment, handler));
+    }
+
+    /**
+     * Returns the current size of this channel's file.
+     *
+     * @return The current size of this channel's file, measured in bytes
+     * @throws java.io.IOException If some other I/O error occurs
+     */
+    public long size() throws IOException {
+        return fatFile.length();
+    }
+
+    /**
+     * Forces any updates to this channel's file to be written to the storage
+     * device that contains it.
+     *
+     * @param metaData If <tt>true</tt> then this method is required to force changes
+     *                 to both the file's content and metadata to be written to
+     *                 storage; otherwise, it need only force content changes to be
+     *                 written
+     * @throws java.io.IOException If some other I/O error occurs
+     * @see FATFileChannel#force(boolean)
+     */
+    public void force(boolean metaData) throws IOException {
+        channel.force(metaData);
+    }
+
+    public boolean isOpen() {
+        queueLock.lock();
+        try {
+            return !closed;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Closes this channel.
+     *
+     * Requests that were not started yet fail with
+     * the {@link AsynchronousCloseException} exception.
+     */
+    @Override
+    public void close() {
+        ArrayList<Request> dropped;
+        queueLock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            dropped = pending;
+            pending = new ArrayList<>();
+        } finally {
+            queueLock.unlock();
+        }
+        for (Request request : dropped) {
+            request.setFailure(new AsynchronousCloseException());
+            request.finish(fs());
+        }
+    }
+
+    private Future<Integer> submit(Request request) {
+        if (request.position < 0)
+            throw new IllegalArgumentException("Negative position");
+        boolean schedule = false;
+        boolean rejected = false;
+        queueLock.lock();
+        try {
+            if (closed) {
+                rejected = true;
+            } else {
+                pending.add(request);
+                if (!drainScheduled) {
+                    drainScheduled = true;
+                    schedule = true;
+                }
+            }
+        } finally {
+            queueLock.unlock();
+        }
+        if (rejected) {
+            request.setFailure(new AsynchronousCloseException());
+            request.finish(fs());
+        } else if (schedule) {
+            try {
+                executor.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                ArrayList<Request> dropped;
+                queueLock.lock();
+                try {
+                    drainScheduled = false;
+                    dropped = pending;
+                    pending = new ArrayList<>();
+                } finally {
+                    queueLock.unlock();
+                }
+                for (Request pendingRequest : dropped) {
+                    pendingRequest.setFailure(e);
+                    pendingRequest.finish(fs());
+                }
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Serves the queue till it is empty. Runs in the I/O executor.
+     */
+    private void drain() {
+        while (true) {
+            ArrayList<Request> batch;
+            queueLock.lock();
+            try {
+                if (pending.isEmpty()) {
+                    drainScheduled = false;
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            } finally {
+                queueLock.unlock();
+            }
+
+            // split the batch to runs of the same kind: keep read-write order
+            int start = 0;
+            while (start < batch.size()) {
+                boolean write = batch.get(start).write;
+                int end = start + 1;
+                while (end < batch.size() && batch.get(end).write == write)
+                    ++end;
+                List<Request> run = batch.subList(start, end);
+                if (write)
+                    serveWrites(run);
+                else
+                    serveReads(run);
+                for (Request request : run)
+                    request.finish(fs());
+                start = end;
+            }
+        }
+    }
+
+    private void serveReads(List<Request> reads) {
+        FATLock lock;
+        try {
+            lock = fatFile.tryLockThrowInternal(false);
+        } catch (Throwable e) {
+            for (Request request : reads)
+                request.setFailure(e);
+            return;
+        }
+        try {
+            long length = fatFile.length();
+            // coalesce adjacent reads
+            Collections.sort(reads, BY_POSITION);
+            ArrayList<Request[]> groups = new ArrayList<>();
+            int start = 0;
+            while (start < reads.size()) {
+                Request first = reads.get(start);
+                int end = start + 1;
+                if (first.position < length && first.buffer.hasRemaining()) {
+                    long next = first.position + first.buffer.remaining();
+                    while (end < reads.size() && reads.get(end).position == next
+                            && next < length && reads.get(end).buffer.hasRemaining()) {
+                        next += reads.get(end).buffer.remaining();
+                        ++end;
+                    }
+                    first.hostPosition = fs().getHostPosition(fatFile, first.position);
+                }
+                groups.add(reads.subList(start, end).toArray(new Request[end - start]));
+                start = end;
+            }
+            // physical order
+            Collections.sort(groups, GROUP_BY_HOST_POSITION);
+            for (Request[] group : groups)
+                serveReadGroup(group);
+        } catch (Throwable e) {
+            for (Request request : reads) {
+                if (!request.hasResult())
+                    request.setFailure(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void serveReadGroup(Request[] group) {
+        try {
+            if (group.length == 1) {
+                group[0].setResult(channel.ts_rl_read(group[0].buffer, group[0].position));
+                return;
+            }
+            ByteBuffer[] dsts = new ByteBuffer[group.length];
+            for (int i = 0; i < group.length; ++i) {
+                dsts[i] = group[i].buffer;
+                group[i].startOfBuffer = dsts[i].position();
+            }
+            long wasRead = channel.ts_rl_read(dsts, 0, dsts.length, group[0].position);
+            for (Request request : group) {
+                request.setResult((wasRead < 0)
+                        ? -1
+                        : request.buffer.position() - request.startOfBuffer);
+            }
+        } catch (Throwable e) {
+            for (Request request : group)
+                request.setFailure(e);
+        }
+    }
+
+    private void serveWrites(List<Request> writes) {
+        FATLock lock;
+        try {
+            lock = fatFile.tryLockThrowInternal(true);
+        } catch (Throwable e) {
+            for (Request request : writes)
+                request.setFailure(e);
+            return;
+        }
+        try {
+            long oldLength = fatFile.length();
+            long finalPos = oldLength;
+            for (Request request : writes)
+                finalPos = Math.max(finalPos, request.position + request.buffer.remaining());
+
+            // grow the file once for the run
+            boolean reserved = false;
+            try {
+                if (finalPos > oldLength)
+                    fatFile.setLengthInternal(finalPos);
+                reserved = true;
+            } catch (IOException e) {
+                // serve one by one: the lucky ones fit
+            }
+
+            if (reserved && !isOverlapped(writes)) {
+                // physical order
+                for (Request request : writes) {
+                    if (request.buffer.hasRemaining())
+                        request.hostPosition = fs().getHostPosition(fatFile, request.position);
+                }
+                Collections.sort(writes, BY_HOST_POSITION);
+            }
+
+            long committedPos = oldLength;
+            for (Request request : writes) {
+                try {
+                    long end = request.position + request.buffer.remaining();
+                    request.setResult((int)channel.ts_wl_write(request.buffer, null, 0, 0, request.position));
+                    committedPos = Math.max(committedPos, end);
+                } catch (Throwable e) {
+                    request.setFailure(e);
+                }
+            }
+
+            // rollback the reservation of failed writes
+            if (fatFile.length() > committedPos)
+                fatFile.setLengthInternal(committedPos);
+        } catch (Throwable e) {
+            for (Request request : writes) {
+                if (!request.hasResult())
+                    request.setFailure(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tests the write run for the overlapped regions.
+     */
+    private static boolean isOverlapped(List<Request> writes) {
+        ArrayList<Request> sorted = new ArrayList<>(writes);
+        Collections.sort(sorted, BY_POSITION);
+        long end = -1;
+        for (Request request : sorted) {
+            if (request.position < end)
+                return true;
+            end = request.position + request.buffer.remaining();
+        }
+        return false;
+    }
+
+    private FATFileSystem fs() {
+        return fatFile.fs;
+    }
+
+    private static final Comparator<Request> BY_POSITION = new Comparator<Request>() {
+        @Override public int compare(Request r1, Request r2) {
+            return Long.compare(r1.position, r2.position);
+        }
+    };
+
+    private static final Comparator<Request> BY_HOST_POSITION = new Comparator<Request>() {
+        @Override public int compare(Request r1, Request r2) {
+            return Long.compare(r1.hostPosition, r2.hostPosition);
+        }
+    };
+
+    private static final Comparator<Request[]> GROUP_BY_HOST_POSITION = new Comparator<Request[]>() {
+        @Override public int compare(Request[] g1, Request[] g2) {
+            return Long.compare(g1[0].hostPosition, g2[0].hostPosition);
+        }
+    };
+
+    /**
+     * Pending I/O operation.
+     *
+     * The result is set under the file lock and is published by
+     * the [finish] call out of the lock.
+     */
+    private static class Request implements Future<Integer> {
+        final boolean write;
+        final ByteBuffer buffer;
+        final long position;
+        private final Object attachment;
+        private final CompletionHandler<Integer, Object> handler;
+
+        // the sort key, unresolved requests go last
+        long hostPosition = Long.MAX_VALUE;
+        int startOfBuffer;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean hasResult = false;
+        private int result;
+        private Throwable failure;
+
+        @SuppressWarnings("unchecked")
+        Request(boolean write, ByteBuffer buffer, long position,
+                Object attachment, CompletionHandler<Integer, ?> handler) {
+            this.write = write;
+            this.buffer = buffer;
+            this.position = position;
+            this.attachment = attachment;
+            this.handler = (CompletionHandler<Integer, Object>) handler;
+        }
+
+        void setResult(int result) {
+            this.result = result;
+            hasResult = true;
+        }
+
+        void setFailure(Throwable failure) {
+            this.failure = failure;
+            hasResult = true;
+        }
+
+        boolean hasResult() {
+            return hasResult;
+        }
+
+        /**
+         * @param fs the file system for the error log
+         */
+        void finish(FATFileSystem fs) {
+            done.countDown();
+            if (handler == null)
+                return;
+            try {
+                if (failure != null)
+                    handler.failed(failure, attachment);
+                else
+                    handler.completed(result, attachment);
+            } catch (Throwable e) {
+                fs.ts_logError("Exception in completion handler: " + e);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Integer get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResult();
+        }
+
+        @Override
+        public Integer get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit))
+                throw new TimeoutException();
+            return getResult();
+        }
+
+        private Integer getResult() throws ExecutionException {
+            if (failure != null)
+                throw new ExecutionException(failure);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.test;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of direct buffers for internal I/O.
+ *
+ * Buffers are size-classed by power of two, from [MIN_CLASS_SIZE]
+ * to [MAX_CLASS_SIZE], and page-aligned in native memory.
+ * Bigger requests are allocated without the pool.
+ *
+ * A buffer that was not released is just collected by GC,
+ * so the release is a hint on the hot path, not an obligation.
+ * The released buffer must not be used by the caller anymore.
+ */
+class FATBufferPool {
+    final static int PAGE_SIZE = 4096;
+    final static int MIN_CLASS_SHIFT = 8;  //256 bytes: FATFile.RECORD_SIZE
+    final static int MAX_CLASS_SHIFT = 20; //1M
+    final static int MIN_CLASS_SIZE = 1 << MIN_CLASS_SHIFT;
+    final static int MAX_CLASS_SIZE = 1 << MAX_CLASS_SHIFT;
+    // max number of free buffers kept in each class
+    final static int CLASS_CAPACITY = 16;
+
+    // Java 9+ way to get the native address alignment
+    private final static Method ALIGNMENT_OFFSET = getAlignmentOffsetMethod();
+
+    private final ReentrantLock[] locks;
+    private final ArrayDeque<ByteBuffer>[] classes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    FATBufferPool() {
+        int classCount = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+        locks = new ReentrantLock[classCount];
+        classes = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[classCount];
+        for (int i = 0; i < classCount; ++i) {
+            locks[i] = new ReentrantLock();
+            classes[i] = new ArrayDeque<>(CLASS_CAPACITY);
+        }
+    }
+
+    /**
+     * Gets the buffer from pool or allocates new one.
+     *
+     * @param capacity requested size in bytes
+     * @return the cleared buffer with [capacity] limit, the byte order is not defined
+     */
+    ByteBuffer allocate(int capacity) {
+        int index = getClassIndex(capacity);
+        if (index < 0) {
+            missCount.incrementAndGet();
+            return allocateAligned(capacity);
+        }
+        ByteBuffer ret;
+        ReentrantLock lock = locks[index];
+        lock.lock();
+        try {
+            ret = classes[index].pollFirst();
+        } finally {
+            lock.unlock();
+        }
+        if (ret == null) {
+            missCount.incrementAndGet();
+            ret = allocateAligned(1 << (index + MIN_CLASS_SHIFT));
+        } else {
+            hitCount.incrementAndGet();
+        }
+        ret.clear();
+        ret.limit(capacity);
+        return ret;
+    }
+
+    /**
+     * Returns the buffer to pool.
+     *
+     * @param bf the buffer from [allocate] call, could be [null]
+     */
+    void release(ByteBuffer bf) {
+        if (bf == null || !bf.isDirect())
+            return;
+        int index = getClassIndex(bf.capacity());
+        if (index < 0 || bf.capacity() != (1 << (index + MIN_CLASS_SHIFT)))
+            return;
+        ReentrantLock lock = locks[index];
+        lock.lock();
+        try {
+            if (classes[index].size() < CLASS_CAPACITY)
+                classes[index].addFirst(bf);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the class index for the [capacity] or [-1] for no class
+     */
+    private static int getClassIndex(int capacity) {
+        if (capacity > MAX_CLASS_SIZE)
+            return -1;
+        if (capacity <= MIN_CLASS_SIZE)
+            return 0;
+        // ceil(log2(capacity))
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * Allocates the direct buffer that starts on the page boundary.
+     */
+    static ByteBuffer allocateAligned(int capacity) {
+        ByteBuffer raw = ByteBuffer.allocateDirect(capacity + PAGE_SIZE);
+        int misalignment = getAlignmentOffset(raw);
+        if (misalignment < 0)
+            return raw; //unknown address, keep it as is
+        int shift = (PAGE_SIZE - misalignment) & (PAGE_SIZE - 1);
+        raw.position(shift).limit(shift + capacity);
+        // the slice holds the [raw] memory till GC
+        return raw.slice();
+    }
+
+    /**
+     * @return the native address of the buffer modulo [PAGE_SIZE],
+     *         or [-1] if unknown
+     */
+    static int getAlignmentOffset(ByteBuffer direct) {
+        try {
+            if (ALIGNMENT_OFFSET != null)
+                return (Integer) ALIGNMENT_OFFSET.invoke(direct, 0, PAGE_SIZE);
+            return (int) (FATSystem.getAddress(direct) & (PAGE_SIZE - 1));
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static Method getAlignmentOffsetMethod() {
+        try {
+            return ByteBuffer.class.getMethod("alignmentOffset", int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            // Java 7/8 runtime
+            return null;
+        }
+    }
+}
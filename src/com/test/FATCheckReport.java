@@ -0,0 +1,135 @@
+package com.test;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of the storage check, see [FATFileSystem.check].
+ */
+public class FATCheckReport {
+    private final long folderCount;
+    private final long fileCount;
+    private final long usedClusterCount;
+    private final long freeClusterCount;
+    private final long orphanClusterCount;
+    private final long crossLinkCount;
+    private final long damagedChainCount;
+    private final int fixedRecordCount;
+    private final boolean repaired;
+    private final int parallelism;
+    private final long elapsedTime;
+    private final List<String> problems;
+
+    FATCheckReport(long folderCount, long fileCount, long usedClusterCount,
+                   long freeClusterCount, long orphanClusterCount, long crossLinkCount,
+                   long damagedChainCount, int fixedRecordCount, boolean repaired,
+                   int parallelism, long elapsedTime, List<String> problems) {
+        this.folderCount = folderCount;
+        this.fileCount = fileCount;
+        this.usedClusterCount = usedClusterCount;
+        this.freeClusterCount = freeClusterCount;
+        this.orphanClusterCount = orphanClusterCount;
+        this.crossLinkCount = crossLinkCount;
+        this.damagedChainCount = damagedChainCount;
+        this.fixedRecordCount = fixedRecordCount;
+        this.repaired = repaired;
+        this.parallelism = parallelism;
+        this.elapsedTime = elapsedTime;
+        this.problems = Collections.unmodifiableList(problems);
+    }
+
+    /**
+     * @return [true] if no problem was found
+     */
+    public boolean isClean() {
+        return problems.isEmpty();
+    }
+
+    /**
+     * @return [true] if the found problems were fixed
+     */
+    public boolean isRepaired() {
+        return repaired;
+    }
+
+    public long getFolderCount() {
+        return folderCount;
+    }
+
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return the number of clusters in valid chains before the repair
+     */
+    public long getUsedClusterCount() {
+        return usedClusterCount;
+    }
+
+    /**
+     * @return the number of free clusters, after the repair if any
+     */
+    public long getFreeClusterCount() {
+        return freeClusterCount;
+    }
+
+    /**
+     * @return the number of allocated clusters out of any chain
+     */
+    public long getOrphanClusterCount() {
+        return orphanClusterCount;
+    }
+
+    public long getCrossLinkCount() {
+        return crossLinkCount;
+    }
+
+    /**
+     * @return the number of broken, short and long chains and wrong records
+     */
+    public long getDamagedChainCount() {
+        return damagedChainCount;
+    }
+
+    public int getFixedRecordCount() {
+        return fixedRecordCount;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return the time of the check in milliseconds
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    /**
+     * @return the problem descriptions, the first [FATMaintenance.MAX_PROBLEMS] ones
+     */
+    public List<String> getProblems() {
+        return problems;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("folders=").append(folderCount)
+          .append(" files=").append(fileCount)
+          .append(" used=").append(usedClusterCount)
+          .append(" free=").append(freeClusterCount)
+          .append(" orphans=").append(orphanClusterCount)
+          .append(" crossLinks=").append(crossLinkCount)
+          .append(" damagedChains=").append(damagedChainCount)
+          .append(" fixed=").append(fixedRecordCount)
+          .append(" repaired=").append(repaired)
+          .append(" threads=").append(parallelism)
+          .append(" time=").append(elapsedTime).append("ms");
+        for (String problem : problems)
+            sb.append('\n').append(problem);
+        return sb.toString();
+    }
+}
@@ -18,6 +18,18 @@ interface FATClusterAllocator {
      */
     void initFAT() throws IOException;
 
+    /**
+     * Formats the entries of new clusters and adds them to the free space.
+     *
+     * The entries are out of FAT till the storage takes the new
+     * cluster count, see [FATSystem.grow].
+     *
+     * @param from the index of the first new cluster, the old cluster count
+     * @param to the new cluster count
+     * @throws IOException
+     */
+    void growFAT(int from, int to) throws IOException;
+
     /**
      * Allocates a cluster chain.
      *
@@ -30,6 +42,19 @@ interface FATClusterAllocator {
      */
     int allocateClusters(int tailCluster, int count) throws IOException;
 
+    /**
+     * Allocates the given free clusters as a chain in index order.
+     *
+     * The allocator could refuse the run that takes too long to find
+     * in its structures, nothing is changed then.
+     *
+     * @param first the first cluster of the run
+     * @param count the number of clusters, all of them have to be free
+     * @return [false] if the run was refused
+     * @throws IOException
+     */
+    boolean allocateRun(int first, int count) throws IOException;
+
     /**
      * Frees chain that start from [headOffset] cluster.
      *
@@ -49,4 +74,21 @@ interface FATClusterAllocator {
      * Flush critical data to host system.
      */
     void force() throws IOException;
+
+    /**
+     * Checks the format of FAT entry.
+     *
+     * @param fatEntry the value from FAT
+     * @return [false] if the allocator never writes the value
+     */
+    boolean isValidEntry(int fatEntry);
+
+    /**
+     * Rebuilds the free space: all clusters out of [used] become free.
+     *
+     * @param used the clusters of valid chains
+     * @return the number of free clusters
+     * @throws IOException
+     */
+    int rebuildFreeSpace(FATMaintenance.ClusterMap used) throws IOException;
 }
@@ -0,0 +1,239 @@
+package com.test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Off-heap cache of cluster content in front of the host file.
+ *
+ * The byte budget is split into cluster-sized slots of a few big direct
+ * slabs, so the cached data does not load GC. The slots are found by
+ * an open-addressing [cluster -> slot] table without boxing, the victim
+ * is chosen by the clock: each hit gives the slot a few more rounds,
+ * the priority slots (folders and small files) get more of them.
+ *
+ * The cache is write-through: the host file always has the actual data,
+ * so a slot could be dropped at any time.
+ *
+ * Not thread-safe: uses the position of the slots.
+ * The owner serializes the calls (see [FATSystem.fatLock]).
+ */
+class FATClusterCache {
+    // the files up to the size are cached with priority
+    final static int SMALL_FILE_CLUSTERS = 4;
+    // the reads of more clusters go to the host file directly:
+    // a stream does not wash the hot set out
+    final static int BYPASS_CLUSTERS = 8;
+
+    private final static int MAX_SLAB_SIZE = 1 << 30;
+    private final static int NORMAL_WEIGHT = 1;
+    private final static int PRIORITY_WEIGHT = 3;
+    private final static int NO_CLUSTER = -1;
+
+    private final int clusterSize;
+    private final long budget;
+    private final ByteBuffer[] slots;
+    private final int[] slotCluster;
+    private final byte[] slotWeight;
+    private int hand;
+
+    // open-addressing table, [NO_CLUSTER] marks the empty cell
+    private final int[] tableCluster;
+    private final int[] tableSlot;
+    private final int tableMask;
+    private final int tableShift;
+
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * @param clusterSize the size of cached unit
+     * @param budget the size of native memory for data, at least one cluster
+     */
+    FATClusterCache(int clusterSize, long budget) {
+        long slotCount = budget/clusterSize;
+        if (slotCount < 1 || slotCount > Integer.MAX_VALUE/4)
+            throw new IllegalArgumentException("Bad cache budget:" + budget);
+        this.clusterSize = clusterSize;
+        this.budget = budget;
+        slots = new ByteBuffer[(int) slotCount];
+        slotCluster = new int[slots.length];
+        slotWeight = new byte[slots.length];
+        Arrays.fill(slotCluster, NO_CLUSTER);
+
+        int slotsPerSlab = Math.max(1, MAX_SLAB_SIZE/clusterSize);
+        for (int first = 0; first < slots.length; first += slotsPerSlab) {
+            int count = Math.min(slotsPerSlab, slots.length - first);
+            ByteBuffer slab = ByteBuffer.allocateDirect(count*clusterSize);
+            for (int i = 0; i < count; ++i) {
+                slab.limit((i + 1)*clusterSize).position(i*clusterSize);
+                slots[first + i] = slab.slice();
+            }
+        }
+
+        // load factor is not more than 0.5
+        int tableSize = Integer.highestOneBit(slots.length)*4;
+        tableCluster = new int[tableSize];
+        tableSlot = new int[tableSize];
+        tableMask = tableSize - 1;
+        tableShift = Integer.numberOfLeadingZeros(tableMask);
+        Arrays.fill(tableCluster, NO_CLUSTER);
+    }
+
+    long getBudget() {
+        return budget;
+    }
+
+    long getHitCount() {
+        return hitCount;
+    }
+
+    long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Finds the cached cluster and marks it as used.
+     *
+     * @param cluster the index of the cluster in FAT
+     * @param priority [true] for folder or small file cluster
+     * @return the slot with cluster content or [null]
+     */
+    ByteBuffer get(int cluster, boolean priority) {
+        int slot = find(cluster);
+        if (slot < 0) {
+            ++missCount;
+            return null;
+        }
+        ++hitCount;
+        slotWeight[slot] = (byte) (priority ? PRIORITY_WEIGHT : NORMAL_WEIGHT);
+        return slots[slot];
+    }
+
+    /**
+     * Takes the slot for new cluster, evicts the victim if need.
+     *
+     * The caller have to fill the slot with the cluster content
+     * or [invalidate] the cluster.
+     *
+     * @param cluster the index of the cluster in FAT, not cached
+     * @param priority [true] for folder or small file cluster
+     * @return the cleared slot
+     */
+    ByteBuffer admit(int cluster, boolean priority) {
+        // the clock: the slot with spent weight is the victim
+        while (slotWeight[hand] > 0) {
+            --slotWeight[hand];
+            hand = (hand + 1) % slots.length;
+        }
+        int slot = hand;
+        hand = (hand + 1) % slots.length;
+        if (slotCluster[slot] != NO_CLUSTER)
+            remove(slotCluster[slot]);
+        slotCluster[slot] = cluster;
+        slotWeight[slot] = (byte) (priority ? PRIORITY_WEIGHT : NORMAL_WEIGHT);
+        insert(cluster, slot);
+        ByteBuffer ret = slots[slot];
+        ret.clear();
+        return ret;
+    }
+
+    /**
+     * Updates the cached part of the cluster by the written bytes.
+     *
+     * @param cluster the index of the cluster in FAT
+     * @param offset the offset in cluster
+     * @param src the written bytes, from [position] to [limit],
+     *            the position is not changed
+     */
+    void update(int cluster, int offset, ByteBuffer src) {
+        int slot = find(cluster);
+        if (slot < 0)
+            return;
+        int position = src.position();
+        ByteBuffer bf = slots[slot];
+        bf.clear().position(offset);
+        bf.put(src);
+        src.position(position);
+    }
+
+    /**
+     * Drops the cluster from cache.
+     *
+     * @param cluster the index of the cluster in FAT
+     */
+    void invalidate(int cluster) {
+        int slot = find(cluster);
+        if (slot < 0)
+            return;
+        remove(cluster);
+        slotCluster[slot] = NO_CLUSTER;
+        slotWeight[slot] = 0;
+    }
+
+    /**
+     * Drops the clusters that hold the [Data Section] region.
+     *
+     * @param dataPos the offset in [Data Section]
+     * @param count the size of region in bytes
+     */
+    void invalidate(long dataPos, long count) {
+        if (count <= 0)
+            return;
+        int last = (int) ((dataPos + count - 1)/clusterSize);
+        for (int cluster = (int) (dataPos/clusterSize); cluster <= last; ++cluster)
+            invalidate(cluster);
+    }
+
+    private int find(int cluster) {
+        int i = hash(cluster);
+        while (true) {
+            int c = tableCluster[i];
+            if (c == cluster)
+                return tableSlot[i];
+            if (c == NO_CLUSTER)
+                return -1;
+            i = (i + 1) & tableMask;
+        }
+    }
+
+    private void insert(int cluster, int slot) {
+        int i = hash(cluster);
+        while (tableCluster[i] != NO_CLUSTER)
+            i = (i + 1) & tableMask;
+        tableCluster[i] = cluster;
+        tableSlot[i] = slot;
+    }
+
+    /**
+     * Removes the table entry with backward shift: no tombstones.
+     */
+    private void remove(int cluster) {
+        int i = hash(cluster);
+        while (tableCluster[i] != cluster) {
+            if (tableCluster[i] == NO_CLUSTER)
+                return;
+            i = (i + 1) & tableMask;
+        }
+        int hole = i;
+        while (true) {
+            i = (i + 1) & tableMask;
+            int c = tableCluster[i];
+            if (c == NO_CLUSTER)
+                break;
+            int home = hash(c);
+            // move the entry if its home is not in (hole, i]
+            if (((i - home) & tableMask) >= ((i - hole) & tableMask)) {
+                tableCluster[hole] = c;
+                tableSlot[hole] = tableSlot[i];
+                hole = i;
+            }
+        }
+        tableCluster[hole] = NO_CLUSTER;
+    }
+
+    private int hash(int cluster) {
+        // Fibonacci hashing: sequential clusters spread over the table
+        return (cluster*0x9E3779B9) >>> tableShift;
+    }
+}
@@ -0,0 +1,248 @@
+package com.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Online defragmenter of file chains.
+ *
+ * The folder tree is walked from the root, folder by folder. The file
+ * chain of more than one physically contiguous run is moved: the clusters
+ * after the head are copied to the contiguous run of free clusters
+ * (see [FATSystem.allocateRun]), then the head is linked to the run and
+ * the old clusters become free (see [FATSystem.swapChainTail]).
+ * The head stays in place: that is the file id in the folder record.
+ * The run just after the head makes the whole chain contiguous, so the
+ * chain of two runs is moved to that place only.
+ *
+ * The busy files are skipped, no wait: the file has to be free for
+ * freeze (no move or delete) and for the write lock. The data goes by
+ * steps of [STEP_CLUSTERS] clusters, each step under the file read lock
+ * in its own transaction; the pause after each step keeps the copy under
+ * [rate] bytes per second and goes without locks, so the foreground I/O
+ * waits for one step at most and the storage gets the clean points.
+ * The file changed in the copy is skipped: the head is linked to the run
+ * under the write lock and for the same content version only.
+ *
+ * The views of [FATFileChannel.map] in any mode keep the old clusters:
+ * the storage with views is not defragmented.
+ */
+class FATDefragmenter {
+    // the copy step, the file lock is free between the steps
+    final static int STEP_CLUSTERS = 64;
+
+    private final FATFileSystem fs;
+    private final FATSystem fat;
+    // the copy rate limit in bytes per second, [0] for no limit
+    private final long rate;
+    private volatile boolean stopped;
+
+    private int movedFileCount;
+    private long movedClusterCount;
+    private int skippedFileCount;
+
+    /**
+     * @param fs the file system in action
+     * @param fat the storage of [fs]
+     * @param rate the copy rate limit in bytes per second, [0] for no limit
+     */
+    FATDefragmenter(FATFileSystem fs, FATSystem fat, long rate) {
+        if (rate < 0)
+            throw new IllegalArgumentException("Negative defragmentation rate");
+        this.fs = fs;
+        this.fat = fat;
+        this.rate = rate;
+    }
+
+    /**
+     * Makes the pass over the folder tree.
+     *
+     * @return the number of moved files
+     * @throws IOException if the folder tree could not be walked
+     */
+    int run() throws IOException {
+        if (fat.isMapped())
+            return 0;
+        ArrayDeque<FATFolder> folders = new ArrayDeque<>();
+        folders.add(fs.getRoot());
+        while (!folders.isEmpty() && !stopped) {
+            FATFile[] files;
+            try {
+                files = folders.poll().listFiles();
+            } catch (FATFileLockedException e) {
+                continue;
+            }
+            for (FATFile file : files) {
+                if (stopped)
+                    break;
+                if (file.isFolder()) {
+                    try {
+                        folders.add(file.getFolder());
+                    } catch (FATFileLockedException e) {
+                        // busy
+                    }
+                } else if (move(file)) {
+                    ++movedFileCount;
+                }
+            }
+        }
+        return movedFileCount;
+    }
+
+    /**
+     * Stops the pass after the current step.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    int getMovedFileCount() {
+        return movedFileCount;
+    }
+
+    long getMovedClusterCount() {
+        return movedClusterCount;
+    }
+
+    int getSkippedFileCount() {
+        return skippedFileCount;
+    }
+
+    /**
+     * @return [true] if the file chain was moved
+     */
+    private boolean move(FATFile file) throws IOException {
+        if (!file.tryToFreeze()) {
+            ++skippedFileCount;
+            return false;
+        }
+        try {
+            return moveFrozen(file);
+        } finally {
+            file.unfreeze();
+        }
+    }
+
+    /**
+     * Have to be called for the frozen file.
+     */
+    private boolean moveFrozen(FATFile file) throws IOException {
+        int startCluster;
+        long version;
+        int length;
+        int runCount;
+        FATLock lock = tryLock(file, true);
+        if (lock == null)
+            return false;
+        try {
+            startCluster = file.ts_getFileId();
+            version = file.ts_getContentVersion();
+            length = fat.getChainLength(startCluster);
+            if (length < 2)
+                return false;
+            runCount = fat.getRunCount(startCluster, length);
+            if (runCount == 1)
+                return false;
+        } finally {
+            lock.unlock();
+        }
+        int run = fat.allocateRun(startCluster, length - 1, runCount == 2);
+        if (run < 0)
+            return false;
+        boolean success = false;
+        try {
+            if (!copy(file, startCluster, version, run, length - 1))
+                return false;
+            lock = tryLock(file, true);
+            if (lock == null)
+                return false;
+            try {
+                // a new view could take the old clusters in the copy
+                if (!isSame(file, startCluster, version) || fat.isMapped()) {
+                    ++skippedFileCount;
+                    return false;
+                }
+                fat.swapChainTail(startCluster, run);
+            } finally {
+                lock.unlock();
+            }
+            movedClusterCount += length - 1;
+            success = true;
+        } finally {
+            if (!success)
+                fat.freeClusters(run, true);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the chain after the head to the run.
+     *
+     * @return [false] if the pass was stopped or the file was changed
+     */
+    private boolean copy(FATFile file, int startCluster, long version,
+                         int run, int count) throws IOException {
+        int clusterSize = fat.getClusterSize();
+        ByteBuffer bf = fat.allocateBuffer(STEP_CLUSTERS*clusterSize);
+        try {
+            for (int done = 0; done < count; done += STEP_CLUSTERS) {
+                if (stopped)
+                    return false;
+                long pos = (long)done*clusterSize;
+                bf.clear().limit(Math.min(STEP_CLUSTERS, count - done)*clusterSize);
+                FATLock lock = tryLock(file, false);
+                if (lock == null)
+                    return false;
+                try {
+                    if (!isSame(file, startCluster, version)) {
+                        ++skippedFileCount;
+                        return false;
+                    }
+                    while (bf.hasRemaining()) {
+                        if (fat.readChannel(startCluster, clusterSize + pos + bf.position(), bf, false) <= 0)
+                            throw new IOException("Unexpected end of chain " + startCluster);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                bf.flip();
+                while (bf.hasRemaining())
+                    fat.writeChannel(run, pos + bf.position(), bf);
+                if (rate > 0) {
+                    // PERFORMANCE HINT: the foreground I/O goes in the pause
+                    LockSupport.parkNanos(bf.limit()*1000000000L/rate);
+                }
+            }
+        } finally {
+            fat.releaseBuffer(bf);
+        }
+        return true;
+    }
+
+    /**
+     * Takes the file lock for the step, no wait.
+     *
+     * @return [null] if the file is locked or deleted
+     */
+    private FATLock tryLock(FATFile file, boolean write) throws IOException {
+        try {
+            return file.tryLockThrowInternal(write);
+        } catch (IOException e) {
+            // locked or deleted
+            ++skippedFileCount;
+            return null;
+        }
+    }
+
+    /**
+     * Have to be called under the file lock.
+     *
+     * @return [true] if the chain was not changed after the first look
+     */
+    private boolean isSame(FATFile file, int startCluster, long version) {
+        return file.ts_getFileId() == startCluster
+            && file.ts_getContentVersion() == version;
+    }
+}
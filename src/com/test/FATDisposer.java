@@ -2,76 +2,91 @@ package com.test;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class is used for registering and disposing.
  *
+ * One instance per file system, no service thread: the collected
+ * objects are disposed in batches by the threads that register
+ * new ones (the same way as [java.util.WeakHashMap] expunges
+ * stale entries).
+ *
  * @see FATDisposerRecord
  */
 
-public final class FATDisposer implements Runnable {
-    private static final ReferenceQueue queue = new ReferenceQueue();
-    private static final FATDisposer disposerInstance = new FATDisposer();
-    private static final Set<WeakDisposerRecord> records = new HashSet<>();
+public final class FATDisposer {
+    // max number of records disposed by one [expunge] call
+    static final int EXPUNGE_BATCH = 256;
 
-    static {
-        Thread t = new Thread(disposerInstance, "FATDisposer");
-        t.setDaemon(true);
-        t.setPriority(Thread.MAX_PRIORITY);
-        t.start();
-    }
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    // hard links to the records till the dispose, the set has
+    // an entry for each alive registered object only
+    private final Set<WeakDisposerRecord> records =
+            Collections.newSetFromMap(new ConcurrentHashMap<WeakDisposerRecord, Boolean>());
 
     /**
      * Registers the object and the native data for later disposal.
      *
+     * Disposes a batch of collected objects before the registration.
+     *
      * @param target Object to be registered
      * @param rec the associated FATDisposerRecord object
      * @see FATDisposerRecord
      */
-    public static void addRecord(Object target, FATDisposerRecord rec) {
-        disposerInstance.add(target, rec);
+    public void addRecord(Object target, FATDisposerRecord rec) {
+        expunge();
+        records.add(new WeakDisposerRecord(target, rec, queue));
     }
 
     /**
-     * Performs the actual registration of the target object to be disposed.
+     * Disposes the records of collected objects.
      *
-     * @param target Object to be registered
-     * @param rec the associated FATDisposerRecord object
-     * @see FATDisposerRecord
+     * Thread-safe, could be called concurrently.
+     *
+     * @return the number of disposed records, not more than [EXPUNGE_BATCH]
      */
-    private synchronized void add(Object target, FATDisposerRecord rec) {
-        records.add(new WeakDisposerRecord(target, rec));
-    }
-
-    @Override
-    public void run() {
-        while (true) {
+    public int expunge() {
+        int count = 0;
+        while (count < EXPUNGE_BATCH) {
+            WeakDisposerRecord obj = (WeakDisposerRecord) queue.poll();
+            if (obj == null)
+                break;
+            // the other thread cannot get the same record from the queue
+            records.remove(obj);
+            ++count;
             try {
-                WeakDisposerRecord obj = (WeakDisposerRecord) queue.remove();
-                obj.clear();
                 obj.dispose();
             } catch (Exception e) {
                 System.out.println("Exception while removing reference: " + e);
                 e.printStackTrace();
             }
         }
+        return count;
     }
 
-    public static class WeakDisposerRecord
-        extends WeakReference
-        implements FATDisposerRecord
-    {
-        protected WeakDisposerRecord(Object referent) {
-            //noinspection unchecked
-            super(referent, FATDisposer.queue);
-            this.record = null;
+    /**
+     * Disposes all the records of collected objects.
+     */
+    public void expungeAll() {
+        while (expunge() == EXPUNGE_BATCH) {
+            // next batch
         }
+    }
 
-        private WeakDisposerRecord(Object referent, FATDisposerRecord record) {
-            //noinspection unchecked
-            super(referent, FATDisposer.queue);
+    int size() {
+        return records.size();
+    }
+
+    private static class WeakDisposerRecord
+        extends WeakReference<Object>
+        implements FATDisposerRecord
+    {
+        private WeakDisposerRecord(Object referent, FATDisposerRecord record,
+                                   ReferenceQueue<Object> queue) {
+            super(referent, queue);
             this.record = record;
         }
 
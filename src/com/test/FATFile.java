@@ -2,9 +2,13 @@ package com.test;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryNotEmptyException;
 import java.util.Arrays;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -39,6 +43,9 @@ public class FATFile {
 
     //RW Lock
     private final ReentrantReadWriteLock lockRW = new ReentrantReadWriteLock();
+    // transaction terminators are stateless: no allocation per lock call
+    private final FATLock readFATLock;
+    private final FATLock writeFATLock;
 
     // attributes
     private final int type;
@@ -48,8 +55,19 @@ public class FATFile {
     private long timeCreate;
     private long timeModify;
     private final char[] name = new char[FILE_MAX_NAME];
+    // [name] as String, [null] till the first [getName] call after the change
+    private String nameString;
     private boolean initialized;
-    private boolean isFrozen = false;
+    // [0] or [1]; flipped by CAS, no monitor for the freeze protocol
+    private volatile int isFrozen = 0;
+    private static final AtomicIntegerFieldUpdater<FATFile> FROZEN
+            = AtomicIntegerFieldUpdater.newUpdater(FATFile.class, "isFrozen");
+    // bumped by each content change, guarded by the file lock
+    private long contentVersion;
+    // staged writes of buffered channels, [null] till the first one
+    private volatile FATWriteBehind writeBehind;
+    private static final AtomicReferenceFieldUpdater<FATFile, FATWriteBehind> WRITE_BEHIND
+            = AtomicReferenceFieldUpdater.newUpdater(FATFile.class, FATWriteBehind.class, "writeBehind");
 
     //PERFORMANCE HINT: bad
     //hard link to parent
@@ -91,6 +109,128 @@ public class FATFile {
         return getChannelInternal(appendMode);
     }
 
+    /**
+     * Opens file channel with write-behind buffer.
+     *
+     * The small writes that follow each other are gathered in the buffer
+     * and go to the file by single write on buffer full, on the channel
+     * [force] or [close], by timer, or right before any other access to
+     * the file in the process, so the readers see the written bytes.
+     * The buffer is shared by all buffered channels of the file,
+     * the first channel sets its size. The writes bigger than half of
+     * the buffer go to the file directly.
+     *
+     * PERFORMANCE HINT: the staged write costs neither file lock, nor
+     * transaction, nor length update. The [FATFileLockedException] for
+     * the staged write could come at flush.
+     *
+     * @param appendMode if [true] the [write] call always add the buffer to the file tail
+     * @param writeBufferSize the size of write-behind buffer,
+     *                        [0] means the unbuffered channel
+     * @return the channel for context read/write operations.
+     * @throws IOException
+     */
+    public FATFileChannel getChannel(boolean appendMode, int writeBufferSize) throws IOException {
+        if (isFolder())
+            throw new IOException("That is a folder");
+        if (writeBufferSize < 0)
+            throw new IllegalArgumentException("Negative buffer size");
+        return new FATFileChannel(this, appendMode,
+                (writeBufferSize == 0) ? null : getWriteBehind(writeBufferSize));
+    }
+
+    private FATWriteBehind getWriteBehind(int size) {
+        FATWriteBehind ret = writeBehind;
+        if (ret == null) {
+            WRITE_BEHIND.compareAndSet(this, null, new FATWriteBehind(this, size));
+            ret = writeBehind;
+        }
+        return ret;
+    }
+
+    /**
+     * Writes the staged bytes of buffered channels to the file.
+     *
+     * Have to be called before the file lock: the flush takes the file
+     * lock first and then the staging lock. Skipped by the thread
+     * that holds the read lock only: that thread cannot write and
+     * saw the flushed content at its lock.
+     *
+     * @param wait [false] means throwing [FATFileLockedException] if the file is locked
+     */
+    private void flushWriteBehind(boolean wait) throws IOException {
+        FATWriteBehind wb = writeBehind;
+        if (wb != null && wb.isDirty()
+                && (!fs.holdsLock(readFATLock) || fs.holdsLock(writeFATLock)))
+            wb.flush(wait);
+    }
+
+    /**
+     * Opens asynchronous file channel for file context access.
+     * @param executor the I/O executor that serves the requests,
+     *                 [null] means the file system default executor.
+     * @return the channel for asynchronous context read/write operations.
+     * @throws IOException
+     */
+    public FATAsyncFileChannel getAsyncChannel(ExecutorService executor) throws IOException {
+        if (isFolder())
+            throw new IOException("That is a folder");
+        return new FATAsyncFileChannel(this, (executor == null)
+                ? fs.getIOExecutor()
+                : executor);
+    }
+
+    /**
+     * Maps a region of the file content directly into memory.
+     *
+     * The region is backed by the host file, one buffer for each
+     * physically contiguous run of clusters in the region, so the
+     * unfragmented file gets a single buffer. The buffers are returned
+     * in the file order and the sum of their capacities is [size].
+     *
+     * PERFORMANCE HINT: an access to the buffers costs neither lock,
+     * nor transaction, nor chain walk, nor host call.
+     *
+     * The view is the snapshot of the cluster chain at the call.
+     * The caller has to hold the file lock (see [getLock]) while
+     * the view is in use: the clusters of truncated or deleted file
+     * go to other files. The changes through the view do not update
+     * the file attributes. The view stays valid after the file system
+     * close and is unmapped by GC.
+     * The first [READ_WRITE] view switches the cluster cache off
+     * (see [FATFileSystem.setClusterCacheSize]).
+     *
+     * @param mode the mapping mode, the [READ_WRITE] mapping grows
+     *             the file to hold [position + size] bytes
+     * @param position the position within the file at which
+     *                 the mapped region is to start
+     * @param size the size of the region to be mapped
+     * @return the mapped buffers, empty array for [0] size
+     * @throws IOException if the region is out of file for
+     *                     [READ_ONLY] or [PRIVATE] mode
+     * @throws FATFileLockedException
+     */
+    public MappedByteBuffer[] map(FileChannel.MapMode mode,
+                                  long position, long size) throws IOException {
+        if (isFolder())
+            throw new IOException("That is a folder");
+        if (position < 0 || size < 0)
+            throw new IllegalArgumentException("Negative position or size");
+        boolean write = (mode == FileChannel.MapMode.READ_WRITE);
+        //Lock Attribute due to file size change
+        FATLock lock = tryLockThrowInternal(write);
+        try {
+            if (position + size > this.size) {
+                if (!write)
+                    throw new IOException("Mapped region is out of file.");
+                setLengthInternal(position + size);
+            }
+            return fs.mapFileContext(this, mode, position, size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Rename the file, if can
      *
@@ -219,11 +359,21 @@ public class FATFile {
         }
     }
 
+    /**
+     * Makes the file content durable.
+     *
+     * PERFORMANCE HINT: the sync goes under the read lock, so the concurrent
+     * calls for the file share the sync with the calls for other files
+     * (see [FATFileSystem.setGroupCommitDelay]).
+     *
+     * @param updateMetadata if [true] - update access info like [lastModified]
+     * @throws IOException
+     */
     public void force(boolean updateMetadata) throws IOException {
-        FATLock lock = tryLockThrowInternal(true);
+        if (updateMetadata)
+            updateLastModified();
+        FATLock lock = tryLockThrowInternal(false);
         try {
-            if (updateMetadata)
-                updateLastModified();
             fs.ts_forceFileContent(this, updateMetadata);
         } finally {
             //dirty rollback
@@ -338,27 +488,22 @@ public class FATFile {
         }
     }
 
-    synchronized boolean isFrozen() {
-        return isFrozen;
+    boolean isFrozen() {
+        return isFrozen != 0;
     }
 
-    synchronized boolean tryToFreeze() {
-        if (isFrozen)
-            return false;
-        isFrozen = true;
-        return true;
+    boolean tryToFreeze() {
+        return FROZEN.compareAndSet(this, 0, 1);
     }
 
-    synchronized void freeze() throws FATFileLockedException {
-        if (isFrozen)
+    void freeze() throws FATFileLockedException {
+        if (!tryToFreeze())
             throw new FATFileLockedException(this, true);
-        isFrozen = true;
     }
 
-    synchronized void unfreeze() {
-        if (!isFrozen)
+    void unfreeze() {
+        if (!FROZEN.compareAndSet(this, 1, 0))
             System.err.println("Bad State");
-        isFrozen = false;
     }
 
 
@@ -374,7 +519,12 @@ public class FATFile {
     public String getName() throws IOException {
         FATLock lock = tryLockThrowInternal(false);
         try {
-            return unlockedGetName(name);
+            String ret = nameString;
+            if (ret == null) {
+                ret = unlockedGetName(name);
+                nameString = ret;
+            }
+            return ret;
         } finally {
             lock.unlock();
         }
@@ -580,6 +730,8 @@ public class FATFile {
      */
     FATFile(FATFileSystem fs, FATFile parent, int fileId, int type) {
         this.fs = fs;
+        readFATLock = new FATLock(fs, lockRW.readLock());
+        writeFATLock = new FATLock(fs, lockRW.writeLock());
         // both ids validated in upper calls
         this.fileId = fileId;
         this.type = type;
@@ -587,6 +739,7 @@ public class FATFile {
         initialized = false;
         if (type == TYPE_DELETED) {
             Arrays.fill(name, (char)0xFFFF);
+            nameString = null;
         } else if (type == TYPE_FOLDER && fileId == ROOT_FILE_ID){
             initName(FATFolder.ROOT_NAME);
             fs.addFile(this, new SelfDisposer(fs, fileId));
@@ -608,6 +761,8 @@ public class FATFile {
     FATFile(FATFolder parent, String name, int type, long size, int access) throws IOException {
         initName(name);
         this.fs = parent.fatFile.fs;
+        readFATLock = new FATLock(fs, lockRW.readLock());
+        writeFATLock = new FATLock(fs, lockRW.writeLock());
         this.fatParent = parent.fatFile; 
         fileId = fs.ts_allocateFileSpace(size);
         this.type = type;
@@ -628,6 +783,7 @@ public class FATFile {
             access = bf.getInt();
             // only UNICODE name for performance and compatibility reasons
             bf.asCharBuffer().get(name);
+            nameString = null;
             //file holds actual value => no more updates from parent stream.
             initialized = true;
         } else {
@@ -671,10 +827,27 @@ public class FATFile {
             throw new IllegalArgumentException("Name is too long. Max length is " + FILE_MAX_NAME);
 
         Arrays.fill(name, ZAP_CHAR);
-        System.arraycopy(fileName.toCharArray(), 0, name, 0, len);
+        fileName.getChars(0, len, name, 0);
+        nameString = null;
         //no update here! That is init!
     }
 
+    /**
+     * Returns the counter of content changes.
+     *
+     * Have to be called under file lock.
+     */
+    long ts_getContentVersion() {
+        return contentVersion;
+    }
+
+    /**
+     * Have to be called under file write lock.
+     */
+    void ts_touchContent() {
+        ++contentVersion;
+    }
+
     int ts_getFileId() {
         return fileId;
     }
@@ -717,8 +890,7 @@ public class FATFile {
         }
     }
 
-    private FATLock getFATLockAndCheck(FATFileSystem fs, Lock lock) throws IOException {
-        FATLock ret = new FATLock(fs, lock);
+    private FATLock getFATLockAndCheck(FATLock ret) throws IOException {
         boolean success = false;
         try {
             checkValid();
@@ -732,12 +904,71 @@ public class FATFile {
     }
 
     FATLock getLockInternal(boolean write) throws IOException {
-        fs.begin(write);
-        Lock lock = write
-                ? lockRW.writeLock()
-                : lockRW.readLock();
-        lock.lock();
-        return getFATLockAndCheck(fs, lock);
+        while (true) {
+            flushWriteBehind(true);
+            FATLock ret = lockInternal(write);
+            if (checkStaged(ret))
+                return ret;
+        }
+    }
+
+    /**
+     * Checks the write-behind buffer after the lock.
+     *
+     * The bytes could be staged between the flush and the lock.
+     * The write lock owner flushes them. The read lock is released:
+     * the readers hold the lock on clean buffer only, so the stager
+     * never keeps the reader out and the reader never waits for the flush
+     * (see [FATWriteBehind]).
+     *
+     * @param lock the just taken lock
+     * @return [false] if the lock was released and have to be taken again
+     */
+    private boolean checkStaged(FATLock lock) throws IOException {
+        FATWriteBehind wb = writeBehind;
+        if (wb == null || !wb.isDirty())
+            return true;
+        if (fs.holdsLock(writeFATLock)) {
+            boolean success = false;
+            try {
+                wb.flush(true);
+                success = true;
+            } finally {
+                if (!success)
+                    lock.unlock();
+            }
+            return true;
+        }
+        lock.unlock();
+        return false;
+    }
+
+    /**
+     * Takes the file write lock for the staging call, no wait
+     * and no transaction.
+     *
+     * @return [false] if the file is locked by others
+     */
+    boolean tryLockStaging() {
+        return lockRW.writeLock().tryLock();
+    }
+
+    void unlockStaging() {
+        lockRW.writeLock().unlock();
+    }
+
+    /**
+     * Locks the file without the write-behind flush.
+     */
+    FATLock lockInternal(boolean write) throws IOException {
+        FATLock ret = fs.begin(write, readFATLock, writeFATLock);
+        if (ret == null) {
+            ret = write
+                ? writeFATLock
+                : readFATLock;
+            ret.lock();
+        }
+        return getFATLockAndCheck(ret);
     }
     /**
      * Locks the file.
@@ -755,15 +986,29 @@ public class FATFile {
     }
 
     FATLock tryLockThrowInternalFile(boolean write) throws IOException {
-        fs.begin(write);
-        Lock lock = write
-                ? lockRW.writeLock()
-                : lockRW.readLock();
-        if (!lock.tryLock()) {
-            fs.end();
-            throw new FATFileLockedException(this, write);
+        while (true) {
+            flushWriteBehind(false);
+            FATLock ret = tryLockInternal(write);
+            if (checkStaged(ret))
+                return ret;
+        }
+    }
+
+    /**
+     * Locks the file if possible without the write-behind flush.
+     */
+    FATLock tryLockInternal(boolean write) throws IOException {
+        FATLock ret = fs.begin(write, readFATLock, writeFATLock);
+        if (ret == null) {
+            ret = write
+                ? writeFATLock
+                : readFATLock;
+            if (!ret.tryLock()) {
+                fs.end();
+                throw new FATFileLockedException(this, write);
+            }
         }
-        return getFATLockAndCheck(fs, lock);
+        return getFATLockAndCheck(ret);
     }
     FATLock tryLockThrowInternalFolder(boolean write) throws IOException {
         //all folder operation need to be sync
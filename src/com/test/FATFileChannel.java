@@ -3,6 +3,9 @@ package com.test;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Provides access to Content storage.
@@ -10,10 +13,26 @@ import java.nio.ByteBuffer;
  */
 
 public class FATFileChannel implements Closeable {
+    // durability policies, see [setDurability]
+    public static final int DURABILITY_NONE = 0;
+    public static final int DURABILITY_PERIODIC = 1;
+    public static final int DURABILITY_ON_FORCE = 2;
+    public static final int DURABILITY_ALWAYS = 3;
+    // the limit of the file growth step in [transferFrom]
+    static final int TRANSFER_GROWTH_MAX = 1 << 20;
+
     //hash map on start cluster for exclusive access
     private final FATFile fatFile;
     private long position;
+    //protect the position, safe to hold over blocking I/O on virtual threads
+    private final ReentrantLock positionLock = new ReentrantLock();
     private final boolean appendMode;
+    // staging of small writes, [null] for unbuffered channel
+    private final FATWriteBehind writeBehind;
+    private volatile int durability = DURABILITY_ON_FORCE;
+    // prefetch for sequential reads, [null] if switched off,
+    // guarded by [positionLock]
+    private final FATReadAhead readAhead;
 
     /**
      * Returns the channel to work with file content
@@ -24,8 +43,17 @@ public class FATFileChannel implements Closeable {
      *                   operation. Look into testLostWrite test.
      */
     public FATFileChannel(FATFile file, boolean appendMode) {
+        this(file, appendMode, null);
+    }
+
+    FATFileChannel(FATFile file, boolean appendMode, FATWriteBehind writeBehind) {
         fatFile = file;
         this.appendMode = appendMode;
+        this.writeBehind = writeBehind;
+        int readAheadSize = file.fs.getReadAheadSize();
+        readAhead = (readAheadSize > 0 && !file.isFolder())
+                ? new FATReadAhead(file, file.fs.getClusterSize(), readAheadSize)
+                : null;
         position = 0;
     }
 
@@ -42,25 +70,59 @@ public class FATFileChannel implements Closeable {
     public int read(ByteBuffer dst) throws IOException {
         FATLock lock = fatFile.tryLockThrowInternal(false);
         try {
-            synchronized (this) { //protect the position
-                long rest = fatFile.length() - position;
-                if (rest <= 0)
-                    return -1;
-
-                //we need to protect from read-after-EOF
-                if (dst.remaining() > rest)
-                    dst.limit((int) (dst.position() + rest));
-
-                int wasRead = fs().readFileContext(fatFile, position, dst);
+            positionLock.lock();
+            try { //protect the position
+                int wasRead = (readAhead != null)
+                        ? readAhead.ts_rl_read(dst, position)
+                        : 0;
+                if (wasRead == 0 || dst.hasRemaining()) {
+                    int read = ts_rl_read(dst, position + wasRead);
+                    if (read > 0 || wasRead == 0)
+                        wasRead += read;
+                }
+                if (readAhead != null)
+                    readAhead.ts_rl_afterRead(position, wasRead);
                 // commit
-                position += wasRead;
+                if (wasRead > 0)
+                    position += wasRead;
                 return wasRead;
+            } finally {
+                positionLock.unlock();
             }
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Reads a sequence of bytes from this channel into the given buffer,
+     * starting at the given file position.
+     *
+     * <p> This method works in the same manner as the {@link
+     * #read(ByteBuffer)} method, except that bytes are read starting at the
+     * given file position rather than at the channel's current position.
+     * This method does not modify this channel's position and does not
+     * take the channel monitor, so any number of threads can share
+     * the channel for random-access reads.
+     *
+     * @param dst the buffer into which bytes are to be transferred
+     * @param position the file position at which the transfer is to begin;
+     *                 must be non-negative
+     * @return the number of bytes read, possibly zero, or <tt>-1</tt> if the
+     *         given position is greater than or equal to the file's current size
+     * @throws java.io.IOException If some other I/O error occurs
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0)
+            throw new IllegalArgumentException("Negative position");
+        FATLock lock = fatFile.tryLockThrowInternal(false);
+        try {
+            return ts_rl_read(dst, position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Writes a sequence of bytes to this channel from the given buffer.
      * 
@@ -75,45 +137,414 @@ public class FATFileChannel implements Closeable {
      * @throws java.io.IOException If some other I/O error occurs
      */
     public int write(ByteBuffer src) throws IOException {
-        long sizeToWrite = src.limit() - src.position();
-        if (sizeToWrite < 0) //Nothing to do
-            return 0;
+        if (writeBehind != null && durability != DURABILITY_ALWAYS) {
+            positionLock.lock();
+            try { //protect the position
+                int len = src.remaining();
+                long end = writeBehind.write(src, position, appendMode);
+                if (end >= 0) {
+                    // commit
+                    position = end;
+                    if (durability == DURABILITY_PERIODIC)
+                        fs().scheduleSync();
+                    return len;
+                }
+            } finally {
+                positionLock.unlock();
+            }
+        }
+        //Lock Attribute due to file size change
+        FATLock lock = fatFile.tryLockThrowInternal(true);
+        try {
+            positionLock.lock();
+            try { //protect the position
+                if (appendMode)
+                    position = fatFile.length();
+                int wasWritten = (int)ts_wl_write(src, null, 0, 0, position);
+                // commit
+                position += wasWritten;
+                return wasWritten;
+            } finally {
+                positionLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        int wasWritten = 0;
+    /**
+     * Writes a sequence of bytes to this channel from the given buffer,
+     * starting at the given file position.
+     *
+     * <p> This method works in the same manner as the {@link
+     * #write(ByteBuffer)} method, except that bytes are written starting at
+     * the given file position rather than at the channel's current position.
+     * This method does not modify this channel's position and ignores
+     * the append mode. The file is grown, if necessary, to accommodate
+     * the written bytes.
+     *
+     * @param src the buffer from which bytes are to be transferred
+     * @param position the file position at which the transfer is to begin;
+     *                 must be non-negative
+     * @return the number of bytes written, possibly zero
+     * @throws java.io.IOException If some other I/O error occurs
+     */
+    public int write(ByteBuffer src, long position) throws IOException {
+        if (position < 0)
+            throw new IllegalArgumentException("Negative position");
+        if (writeBehind != null && durability != DURABILITY_ALWAYS) {
+            int len = src.remaining();
+            if (writeBehind.write(src, position, false) >= 0) {
+                if (durability == DURABILITY_PERIODIC)
+                    fs().scheduleSync();
+                return len;
+            }
+        }
         //Lock Attribute due to file size change
         FATLock lock = fatFile.tryLockThrowInternal(true);
         try {
-            synchronized (this) { //protect the position
+            return (int)ts_wl_write(src, null, 0, 0, position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a sequence of bytes from this channel into a subsequence of the
+     * given buffers.
+     *
+     * <p> Bytes are read starting at this channel's current file position,
+     * and then the file position is updated with the number of bytes actually
+     * read. The whole sequence is served by single file lock and single
+     * chain resolution. Otherwise this method behaves exactly as specified
+     * in the {@link java.nio.channels.ScatteringByteChannel} interface.
+     *
+     * @param dsts the buffers into which bytes are to be transferred
+     * @param offset the offset within the buffer array of the first buffer
+     * @param length the maximum number of buffers to be accessed
+     * @return the number of bytes read, possibly zero, or <tt>-1</tt> if the
+     *         channel has reached end-of-stream
+     * @throws java.io.IOException If some other I/O error occurs
+     */
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        checkSubsequence(dsts, offset, length);
+        FATLock lock = fatFile.tryLockThrowInternal(false);
+        try {
+            positionLock.lock();
+            try { //protect the position
+                long wasRead = ts_rl_read(dsts, offset, length, position);
+                // commit
+                if (wasRead > 0)
+                    position += wasRead;
+                return wasRead;
+            } finally {
+                positionLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a sequence of bytes from this channel into the given buffers.
+     *
+     * @see #read(ByteBuffer[], int, int)
+     */
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    /**
+     * Writes a sequence of bytes to this channel from a subsequence of the
+     * given buffers.
+     *
+     * <p> Bytes are written starting at this channel's current file position
+     * unless the channel is in append mode, in which case the position is
+     * first advanced to the end of the file. The file is grown once
+     * to accommodate the whole sequence, and the sequence is written
+     * under single file lock with single chain resolution. Otherwise this
+     * method behaves exactly as specified in the
+     * {@link java.nio.channels.GatheringByteChannel} interface.
+     *
+     * @param srcs the buffers from which bytes are to be retrieved
+     * @param offset the offset within the buffer array of the first buffer
+     * @param length the maximum number of buffers to be accessed
+     * @return the number of bytes written, possibly zero
+     * @throws java.io.IOException If some other I/O error occurs
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        checkSubsequence(srcs, offset, length);
+        //Lock Attribute due to file size change
+        FATLock lock = fatFile.tryLockThrowInternal(true);
+        try {
+            positionLock.lock();
+            try { //protect the position
                 if (appendMode)
                     position = fatFile.length();
-                long finalPos = position + sizeToWrite;
-                boolean success = false;
-                if (finalPos > fatFile.length())
-                    fatFile.setLengthInternal(finalPos);
-                else
-                    success = true; //no rollback
-                try {
-                    wasWritten = fs().writeFileContext(fatFile, position, src);
-                    if (wasWritten != sizeToWrite) {
-                        // sbj for adjustment in NFS
-                        throw new IOException("Chanel write error");
-                    }
-                    // commit
-                    success = true;
-                    position += wasWritten;
-                } finally {
-                    if (!success) {
-                        // rollback
-                        fatFile.setLengthInternal(finalPos);
+                long wasWritten = ts_wl_write(null, srcs, offset, length, position);
+                // commit
+                position += wasWritten;
+                return wasWritten;
+            } finally {
+                positionLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a sequence of bytes to this channel from the given buffers.
+     *
+     * @see #write(ByteBuffer[], int, int)
+     */
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Transfers bytes from this channel's file to the given writable byte
+     * channel.
+     *
+     * <p> An attempt is made to read up to <tt>count</tt> bytes starting at
+     * the given <tt>position</tt> in this channel's file and write them to the
+     * target channel. Each contiguous run of clusters is passed to the host
+     * {@link java.nio.channels.FileChannel#transferTo} call, so the bytes
+     * do not pass through a Java heap buffer when the host supports it.
+     * This method does not modify this channel's position.
+     *
+     * @param position the position within the file at which the transfer
+     *                 is to begin; must be non-negative
+     * @param count the maximum number of bytes to be transferred;
+     *              must be non-negative
+     * @param target the target channel
+     * @return the number of bytes, possibly zero, that were actually transferred
+     * @throws java.io.IOException If some other I/O error occurs
+     */
+    public long transferTo(long position, long count,
+                           WritableByteChannel target) throws IOException {
+        if (position < 0 || count < 0)
+            throw new IllegalArgumentException("Negative position or count");
+        FATLock lock = fatFile.tryLockThrowInternal(false);
+        try {
+            long rest = fatFile.length() - position;
+            if (rest <= 0)
+                return 0;
+            return fs().transferFileContextTo(fatFile, position, Math.min(count, rest), target);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Transfers bytes into this channel's file from the given readable byte
+     * channel.
+     *
+     * <p> An attempt is made to read up to <tt>count</tt> bytes from the
+     * source channel and write them to this channel's file starting at the
+     * given <tt>position</tt>. Fewer bytes are transferred if the source
+     * channel has fewer bytes remaining. If the given position is greater
+     * than the file's current size then no bytes are transferred.
+     * The file grows by runs of clusters as the bytes arrive, the run
+     * doubles up to [TRANSFER_GROWTH_MAX] bytes; the unused tail of the
+     * last run is trimmed on return. Each contiguous run of clusters is
+     * passed to the host {@link java.nio.channels.FileChannel#transferFrom} call.
+     * This method does not modify this channel's position.
+     *
+     * @param src the source channel
+     * @param position the file position at which the transfer is to begin;
+     *                 must be non-negative
+     * @param count the maximum number of bytes to be transferred;
+     *              must be non-negative
+     * @return the number of bytes, possibly zero, that were actually transferred
+     * @throws java.io.IOException If some other I/O error occurs
+     */
+    public long transferFrom(ReadableByteChannel src,
+                             long position, long count) throws IOException {
+        if (position < 0 || count < 0)
+            throw new IllegalArgumentException("Negative position or count");
+        //Lock Attribute due to file size change
+        FATLock lock = fatFile.tryLockThrowInternal(true);
+        try {
+            long oldLength = fatFile.length();
+            if (position > oldLength)
+                return 0;
+            int clusterSize = fs().getClusterSize();
+            long growth = clusterSize;
+            long wasTransferred = 0;
+            try {
+                while (count > 0) {
+                    long pos = position + wasTransferred;
+                    long length = fatFile.length();
+                    long step;
+                    if (pos < length) {
+                        step = Math.min(count, length - pos);
+                    } else {
+                        // the tail of the last cluster goes first, no allocation
+                        long tail = FATSystem.getSizeInUnits(length, clusterSize)*clusterSize - length;
+                        if (tail == 0) {
+                            tail = growth;
+                            growth = Math.min(growth*2, Math.max(TRANSFER_GROWTH_MAX, clusterSize));
+                        }
+                        step = Math.min(count, tail);
+                        fatFile.setLengthInternal(pos + step);
                     }
+                    long transferred = fs().transferFileContextFrom(fatFile, src, pos, step);
+                    wasTransferred += transferred;
+                    count -= transferred;
+                    if (transferred < step)
+                        break; //source is drained
                 }
+            } finally {
+                // trim the unused tail of the last run
+                long newLength = Math.max(oldLength, position + wasTransferred);
+                if (newLength != fatFile.length())
+                    fatFile.setLengthInternal(newLength);
             }
+            if (wasTransferred > 0)
+                ts_wl_applyDurability();
+            return wasTransferred;
         } finally {
             lock.unlock();
         }
+    }
+
+    /**
+     * Reads file content from [position] to [dst] up to EOF.
+     *
+     * Have to be called under file read lock.
+     */
+    int ts_rl_read(ByteBuffer dst, long position) throws IOException {
+        long rest = fatFile.length() - position;
+        if (rest <= 0)
+            return -1;
+
+        //we need to protect from read-after-EOF
+        int limit = dst.limit();
+        if (dst.remaining() > rest)
+            dst.limit((int) (dst.position() + rest));
+        try {
+            return fs().readFileContext(fatFile, position, dst);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    /**
+     * Reads file content from [position] to [dsts] subsequence up to EOF.
+     *
+     * Have to be called under file read lock.
+     */
+    long ts_rl_read(ByteBuffer[] dsts, int offset, int length, long position) throws IOException {
+        long rest = fatFile.length() - position;
+        if (rest <= 0)
+            return -1;
+
+        //we need to protect from read-after-EOF
+        long count = Math.min(getRemaining(dsts, offset, length), rest);
+        return fs().readFileContext(fatFile, position, dsts, offset, length, count);
+    }
+
+    /**
+     * Writes [src] or [srcs] subsequence to file content from [position],
+     * grows the file if need.
+     *
+     * Have to be called under file write lock.
+     */
+    long ts_wl_write(ByteBuffer src, ByteBuffer[] srcs,
+                             int offset, int length, long position) throws IOException {
+        long sizeToWrite = (srcs == null)
+                ? src.limit() - src.position()
+                : getRemaining(srcs, offset, length);
+        if (sizeToWrite < 0) //Nothing to do
+            return 0;
+
+        long wasWritten;
+        long oldLength = fatFile.length();
+        long finalPos = position + sizeToWrite;
+        boolean success = false;
+        if (finalPos > oldLength)
+            fatFile.setLengthInternal(finalPos);
+        else
+            success = true; //no rollback
+        try {
+            wasWritten = (srcs == null)
+                ? fs().writeFileContext(fatFile, position, src)
+                : fs().writeFileContext(fatFile, position, srcs, offset, length, sizeToWrite);
+            if (wasWritten != sizeToWrite) {
+                // sbj for adjustment in NFS
+                throw new IOException("Chanel write error");
+            }
+            // commit
+            success = true;
+        } finally {
+            if (!success) {
+                // rollback
+                fatFile.setLengthInternal(oldLength);
+            }
+        }
+        ts_wl_applyDurability();
         return wasWritten;
     }
 
+    /**
+     * Makes the written bytes durable by the channel policy.
+     *
+     * Have to be called under file write lock.
+     */
+    private void ts_wl_applyDurability() throws IOException {
+        switch (durability) {
+        case DURABILITY_ALWAYS:
+            fs().ts_forceFileContent(fatFile, false);
+            break;
+        case DURABILITY_PERIODIC:
+            fs().scheduleSync();
+            break;
+        }
+    }
+
+    /**
+     * Sets the durability policy of the channel writes.
+     *
+     * <ul>
+     * <li>[DURABILITY_NONE]: the [force] call does not sync the storage,
+     *     the data is durable after the file system close;</li>
+     * <li>[DURABILITY_PERIODIC]: the storage is synced in
+     *     [FATFileSystem.SYNC_PERIOD] after the write, the [force] call
+     *     does not sync;</li>
+     * <li>[DURABILITY_ON_FORCE]: the [force] call syncs the storage (default);</li>
+     * <li>[DURABILITY_ALWAYS]: each write returns after the sync,
+     *     the write-behind buffer is not used.</li>
+     * </ul>
+     *
+     * PERFORMANCE HINT: the syncs of all channels are shared
+     * (see [FATFileSystem.setGroupCommitDelay]).
+     *
+     * @param durability one of [DURABILITY_XXXX] constants
+     * @return this channel
+     */
+    public FATFileChannel setDurability(int durability) {
+        if (durability < DURABILITY_NONE || durability > DURABILITY_ALWAYS)
+            throw new IllegalArgumentException("Unknown durability:" + durability);
+        this.durability = durability;
+        return this;
+    }
+
+    public int getDurability() {
+        return durability;
+    }
+
+    private static void checkSubsequence(ByteBuffer[] bfs, int offset, int length) {
+        if ((offset < 0) || (length < 0) || (offset > bfs.length - length))
+            throw new IndexOutOfBoundsException();
+    }
+
+    private static long getRemaining(ByteBuffer[] bfs, int offset, int length) {
+        long remaining = 0;
+        for (int i = offset; i < offset + length; ++i)
+            remaining += bfs[i].remaining();
+        return remaining;
+    }
 
     /**
      * Returns this channel's file position.
@@ -123,8 +554,11 @@ public class FATFileChannel implements Closeable {
      *         from the beginning of the file to the current position
      */
     public long position() {
-        synchronized (this) { //protect the position
+        positionLock.lock();
+        try { //protect the position
             return position;
+        } finally {
+            positionLock.unlock();
         }
     }
 
@@ -147,8 +581,11 @@ public class FATFileChannel implements Closeable {
     public FATFileChannel position(long newPosition) throws IOException {
         if (newPosition < 0)
             throw new IOException("Bad new position");
-        synchronized (this) {
+        positionLock.lock();
+        try {
             position = newPosition;
+        } finally {
+            positionLock.unlock();
         }
         return this;
     }
@@ -180,11 +617,14 @@ public class FATFileChannel implements Closeable {
      * @throws java.io.IOException If some other I/O error occurs
      */
     public FATFileChannel truncate(long size) throws IOException {
-        synchronized (this) {
+        positionLock.lock();
+        try {
             if (size < size()) {
                 fatFile.setLengthInternal(size);
                 position = Math.max(position, size);
             }
+        } finally {
+            positionLock.unlock();
         }
         return this;
     }
@@ -217,6 +657,8 @@ public class FATFileChannel implements Closeable {
      * this time is updated whenever the file is read.  Whether or not this is
      * actually done is system-dependent and is therefore unspecified.
      * 
+     * <p> The storage is synced for [DURABILITY_ON_FORCE] and
+     * [DURABILITY_ALWAYS] channels only, see {@link #setDurability(int)}.
      *
      * @param metaData If <tt>true</tt> then this method is required to force changes
      *                 to both the file's content and metadata to be written to
@@ -228,6 +670,13 @@ public class FATFileChannel implements Closeable {
         if (metaData) {
             fatFile.updateLastModified();
         }
+        int policy = durability;
+        if (policy == DURABILITY_NONE || policy == DURABILITY_PERIODIC) {
+            // the staged bytes go to the file, the sync is up to the policy
+            if (writeBehind != null)
+                writeBehind.flush(true);
+            return;
+        }
         fatFile.force(metaData);
     }
 
@@ -247,6 +696,16 @@ public class FATFileChannel implements Closeable {
     @Override
     public void close() throws IOException {
         //force(false);
+        if (writeBehind != null)
+            writeBehind.flush(true);
+        if (readAhead != null) {
+            positionLock.lock();
+            try {
+                readAhead.drop();
+            } finally {
+                positionLock.unlock();
+            }
+        }
     }
 
     private FATFileSystem fs() {
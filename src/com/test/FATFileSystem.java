@@ -2,11 +2,27 @@ package com.test;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.concurrent.locks.Lock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -26,25 +42,123 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class FATFileSystem implements Closeable {
     private FATSystem fat;
 
-    private final HashMap<Integer, WeakReference<FATFolder>> folderCache = new HashMap<>();
-    private final HashMap<Integer, WeakReference<FATFile>>   fileCache = new HashMap<>();
+    // max number of hot objects that are kept in memory between calls
+    public static final int DEFAULT_OBJECT_CACHE_LIMIT = 1024;
+    public static final int DEFAULT_DATA_SEGMENT_SIZE = FATMappedData.DEFAULT_SEGMENT_SIZE;
+    // the period of [FATFileChannel.DURABILITY_PERIODIC] syncs, ms
+    public static final long SYNC_PERIOD = 1000;
+    public static final int DEFAULT_READ_AHEAD_SIZE = FATBufferPool.MAX_CLASS_SIZE;
+    public static final int DATA_ALIGNMENT_NONE = FATSystem.DATA_ALIGNMENT_NONE;
+    public static final int DATA_ALIGNMENT_PAGE = FATSystem.DATA_ALIGNMENT_PAGE;
+    public static final int DEFAULT_JOURNAL_SIZE = FATSystem.DEFAULT_JOURNAL_SIZE;
+    // the time [grow] waits for the end of open transactions, ms
+    public static final long DEFAULT_GROWTH_TIMEOUT = 10000;
+    private final FATObjectCache<FATFolder> folderCache = new FATObjectCache<>(DEFAULT_OBJECT_CACHE_LIMIT);
+    private final FATObjectCache<FATFile>   fileCache = new FATObjectCache<>(DEFAULT_OBJECT_CACHE_LIMIT);
+    // cleans the caches after GC, works in the threads that add new objects
+    private final FATDisposer disposer = new FATDisposer();
+
+    // guards the transaction counter and the root.
+    // [java.util.concurrent] lock instead of the object monitor: a thread
+    // that blocks on I/O or waits for shutdown under it does not pin
+    // the carrier thread when the clients run on virtual threads.
+    private final ReentrantLock fsLock = new ReentrantLock();
 
     // smart termination procedure as
     //  Transaction counting + shutdown signal + wait for execution finish
-    private final Object shutdownSignal = new Object();
+    private final Condition shutdownSignal = fsLock.newCondition();
     private long transactionCounter = 0L;
 
     private FATFile root;
+
+    // default executor for asynchronous channels, created on demand
+    private ExecutorService ioExecutor;
+    // timer of write-behind flushes and periodic syncs, created on demand
+    private ScheduledExecutorService timer;
+    // the periodic sync is scheduled, guarded by [fsLock]
+    private boolean syncScheduled;
+    // write-behind buffers with staged bytes, guarded by [fsLock]
+    private final Set<FATWriteBehind> dirtyBuffers = new HashSet<>();
+    // no new staging after shutdown request, guarded by [fsLock]
+    private boolean writeBehindClosed;
+    // the limit of read-ahead window, [0] for no read-ahead
+    private volatile int readAheadSize;
+    // the number of read-ahead tasks in flight, guarded by [fsLock]
+    private int readAheadCount;
+    private boolean readAheadClosed;
+    private final Condition readAheadDone = fsLock.newCondition();
+    // the background defragmentation pass, guarded by [fsLock]
+    private FATDefragmenter defragmenter;
+    private boolean defragmentationClosed;
+    private final Condition defragmentationDone = fsLock.newCondition();
+    // the growth drains the transactions, no new one starts, guarded by [fsLock]
+    private boolean growthPending;
+    private final Condition growthDone = fsLock.newCondition();
+    private final Condition transactionsDone = fsLock.newCondition();
     //RW Lock
     private final ReentrantReadWriteLock fatRecordRW = new ReentrantReadWriteLock();
 
+    private final FATLock fatRecordReadLock = new FATLock(this, fatRecordRW.readLock());
+    private final FATLock fatRecordWriteLock = new FATLock(this, fatRecordRW.writeLock());
+    // terminator for nested transaction that reuses the lock of outer one
+    private final FATLock nestedLock = new FATLock(this, null);
+
+    /**
+     * Transaction state of the thread in this file system.
+     *
+     * Nested transactions do not touch the shared counter and
+     * do not take again the locks that the thread holds.
+     */
+    private static final class TransactionContext {
+        // nested transaction depth
+        int depth;
+        // the locks held by the thread, in acquisition order
+        FATLock[] held = new FATLock[8];
+        int heldCount;
+
+        boolean holds(FATLock lock) {
+            for (int i = heldCount - 1; i >= 0; --i) {
+                if (held[i] == lock)
+                    return true;
+            }
+            return false;
+        }
+
+        void push(FATLock lock) {
+            if (heldCount == held.length)
+                held = Arrays.copyOf(held, heldCount*2);
+            held[heldCount++] = lock;
+        }
+
+        void pop(FATLock lock) {
+            // usually the top one
+            for (int i = heldCount - 1; i >= 0; --i) {
+                if (held[i] == lock) {
+                    System.arraycopy(held, i + 1, held, i, heldCount - i - 1);
+                    held[--heldCount] = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    private final ThreadLocal<TransactionContext> transactionContext
+            = new ThreadLocal<TransactionContext>() {
+        @Override
+        protected TransactionContext initialValue() {
+            return new TransactionContext();
+        }
+    };
+
     FATLock getLockInternal(boolean write) throws IOException {
-        begin(write);
-        Lock lock = write
-                ? fatRecordRW.writeLock()
-                : fatRecordRW.readLock();
-        lock.lock();
-        return new FATLock(this, lock);
+        FATLock lock = begin(write, fatRecordReadLock, fatRecordWriteLock);
+        if (lock == null) {
+            lock = write
+                ? fatRecordWriteLock
+                : fatRecordReadLock;
+            lock.lock();
+        }
+        return lock;
     }
 
 
@@ -75,11 +189,108 @@ public class FATFileSystem implements Closeable {
      */
     public static FATFileSystem create(Path path, int clusterSize,int clusterCount,
                                    int allocatorType) throws IOException {
+        return create(path, clusterSize, clusterCount, allocatorType, DATA_ALIGNMENT_NONE);
+    }
+
+    /**
+     * Creates new file-based file system with aligned data section.
+     *
+     * @param path is the path in host FS for file storage that need be created
+     * @param clusterSize  the size of single cluster. Mast be at least [FATFile.RECORD_SIZE] size
+     * @param clusterCount the total number of clusters in created file storage.
+     * @param allocatorType the cluster allocation strategy
+     * @param dataAlignment the alignment of data section in host file:
+     *                      [DATA_ALIGNMENT_NONE], [DATA_ALIGNMENT_PAGE] or
+     *                      other power of two. The cluster size have to be
+     *                      a multiple or a divisor of the alignment.
+     * @return new In-file FS over the file that created in host FS.
+     * @throws IOException for bad parameters or file access problem in the host FS
+     */
+    public static FATFileSystem create(Path path, int clusterSize,int clusterCount,
+                                   int allocatorType, int dataAlignment) throws IOException {
+        return create(path, clusterSize, clusterCount, allocatorType, dataAlignment,
+                ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Creates new file-based file system with the given on-disk encoding.
+     *
+     * The encoding is detected on open, the [ByteOrder.nativeOrder()]
+     * storage is parsed without byte swap.
+     *
+     * @param path is the path in host FS for file storage that need be created
+     * @param clusterSize  the size of single cluster. Mast be at least [FATFile.RECORD_SIZE] size
+     * @param clusterCount the total number of clusters in created file storage.
+     * @param allocatorType the cluster allocation strategy
+     * @param dataAlignment the alignment of data section in host file
+     * @param byteOrder the encoding of FAT and file records
+     * @return new In-file FS over the file that created in host FS.
+     * @throws IOException for bad parameters or file access problem in the host FS
+     */
+    public static FATFileSystem create(Path path, int clusterSize,int clusterCount,
+                                   int allocatorType, int dataAlignment,
+                                   ByteOrder byteOrder) throws IOException {
+        return create(path, clusterSize, clusterCount, allocatorType, dataAlignment,
+                byteOrder, 0);
+    }
+
+    /**
+     * Creates new file-based file system with metadata journal.
+     *
+     * The storage with journal survives the process crash: on the next
+     * open the unfinished transactions are rolled back by the journal,
+     * the storage does not need maintenance. The journal takes
+     * [journalSize] bytes at the end of host file.
+     *
+     * @param path is the path in host FS for file storage that need be created
+     * @param clusterSize  the size of single cluster. Mast be at least [FATFile.RECORD_SIZE] size
+     * @param clusterCount the total number of clusters in created file storage.
+     * @param allocatorType the cluster allocation strategy
+     * @param dataAlignment the alignment of data section in host file
+     * @param byteOrder the encoding of FAT and file records
+     * @param journalSize the size of journal in bytes, [0] for no journal,
+     *                    [DEFAULT_JOURNAL_SIZE] is a good start
+     * @return new In-file FS over the file that created in host FS.
+     * @throws IOException for bad parameters or file access problem in the host FS
+     */
+    public static FATFileSystem create(Path path, int clusterSize,int clusterCount,
+                                   int allocatorType, int dataAlignment,
+                                   ByteOrder byteOrder, int journalSize) throws IOException {
+        return create(path, clusterSize, clusterCount, allocatorType, dataAlignment,
+                byteOrder, journalSize, 0);
+    }
+
+    /**
+     * Creates new file-based file system that could grow online.
+     *
+     * The FAT takes [fatCapacity] entries from creation, so the storage
+     * could grow up to [fatCapacity] clusters without copy, see [grow].
+     *
+     * @param path is the path in host FS for file storage that need be created
+     * @param clusterSize  the size of single cluster. Mast be at least [FATFile.RECORD_SIZE] size
+     * @param clusterCount the total number of clusters in created file storage.
+     * @param allocatorType the cluster allocation strategy
+     * @param dataAlignment the alignment of data section in host file
+     * @param byteOrder the encoding of FAT and file records
+     * @param journalSize the size of journal in bytes, the growable storage
+     *                    needs the journal
+     * @param fatCapacity the max number of clusters, [0] for the storage
+     *                    that could not grow
+     * @return new In-file FS over the file that created in host FS.
+     * @throws IOException for bad parameters or file access problem in the host FS
+     */
+    public static FATFileSystem create(Path path, int clusterSize,int clusterCount,
+                                   int allocatorType, int dataAlignment,
+                                   ByteOrder byteOrder, int journalSize,
+                                   int fatCapacity) throws IOException {
         FATFileSystem ret = new FATFileSystem();
         boolean success = false;
         try {
-            ret.fat = FATSystem.create(path, clusterSize, clusterCount, allocatorType);
+            ret.fat = FATSystem.create(path, clusterSize, clusterCount, allocatorType,
+                    dataAlignment, byteOrder, journalSize, fatCapacity);
             ret.root = FATFolder.ts_createRoot(ret, 0).fatFile;
+            // the root is the first consistent state
+            ret.fat.markDiskStateActual();
             success = true;
         } finally {
             if (!success)
@@ -112,6 +323,8 @@ public class FATFileSystem implements Closeable {
         try {
             ret.fat = FATSystem.open(path, normalMode);
             ret.root = FATFolder.ts_openRoot(ret).fatFile;
+            if (normalMode)
+                ret.validateInBackground();
             success = true;
         } finally {
             if (!success)
@@ -120,6 +333,27 @@ public class FATFileSystem implements Closeable {
         return ret;
     }
 
+    /**
+     * Checks the storage in host FS, repairs it on request.
+     *
+     * The storage must not be in use. The folder tree is walked and
+     * the chains are validated in parallel, one thread per processor.
+     * The repair cuts the damaged chains, deletes the records without
+     * valid chain and rebuilds the free space; the repaired storage
+     * could be opened in normal mode.
+     *
+     * @param path the path to storage file in host FS
+     * @param repair [true] if the found problems have to be fixed
+     * @return the report of the check
+     * @throws IOException if the storage could not be checked
+     */
+    public static FATCheckReport check(Path path, boolean repair) throws IOException {
+        try (FATSystem fat = FATSystem.open(path, false)) {
+            return new FATMaintenance(fat, Runtime.getRuntime().availableProcessors())
+                    .run(repair);
+        }
+    }
+
     /**
      * Closes File System and releases any system resources associated
      * with it.
@@ -128,7 +362,16 @@ public class FATFileSystem implements Closeable {
      */
     @Override
     public void close() throws IOException {
-        synchronized (this) {
+        // the pass holds the file locks in transaction
+        stopDefragmentation(true);
+        // the flush takes the file locks: not under [fsLock]
+        flushWriteBehind();
+        fsLock.lock();
+        try {
+            // the read-ahead tasks are short transactions
+            readAheadClosed = true;
+            while (readAheadCount > 0)
+                readAheadDone.awaitUninterruptibly();
             if (fat != null) {
                 if (!shutdownRequest())
                     throw new IOException("System was not unmounted");
@@ -136,6 +379,12 @@ public class FATFileSystem implements Closeable {
                 // it saves actual value of [dirty] status
                 fat.close();
             }
+            if (ioExecutor != null)
+                ioExecutor.shutdown();
+            if (timer != null)
+                timer.shutdown();
+        } finally {
+            fsLock.unlock();
         }
     }
 
@@ -149,6 +398,42 @@ public class FATFileSystem implements Closeable {
         return fat.getVersion();
     }
 
+    /**
+     * Returns the on-disk encoding of FAT and file records.
+     *
+     * @return the byte order from creation
+     */
+    public ByteOrder getByteOrder() {
+        return fat.getByteOrder();
+    }
+
+    /**
+     * Returns the size of metadata journal.
+     *
+     * @return the journal size from creation, [0] for storage without journal
+     */
+    public int getJournalSize() {
+        return fat.getJournalSize();
+    }
+
+    /**
+     * Returns the data section alignment in host file.
+     *
+     * @return the alignment from creation, [DATA_ALIGNMENT_NONE] for packed layout
+     */
+    public int getDataAlignment() {
+        return fat.getDataAlignment();
+    }
+
+    /**
+     * Returns the allocation unit of File System.
+     *
+     * @return the cluster size from creation
+     */
+    public int getClusterSize() {
+        return fat.getClusterSize();
+    }
+
     /**
      * Returns the capacity of File System.
      *
@@ -158,6 +443,96 @@ public class FATFileSystem implements Closeable {
         return  fat.getSize();
     }
 
+    /**
+     * Returns the size that File System could grow up to.
+     *
+     * @return the size of [Data Section] for the FAT capacity,
+     *         [getSize] for the storage that could not grow
+     */
+    public long getMaxSize() {
+        return (long)fat.getFatCapacity()*fat.getClusterSize();
+    }
+
+    /**
+     * Adds clusters to File System online.
+     *
+     * The growth waits for the point without open transaction for
+     * [DEFAULT_GROWTH_TIMEOUT] ms, see [grow(int, long, TimeUnit)].
+     *
+     * @param clusterCount the new total number of clusters, up to the FAT
+     *                     capacity from creation
+     * @throws IOException if the storage could not grow, the thread
+     *                     holds a file lock or the wait is over
+     */
+    public void grow(int clusterCount) throws IOException {
+        grow(clusterCount, DEFAULT_GROWTH_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds clusters to File System online.
+     *
+     * The growth needs the point without open transaction: the new
+     * transactions wait from the call till the end of growth, the open
+     * ones go on to the end. The lock holder in other thread keeps
+     * the growth out till [timeout]. Have not to be called under a file
+     * lock: the growth would wait for itself.
+     *
+     * @param clusterCount the new total number of clusters, up to the FAT
+     *                     capacity from creation
+     * @param timeout the max time to wait for the end of open transactions
+     * @param unit the unit of [timeout]
+     * @throws IOException if the storage could not grow, the thread
+     *                     holds a file lock or the wait is over
+     * @throws InterruptedIOException if the thread was interrupted in wait
+     */
+    public void grow(int clusterCount, long timeout, TimeUnit unit) throws IOException {
+        if (transactionContext.get().depth > 0)
+            throw new IOException("The storage could not grow under the file lock.");
+        long nanos = unit.toNanos(timeout);
+        fsLock.lock();
+        try {
+            try {
+                while (growthPending) {
+                    if (nanos <= 0)
+                        throw new IOException("The storage could not grow: other growth is in action.");
+                    nanos = growthDone.awaitNanos(nanos);
+                }
+                growthPending = true;
+                while (transactionCounter > 0) {
+                    if (nanos <= 0) {
+                        endGrowth();
+                        throw new IOException("The storage could not grow: the transactions are not over.");
+                    }
+                    nanos = transactionsDone.awaitNanos(nanos);
+                }
+            } catch (InterruptedException e) {
+                endGrowth();
+                throw new InterruptedIOException("The growth was interrupted.");
+            }
+        } finally {
+            fsLock.unlock();
+        }
+        // no transaction is open till the end
+        try {
+            fat.grow(clusterCount);
+        } finally {
+            fsLock.lock();
+            try {
+                endGrowth();
+            } finally {
+                fsLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Lets the new transactions go. Have to be called under [fsLock].
+     */
+    private void endGrowth() {
+        growthPending = false;
+        growthDone.signalAll();
+    }
+
     /**
      * Returns the free space of File System
      *
@@ -177,12 +552,253 @@ public class FATFileSystem implements Closeable {
         return System.currentTimeMillis();
     }
 
+    /**
+     * Returns the default I/O executor for asynchronous channels.
+     *
+     * @return the executor with a daemon thread per processor.
+     */
+    ExecutorService getIOExecutor() {
+        fsLock.lock();
+        try {
+            if (ioExecutor == null) {
+                ioExecutor = Executors.newFixedThreadPool(
+                        Runtime.getRuntime().availableProcessors(),
+                        new ThreadFactory() {
+                            @Override public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "FATAsyncIO");
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+            }
+            return ioExecutor;
+        } finally {
+            fsLock.unlock();
+        }
+    }
+
+    /**
+     * Registers the buffer with staged bytes for the flush at shutdown.
+     *
+     * @throws IOException if the system is going down
+     */
+    void addDirtyBuffer(FATWriteBehind wb) throws IOException {
+        fsLock.lock();
+        try {
+            if (writeBehindClosed
+                    || fat.state.ordinal() >= FATSystem.SystemState.SHUTDOWN_REQUEST.ordinal())
+                throw new IOException("System down");
+            dirtyBuffers.add(wb);
+        } finally {
+            fsLock.unlock();
+        }
+    }
+
+    void removeDirtyBuffer(FATWriteBehind wb) {
+        fsLock.lock();
+        try {
+            dirtyBuffers.remove(wb);
+        } finally {
+            fsLock.unlock();
+        }
+    }
+
+    /**
+     * Schedules the timer flush of the buffer.
+     */
+    void scheduleFlush(final FATWriteBehind wb) {
+        schedule(new Runnable() {
+            @Override public void run() {
+                wb.flushByTimer();
+            }
+        }, FATWriteBehind.FLUSH_DELAY);
+    }
+
+    /**
+     * Schedules the storage sync for [FATFileChannel.DURABILITY_PERIODIC]
+     * writes, one sync per [SYNC_PERIOD] at most.
+     */
+    void scheduleSync() {
+        fsLock.lock();
+        try {
+            if (syncScheduled)
+                return;
+            syncScheduled = true;
+        } finally {
+            fsLock.unlock();
+        }
+        schedule(new Runnable() {
+            @Override public void run() {
+                syncByTimer();
+            }
+        }, SYNC_PERIOD);
+    }
+
+    private void syncByTimer() {
+        TransactionContext context = transactionContext.get();
+        try {
+            fsLock.lock();
+            try {
+                // the writes from here need the next sync
+                syncScheduled = false;
+            } finally {
+                fsLock.unlock();
+            }
+            // the transaction holds the system from close
+            begin(context, false);
+        } catch (IOException e) {
+            // system down: the close syncs the rest
+            return;
+        }
+        try {
+            fat.sync(false);
+        } catch (IOException e) {
+            ts_logError("Periodic sync problem: " + e.getMessage());
+        } finally {
+            end();
+        }
+    }
+
+    private void schedule(Runnable task, long delay) {
+        fsLock.lock();
+        try {
+            if (timer == null) {
+                timer = Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactory() {
+                            @Override public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "FATTimer");
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+            }
+            if (!timer.isShutdown())
+                timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } finally {
+            fsLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the staging and writes all staged bytes to the files.
+     *
+     * Have to be called out of [fsLock]: the flush takes the file locks.
+     *
+     * @throws IOException
+     */
+    private void flushWriteBehind() throws IOException {
+        List<FATWriteBehind> buffers;
+        fsLock.lock();
+        try {
+            writeBehindClosed = true;
+            if (dirtyBuffers.isEmpty())
+                return;
+            buffers = new ArrayList<>(dirtyBuffers);
+        } finally {
+            fsLock.unlock();
+        }
+        for (FATWriteBehind wb : buffers)
+            wb.flush(true);
+    }
+
+    /**
+     * Checks the regions of FAT in [getIOExecutor], region by region.
+     *
+     * PERFORMANCE HINT: the open trusts the free-space summary of
+     * the clean regions, the check goes after it.
+     */
+    private void validateInBackground() {
+        if (fat.getRegionCount() == 0)
+            return;
+        try {
+            getIOExecutor().execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        if (fat.validateNextRegion())
+                            getIOExecutor().execute(this);
+                    } catch (IOException | RejectedExecutionException e) {
+                        // the system is going down
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the system is going down
+        }
+    }
+
+    /**
+     * Starts the read-ahead task in [getIOExecutor].
+     *
+     * @return [false] if the system is going down
+     */
+    boolean submitReadAhead(final Runnable prefetch) {
+        fsLock.lock();
+        try {
+            if (readAheadClosed
+                    || fat.state.ordinal() >= FATSystem.SystemState.SHUTDOWN_REQUEST.ordinal())
+                return false;
+            ++readAheadCount;
+        } finally {
+            fsLock.unlock();
+        }
+        getIOExecutor().execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    prefetch.run();
+                } finally {
+                    fsLock.lock();
+                    try {
+                        if (--readAheadCount == 0)
+                            readAheadDone.signalAll();
+                    } finally {
+                        fsLock.unlock();
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    boolean isWriteMapped() {
+        return fat.isWriteMapped();
+    }
+
+    boolean holdsLock(FATLock lock) {
+        return transactionContext.get().holds(lock);
+    }
+
+    void ts_logError(String message) {
+        fat.LogError(message);
+    }
+
     ByteBuffer ts_allocateBuffer(int recordSize) {
         // potentially the Folder record could be in reverse byte order,
         // but it is not a good idea
         return fat.allocateBuffer(recordSize);
     }
 
+    void ts_releaseBuffer(ByteBuffer bf) {
+        fat.releaseBuffer(bf);
+    }
+
+    /**
+     * Returns the number of internal I/O buffers reused from the pool.
+     *
+     * @return the hit counter of the buffer pool
+     */
+    public long getBufferPoolHitCount() {
+        return fat.getBufferPoolHitCount();
+    }
+
+    /**
+     * Returns the number of internal I/O buffers allocated in native memory.
+     *
+     * @return the miss counter of the buffer pool
+     */
+    public long getBufferPoolMissCount() {
+        return fat.getBufferPoolMissCount();
+    }
+
     int ts_allocateFileSpace(long size) throws IOException {
         if (size < 0)
             throw new IOException("Wrong file size");
@@ -192,52 +808,89 @@ public class FATFileSystem implements Closeable {
     }
 
     /**
-     * Flush file content.
+     * Flush file content and FAT.
+     *
+     * The concurrent calls share the syncs (group commit).
      *
      * @param file the file to flush
      * @param updateMetadata if [true] - update access info like [lastModified]
      * @throws IOException
      */
     void ts_forceFileContent(FATFile file, boolean updateMetadata) throws IOException {
-        fat.forceChannel(updateMetadata);
+        fat.sync(updateMetadata);
     }
 
 
     void setFileLength(FATFile file, long newLength, long oldLength) throws IOException {
+        file.ts_touchContent();
         fat.adjustClusterChain(file.ts_getFileId(), newLength, oldLength);
     }
 
     int writeFileContext(FATFile file, long position,
                                 ByteBuffer src) throws IOException {
-        int wasWritten = 0;
-        
-        //pass parameters by reference
-        int[] startCluster = new int[]{file.ts_getFileId()};
-        long[] pos = new long[]{position};
-        while (src.hasRemaining()) {
-            int written = fat.writeChannel(startCluster, pos, src);
-            if (written == 0)
-                break; //chanel is full (transport?)
-            wasWritten += written;
-        }
-        return wasWritten;
+        file.ts_touchContent();
+        // the folder content is metadata: journaled
+        return fat.writeChannel(file.ts_getFileId(), position, src, file.isFolder());
     }
 
     int readFileContext(FATFile file, long position,
                         ByteBuffer dst) throws IOException {
-        int wasRead = 0;
-        int[] startCluster = new int[]{file.ts_getFileId()};
-        long[] pos = new long[]{position};
-        while (dst.hasRemaining()) {
-            int read = fat.readChannel(startCluster, pos, dst);
-            if (read < 0) {
-                if (wasRead == 0)
-                    return -1;
-                break;
+        boolean priority = file.isFolder()
+                || fat.getSizeInClusters(file.length()) <= FATClusterCache.SMALL_FILE_CLUSTERS;
+        return fat.readChannel(file.ts_getFileId(), position, dst, priority);
+    }
+
+    long writeFileContext(FATFile file, long position, ByteBuffer[] srcs,
+                          int offset, int length, long count) throws IOException {
+        file.ts_touchContent();
+        if (file.isFolder()) {
+            // the journaled write goes buffer by buffer
+            long wasWritten = 0;
+            for (int i = offset; i < offset + length && wasWritten < count; ++i) {
+                ByteBuffer src = srcs[i];
+                int limit = src.limit();
+                if (src.remaining() > count - wasWritten)
+                    src.limit(src.position() + (int) (count - wasWritten));
+                try {
+                    int written = fat.writeChannel(file.ts_getFileId(),
+                            position + wasWritten, src, true);
+                    wasWritten += written;
+                    if (src.hasRemaining())
+                        break;
+                } finally {
+                    src.limit(limit);
+                }
             }
-            wasRead += read;
+            return wasWritten;
         }
-        return wasRead;
+        return fat.writeChannel(file.ts_getFileId(), position, srcs, offset, length, count);
+    }
+
+    long readFileContext(FATFile file, long position, ByteBuffer[] dsts,
+                         int offset, int length, long count) throws IOException {
+        return fat.readChannel(file.ts_getFileId(), position, dsts, offset, length, count);
+    }
+
+    long transferFileContextTo(FATFile file, long position, long count,
+                               WritableByteChannel target) throws IOException {
+        return fat.transferTo(file.ts_getFileId(), position, count, target);
+    }
+
+    long transferFileContextFrom(FATFile file, ReadableByteChannel src,
+                                 long position, long count) throws IOException {
+        file.ts_touchContent();
+        return fat.transferFrom(file.ts_getFileId(), position, count, src);
+    }
+
+    MappedByteBuffer[] mapFileContext(FATFile file, FileChannel.MapMode mode,
+                                      long position, long size) throws IOException {
+        if (mode == FileChannel.MapMode.READ_WRITE)
+            file.ts_touchContent();
+        return fat.mapChannel(file.ts_getFileId(), position, size, mode);
+    }
+
+    long getHostPosition(FATFile file, long position) throws IOException {
+        return fat.getHostPosition(file.ts_getFileId(), position);
     }
 
     /**
@@ -246,7 +899,8 @@ public class FATFileSystem implements Closeable {
      * @param file the file for drop.
      */
     void ts_dropDirtyFile(FATFile file) throws IOException {
-        synchronized (this) {
+        fsLock.lock();
+        try {
             try {
                 int fileId = file.ts_getFileId();
                 fileCache.remove(fileId);
@@ -256,6 +910,8 @@ public class FATFileSystem implements Closeable {
                 //no rollback from fat level - set dirty inside
                 file.ts_setFileId(FATFile.INVALID_FILE_ID);
             }
+        } finally {
+            fsLock.unlock();
         }
     }
 
@@ -264,11 +920,44 @@ public class FATFileSystem implements Closeable {
         return root.getFolder();
     }
 
+    /**
+     * Signal to start transaction under the lock from [readLock]/[writeLock] pair.
+     *
+     * The thread that holds the [writeLock], or the [readLock] for read
+     * operation, does not need to lock again.
+     *
+     * @return the terminator of nested transaction if the thread holds
+     *         suitable lock from the pair, [null] if the caller has to lock
+     *         the [writeOperation ? writeLock : readLock]
+     * @throws IOException
+     */
+    FATLock begin(boolean writeOperation, FATLock readLock, FATLock writeLock) throws IOException {
+        TransactionContext context = transactionContext.get();
+        begin(context, writeOperation);
+        return (context.holds(writeLock) || (!writeOperation && context.holds(readLock)))
+                ? nestedLock
+                : null;
+    }
+
     /**
      * Signal to start transaction.
      */
-    void begin(boolean writeOperation) throws IOException {
-        synchronized (this) {
+    private void begin(TransactionContext context, boolean writeOperation) throws IOException {
+        if (context.depth > 0) {
+            // nested transaction: the outer one holds the FS
+            // from shutdown and the [dirty] mark on the disk
+            if (writeOperation)
+                fat.checkCanWrite();
+            else
+                fat.checkCanRead();
+            context.depth += 1;
+            return;
+        }
+        fsLock.lock();
+        try {
+            // the growth drains the open transactions, see [grow]
+            while (growthPending)
+                growthDone.awaitUninterruptibly();
             if (fat.state.ordinal() >= FATSystem.SystemState.SHUTDOWN.ordinal())
                 throw new IOException("System down");
             
@@ -287,20 +976,30 @@ public class FATFileSystem implements Closeable {
             // we need unwind nested transactions.
             // [end] will called in any case!
             transactionCounter += 1;
+            context.depth = 1;
+        } finally {
+            fsLock.unlock();
         }
     }
 
+    void lockAcquired(FATLock lock) {
+        transactionContext.get().push(lock);
+    }
+
+    void lockReleased(FATLock lock) {
+        transactionContext.get().pop(lock);
+    }
+
     
     private void checkEmptyTransactionPool() {
         if (transactionCounter == 0) {
             // All transactions are finished.
             // Mark state of FS in external memory by result
             fat.markDiskStateActual();
+            transactionsDone.signalAll();
             if (fat.state == FATSystem.SystemState.SHUTDOWN_REQUEST) {
                 fat.state = FATSystem.SystemState.SHUTDOWN;
-                synchronized (shutdownSignal) {
-                    shutdownSignal.notify();
-                }
+                shutdownSignal.signalAll();
             }
         }
     }
@@ -309,9 +1008,15 @@ public class FATFileSystem implements Closeable {
      * Signal to end transaction.
      */
     void end() {
-        synchronized (this) {
+        TransactionContext context = transactionContext.get();
+        if (--context.depth > 0)
+            return;
+        fsLock.lock();
+        try {
             transactionCounter -= 1;
             checkEmptyTransactionPool();
+        } finally {
+            fsLock.unlock();
         }
     }
 
@@ -328,12 +1033,23 @@ public class FATFileSystem implements Closeable {
      * @return [true] if the file system is ready be closed
      */
     public boolean shutdownRequest() {
-        synchronized (this) {
+        if (!fsLock.isHeldByCurrentThread()) {
+            // the staged bytes have to reach the files before the shutdown
+            try {
+                flushWriteBehind();
+            } catch (IOException e) {
+                ts_logError("Write-behind flush problem: " + e.getMessage());
+            }
+        }
+        fsLock.lock();
+        try {
             if (fat.state.ordinal() < FATSystem.SystemState.SHUTDOWN_REQUEST.ordinal()) {
                 fat.state = FATSystem.SystemState.SHUTDOWN_REQUEST;
             }
             checkEmptyTransactionPool();
             return (fat.state == FATSystem.SystemState.SHUTDOWN);
+        } finally {
+            fsLock.unlock();
         }
     }
 
@@ -341,12 +1057,17 @@ public class FATFileSystem implements Closeable {
      * Waits for the file system shutdown.
      *
      * @throws InterruptedException
-     * @see    java.lang.Object#wait() ()
+     * @see    java.util.concurrent.locks.Condition#await()
      */
     public void waitForShutdown() throws InterruptedException {
         if (!shutdownRequest()) {
-            synchronized (shutdownSignal) {
-                shutdownSignal.wait();
+            fsLock.lock();
+            try {
+                // the signal could come between the request and the wait
+                while (fat.state != FATSystem.SystemState.SHUTDOWN)
+                    shutdownSignal.await();
+            } finally {
+                fsLock.unlock();
             }
         }
     }
@@ -366,16 +1087,15 @@ public class FATFileSystem implements Closeable {
     void ts_updateRootFileRecord(FATFile rootFile) throws IOException {
         FATLock lock = getLockInternal(true);
         boolean success = false;
+        ByteBuffer store = ts_allocateBuffer(FATFile.RECORD_SIZE);
         try {
-            ByteBuffer store = rootFile
-                    .ts_serialize(
-                            ts_allocateBuffer(FATFile.RECORD_SIZE),
-                            getVersion());
+            rootFile.ts_serialize(store, getVersion());
             store.flip();
             fat.writeRootInfo(store);
             // commit
             success = true;
         } finally {
+            ts_releaseBuffer(store);
             if (!success)
                 ts_setDirtyState("Cannot update root folder record", false);
             lock.unlock();
@@ -383,7 +1103,8 @@ public class FATFileSystem implements Closeable {
     }
 
     FATFile ts_createRootFile(int access) throws IOException {
-        synchronized (this) {
+        fsLock.lock();
+        try {
             boolean success = false;
             try {
                 FATFile rootFile = new FATFile(
@@ -400,11 +1121,14 @@ public class FATFileSystem implements Closeable {
                     ts_setDirtyState("Cannot create root folder record", false);
                 }
             }
+        } finally {
+            fsLock.unlock();
         }
     }
 
     public FATFile ts_openRootFile() throws IOException {
-        synchronized (this) {
+        fsLock.lock();
+        try {
             FATFile rootFile = ts_getFileFromCache(FATFile.ROOT_FILE_ID);
             if (rootFile == null) {
                 boolean success = false;
@@ -415,11 +1139,15 @@ public class FATFileSystem implements Closeable {
                             FATFile.ROOT_FILE_ID,
                             FATFile.TYPE_FOLDER);
                     ByteBuffer bf = getRootInfo();
-                    int fileId = bf.getInt();
-                    int type = bf.getInt();
-                    if (fileId == FATFile.ROOT_FILE_ID && type == FATFile.TYPE_FOLDER) {
-                        rootFile.ts_initFromBuffer(bf);
-                        success = true;
+                    try {
+                        int fileId = bf.getInt();
+                        int type = bf.getInt();
+                        if (fileId == FATFile.ROOT_FILE_ID && type == FATFile.TYPE_FOLDER) {
+                            rootFile.ts_initFromBuffer(bf);
+                            success = true;
+                        }
+                    } finally {
+                        ts_releaseBuffer(bf);
                     }
                 } finally {
                     if (!success) {
@@ -429,6 +1157,8 @@ public class FATFileSystem implements Closeable {
                 }
             }
             return rootFile;
+        } finally {
+            fsLock.unlock();
         }
     }
 
@@ -455,10 +1185,7 @@ public class FATFileSystem implements Closeable {
      * @return the folder object
      */
     FATFolder ts_getFolderFromCache(int fileId) {
-        synchronized (this) {
-            WeakReference<FATFolder> r = folderCache.get(fileId);
-            return (r == null) ? null : r.get();
-        }
+        return folderCache.get(fileId);
     }
 
     /**
@@ -468,61 +1195,289 @@ public class FATFileSystem implements Closeable {
      * @return  file object from cache.
      */
     FATFile ts_getFileFromCache(int fileId) {
-        synchronized (this) {
-            WeakReference<FATFile> r = fileCache.get(fileId);
-            return (r == null) ? null : r.get();
-        }
+        return fileCache.get(fileId);
     }
 
 
     void disposeFile(int fileId) {
-        synchronized (this) {
-            fileCache.remove(fileId);
-        }
+        fileCache.dispose(fileId);
     }
     void disposeFolder(int folderId) {
-        synchronized (this) {
-            folderCache.remove(folderId);
+        folderCache.dispose(folderId);
+    }
+
+    void addFolder(FATFolder folder, FATDisposerRecord record) {
+        int folderId = folder.ts_getFolderId();
+        if (!folderCache.add(folderId, folder))
+            throw new Error("Folder hot swap:" + folderId);
+        disposer.addRecord(folder, record);
+    }
+
+    void addFile(FATFile file, FATDisposerRecord record) {
+        int fileId = file.ts_getFileId();
+        if (!fileCache.add(fileId, file))
+            throw new Error("File hot swap:" + fileId);
+        disposer.addRecord(file, record);
+    }
+
+    /**
+     * Sets the number of hot files and folders that are kept
+     * in memory between calls.
+     *
+     * The objects above the limit are held by weak references
+     * and are re-read from disk after GC.
+     *
+     * @param limit the limit for files and the same for folders,
+     *              [0] means no hard links at all
+     */
+    public void setObjectCacheLimit(int limit) {
+        fileCache.setLimit(limit);
+        folderCache.setLimit(limit);
+    }
+
+    public int getObjectCacheLimit() {
+        return fileCache.getLimit();
+    }
+
+    /**
+     * Switches the data access to memory-mapped segments of host file.
+     *
+     * PERFORMANCE HINT: good for the volume that is hot in the page cache
+     * and fits in a few segments of address space.
+     *
+     * @param segmentSize the size of mapped segment,
+     *                    [0] means the host file I/O (default)
+     * @throws IOException if the storage cannot be mapped
+     * @see #DEFAULT_DATA_SEGMENT_SIZE
+     */
+    public void setDataMapping(int segmentSize) throws IOException {
+        fat.setDataMapping(segmentSize);
+    }
+
+    /**
+     * @return the size of mapped data segment, [0] for the host file I/O
+     */
+    public int getDataMapping() {
+        return fat.getDataMapping();
+    }
+
+    /**
+     * Sets the size of in-process cache for file content.
+     *
+     * The cache keeps whole clusters in native memory and serves
+     * the short reads without host call. Folders and small files
+     * stay in cache longer. The writes go through the cache to host,
+     * so the host file is always actual.
+     *
+     * PERFORMANCE HINT: useful when the host page cache share is tight.
+     * Does not work together with [FATFile.map] in read-write mode.
+     *
+     * @param size the cache size in bytes, [0] switches the cache off (default)
+     * @throws IOException if there is read-write mapped file
+     */
+    public void setClusterCacheSize(long size) throws IOException {
+        fat.setClusterCache(size);
+    }
+
+    public long getClusterCacheSize() {
+        return fat.getClusterCache();
+    }
+
+    public long getClusterCacheHitCount() {
+        return fat.getClusterCacheHitCount();
+    }
+
+    public long getClusterCacheMissCount() {
+        return fat.getClusterCacheMissCount();
+    }
+
+    /**
+     * Sets the group commit window.
+     *
+     * The first [FATFile.force] call waits for the window, and all
+     * the force calls that come in the window share one data sync and
+     * one FAT sync.
+     *
+     * PERFORMANCE HINT: the calls that come during the sync share the next
+     * one anyway; the window makes the groups bigger for the price of
+     * the single call latency.
+     *
+     * @param delay the window in microseconds, [0] means no wait (default)
+     */
+    public void setGroupCommitDelay(long delay) {
+        fat.setCommitDelay(TimeUnit.MICROSECONDS.toNanos(delay));
+    }
+
+    public long getGroupCommitDelay() {
+        return TimeUnit.NANOSECONDS.toMicros(fat.getCommitDelay());
+    }
+
+    /**
+     * Returns the number of sync requests by [FATFile.force] and
+     * the channel durability policies.
+     */
+    public long getSyncRequestCount() {
+        return fat.getSyncRequestCount();
+    }
+
+    /**
+     * Returns the number of storage syncs: the [getSyncRequestCount]
+     * requests share the syncs.
+     */
+    public long getSyncCount() {
+        return fat.getSyncCount();
+    }
+
+    /**
+     * Sets the limit of sequential read-ahead window.
+     *
+     * The channel that reads the file sequentially by [FATFileChannel.read]
+     * gets the next part of the file in background, the window grows
+     * while the reader consumes it. The new value works for the channels
+     * opened after the call.
+     *
+     * PERFORMANCE HINT: useful for streaming of fragmented files.
+     * The prefetch holds the file read lock for a short time, so the
+     * concurrent [FATFile.tryLockThrow] for write could fail.
+     *
+     * @param size the window limit in bytes, [0] switches the read-ahead off (default)
+     * @see #DEFAULT_READ_AHEAD_SIZE
+     */
+    public void setReadAheadSize(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Negative read-ahead size");
+        readAheadSize = size;
+    }
+
+    public int getReadAheadSize() {
+        return readAheadSize;
+    }
+
+    /**
+     * Defragments the files in the caller thread.
+     *
+     * The file chains are moved to contiguous runs of clusters,
+     * the busy files are skipped, see [FATDefragmenter].
+     *
+     * @return the number of moved files
+     * @throws IOException
+     */
+    public int defragment() throws IOException {
+        return new FATDefragmenter(this, fat, 0).run();
+    }
+
+    /**
+     * Starts the defragmentation pass in background, see [getIOExecutor].
+     *
+     * PERFORMANCE HINT: sequential reads of the aged storage go by
+     * long host reads again. The rate limit keeps the foreground I/O
+     * almost as is: the file and the FAT are free between the copy steps.
+     *
+     * @param rate the copy rate limit in bytes per second, [0] for no limit
+     * @return [false] if the pass is in action or the system is going down
+     */
+    public boolean startDefragmentation(long rate) {
+        final FATDefragmenter pass = new FATDefragmenter(this, fat, rate);
+        fsLock.lock();
+        try {
+            if (defragmenter != null || defragmentationClosed
+                    || fat.state.ordinal() >= FATSystem.SystemState.SHUTDOWN_REQUEST.ordinal())
+                return false;
+            defragmenter = pass;
+        } finally {
+            fsLock.unlock();
+        }
+        boolean success = false;
+        try {
+            getIOExecutor().execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        pass.run();
+                    } catch (IOException e) {
+                        ts_logError("Defragmentation problem: " + e.getMessage());
+                    } finally {
+                        endDefragmentation();
+                    }
+                }
+            });
+            success = true;
+        } catch (RejectedExecutionException e) {
+            // the system is going down
+        } finally {
+            if (!success)
+                endDefragmentation();
+        }
+        return success;
+    }
+
+    /**
+     * Stops the background defragmentation pass, waits for the current step.
+     */
+    public void stopDefragmentation() {
+        stopDefragmentation(false);
+    }
+
+    /**
+     * @return [true] if the background defragmentation pass is in action
+     */
+    public boolean isDefragmenting() {
+        fsLock.lock();
+        try {
+            return defragmenter != null;
+        } finally {
+            fsLock.unlock();
         }
     }
 
-    void addFolder(FATFolder folder, FATDisposerRecord disposer) {
-        synchronized (this) {
-            int folderId = folder.ts_getFolderId();
-            if (ts_getFolderFromCache(folderId) != null)
-                throw new Error("Folder hot swap:" + folderId);
-            folderCache.put(folderId, new WeakReference<>(folder));
-            FATDisposer.addRecord(folder, disposer);
+    private void stopDefragmentation(boolean close) {
+        fsLock.lock();
+        try {
+            if (close)
+                defragmentationClosed = true;
+            if (defragmenter != null)
+                defragmenter.stop();
+            while (defragmenter != null)
+                defragmentationDone.awaitUninterruptibly();
+        } finally {
+            fsLock.unlock();
         }
     }
 
-    void addFile(FATFile file, FATDisposerRecord disposer) {
-        synchronized (this) {
-            int fileId = file.ts_getFileId();
-            if (ts_getFileFromCache(fileId) != null)
-                throw new Error("File hot swap:" + fileId);
-            fileCache.put(fileId, new WeakReference<>(file));
-            FATDisposer.addRecord(file, disposer);
+    private void endDefragmentation() {
+        fsLock.lock();
+        try {
+            defragmenter = null;
+            defragmentationDone.signalAll();
+        } finally {
+            fsLock.unlock();
         }
     }
 
     //{debug-test
     int getFileCacheSize() {
-        synchronized (this) {
-            return fileCache.size();
-        }
+        disposer.expungeAll();
+        return fileCache.size();
     }
     
     int getFolderCacheSize() {
-        synchronized (this) {
-            return folderCache.size();
-        }
+        disposer.expungeAll();
+        return folderCache.size();
+    }
+
+    int getDisposerSize() {
+        disposer.expungeAll();
+        return disposer.size();
     }
 
     void force() throws IOException {
         fat.force();
     }
 
+    int getRunCount(FATFile file) throws IOException {
+        int startCluster = file.ts_getFileId();
+        return fat.getRunCount(startCluster, fat.getChainLength(startCluster));
+    }
+
     void copyFile(FATFile src, FATFile dst) throws IOException {
         //PERFORMANCE HINT: "sparse files", shallow copy till fist write.
         //PERFORMANCE HINT: non-blocking copy procedure. Not easy-to-understand, but could be effective.
@@ -552,6 +1507,8 @@ public class FATFileSystem implements Closeable {
                     wasCopied += wasWritten;
                 }
             }
+        } finally {
+            fat.releaseBuffer(fragment);
         }
     }
 
@@ -107,8 +107,8 @@ public class FATFolder {
         FATFile ret = ts_fs().ts_getFileFromCache(fileId);
         if (ret == null) {
             boolean success = false;
+            ByteBuffer fileRecord = ts_fs().ts_allocateBuffer(FATFile.RECORD_SIZE);
             try (FATFileChannel folderContent = fatFile.getChannelInternal(false)) {
-                ByteBuffer fileRecord = ts_fs().ts_allocateBuffer(FATFile.RECORD_SIZE);
                 int wasRead = folderContent
                         .position(index * FATFile.RECORD_SIZE)
                         .read(fileRecord);
@@ -124,6 +124,7 @@ public class FATFolder {
                     success = true;
                 }
             } finally {
+                ts_fs().ts_releaseBuffer(fileRecord);
                 if (!success) {
                     //primitive rollback - cannot restore (not [ts_] function call in action).
                     ts_fs().ts_setDirtyState("Cannot read folder record", false);
@@ -309,11 +310,9 @@ public class FATFolder {
             sb.append(fatFile.timeCreate());
             sb.append("\" lastModified=\"");
             sb.append(fatFile.lastModified());
-            synchronized (this) {
-                if (fatFile.isFrozen()) {
-                    sb.append("\" FROZEN=\"");
-                    sb.append(true);
-                }
+            if (fatFile.isFrozen()) {
+                sb.append("\" FROZEN=\"");
+                sb.append(true);
             }
             sb.append("\">\n");
             byte[] bcontext = new byte[16];
@@ -426,9 +425,9 @@ public class FATFolder {
 
     void ts_rl_readContent() throws IOException {
         boolean success = false;
+        ByteBuffer bf = ts_fs().ts_allocateBuffer(FATFile.RECORD_SIZE);
         try {
             try (FATFileChannel folderContent = fatFile.getChannelInternal(false)) {
-                ByteBuffer bf = ts_fs().ts_allocateBuffer(FATFile.RECORD_SIZE);
                 long storageSize = fatFile.length();
                 while (folderContent.position() < storageSize) {
                     folderContent.read(bf);
@@ -452,6 +451,7 @@ public class FATFolder {
                 success = true;
             }
         } finally {
+            ts_fs().ts_releaseBuffer(bf);
             if (!success) {
                 //primitive rollback - cannot restore.
                 ts_fs().ts_setDirtyState("Cannot read folder content", false);
@@ -461,9 +461,9 @@ public class FATFolder {
 
     private void ts_wl_writeContent(ArrayList<FATFile> childFATFiles) throws IOException {
         boolean success = false;
+        ByteBuffer bf = ts_fs().ts_allocateBuffer(FATFile.RECORD_SIZE);
         try {
             try (FATFileChannel folderContent = fatFile.getChannelInternal(false)) {
-                ByteBuffer bf = ts_fs().ts_allocateBuffer(FATFile.RECORD_SIZE);
                 for (FATFile file : childFATFiles) {
                     bf.position(0);
                     file.ts_serialize(bf, ts_fs().getVersion());
@@ -476,6 +476,7 @@ public class FATFolder {
                 success = true;
             }
         } finally {
+            ts_fs().ts_releaseBuffer(bf);
             if (!success) {
                 //primitive rollback - cannot restore.
                 ts_fs().ts_setDirtyState("Cannot write folder content", false);
@@ -488,14 +489,13 @@ public class FATFolder {
      */
     private void ts_wl_updateFileRecord(int index, FATFile updateFile, boolean dirtyOnFail) throws IOException {
         boolean success = false;
+        ByteBuffer bf = ts_fs().ts_allocateBuffer(FATFile.RECORD_SIZE);
         try (FATFileChannel folderContent = fatFile.getChannelInternal(false)) {
             int wasWritten = folderContent
                 .position(index * FATFile.RECORD_SIZE)
                 .write(
                         (ByteBuffer) updateFile
-                                .ts_serialize(
-                                        ts_fs().ts_allocateBuffer(FATFile.RECORD_SIZE),
-                                        ts_fs().getVersion())
+                                .ts_serialize(bf, ts_fs().getVersion())
                                 .flip());
 
             if (wasWritten != FATFile.RECORD_SIZE)
@@ -504,6 +504,7 @@ public class FATFolder {
             // commit
             success = true;
         } finally {
+            ts_fs().ts_releaseBuffer(bf);
             //can fail on empty record reservation.
             if (!success && dirtyOnFail) {
                 //primitive rollback - cannot restore (not [ts_] function call in action).
@@ -1,6 +1,8 @@
 package com.test;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
 /**
  * Forward Only Allocator. debug/maintenance
@@ -14,11 +16,25 @@ import java.io.IOException;
  *
  * Improvements: for write-mostly system - support the hint [startOffset]
  * as last allocated index.
+ *
+ * The storage with region map (see [FATRegionMap]) skips the full regions
+ * by the free-space summary without reading their entries.
  */
 class FATForwardOnlyClusterAllocator implements FATClusterAllocator {
     // Diagnostic
     final static int CLUSTER_UNUSED    = 0x0BADBEEF;
     final static int CLUSTER_DEALLOC   = 0x0CCCCCCC;
+    // the entries of single bulk put on format
+    private final static int FORMAT_BLOCK = 1024;
+    private final static FATSystem.EntryPattern UNUSED_PATTERN = new FATSystem.EntryPattern() {
+        @Override
+        void fill(IntBuffer entries, int first) {
+            int[] block = new int[Math.min(entries.remaining(), FORMAT_BLOCK)];
+            Arrays.fill(block, CLUSTER_UNUSED);
+            while (entries.hasRemaining())
+                entries.put(block, 0, Math.min(block.length, entries.remaining()));
+        }
+    };
 
     private final FATSystem fs;
 
@@ -33,9 +49,15 @@ class FATForwardOnlyClusterAllocator implements FATClusterAllocator {
     @Override
     public void initFAT() throws IOException {
         // init FAT32
-        for (int i = 0; i < fs.clusterCount; ++i) {
-            fs.putFatEntry(i, CLUSTER_UNUSED);
-        }
+        fs.formatFat(UNUSED_PATTERN, 0, fs.clusterCount);
+    }
+
+    /**
+     * The new clusters are free as never used.
+     */
+    @Override
+    public void growFAT(int from, int to) throws IOException {
+        fs.formatFat(UNUSED_PATTERN, from, to);
     }
 
     /**
@@ -67,6 +89,14 @@ class FATForwardOnlyClusterAllocator implements FATClusterAllocator {
                 if (currentOffset == endOfLoop)
                     break;
             }
+            if (fs.isInFullRegion(currentOffset)) {
+                // PERFORMANCE HINT: the free-space summary skips the full region
+                int regionEnd = fs.getRegionEnd(currentOffset);
+                if (endOfLoop > currentOffset && endOfLoop <= regionEnd)
+                    break;
+                currentOffset = regionEnd;
+                continue;
+            }
 
             int fatEntry = fs.getFatEntry(currentOffset);
             if ((fatEntry & CLUSTER_STATUS) == CLUSTER_FREE) {
@@ -75,7 +105,7 @@ class FATForwardOnlyClusterAllocator implements FATClusterAllocator {
 
                 // "God, save EOC on power down!"
                 // mark as EOC
-                --fs.freeClusterCount;
+                fs.clusterAllocated(currentOffset);
                 fs.putFatEntry(currentOffset, CLUSTER_EOC);
                 if (tailOffset != -1) {
                     // mark as ALLOCATED with forward index
@@ -102,6 +132,27 @@ class FATForwardOnlyClusterAllocator implements FATClusterAllocator {
         throw new IOException("Disk full.");
     }
 
+    /**
+     * Allocates the given free clusters as a chain in index order.
+     *
+     * Good  point: O(count), the free clusters are found by status.
+     */
+    @Override
+    public boolean allocateRun(int first, int count) throws IOException {
+        int last = first + count - 1;
+        for (int cluster = first; cluster <= last; ++cluster) {
+            int fatEntry = fs.getFatEntry(cluster);
+            if (fatEntry != CLUSTER_UNUSED && fatEntry != CLUSTER_DEALLOC)
+                fs.setDirtyState("Allocation of busy cluster. Cluster#:" + cluster
+                        + " Value:" + fatEntry, true);
+            fs.clusterAllocated(cluster);
+            fs.putFatEntry(cluster, (cluster == last)
+                    ? CLUSTER_EOC
+                    : CLUSTER_ALLOCATED | (cluster + 1));
+        }
+        return true;
+    }
+
     /**
      * Frees chain that start from [headCluster] cluster.
      *
@@ -132,7 +183,7 @@ class FATForwardOnlyClusterAllocator implements FATClusterAllocator {
             if ((fatEntry & CLUSTER_ALLOCATED) == CLUSTER_ALLOCATED) {
                 // mark as DEALLOC
                 fs.putFatEntry(headCluster, CLUSTER_DEALLOC);
-                ++fs.freeClusterCount;
+                fs.clusterFreed(headCluster);
                 if ((fatEntry & CLUSTER_EOC) == CLUSTER_EOC)
                     break;
                 headCluster = fatEntry & CLUSTER_INDEX;
@@ -158,4 +209,35 @@ class FATForwardOnlyClusterAllocator implements FATClusterAllocator {
     public void force() {
         //nothing to do
     }
+
+    /**
+     * Marks the clusters out of [used] as deallocated.
+     */
+    @Override
+    public int rebuildFreeSpace(FATMaintenance.ClusterMap used) {
+        int free = 0;
+        for (int i = 0; i < fs.clusterCount; ++i) {
+            if (used.isMarked(i))
+                continue;
+            int fatEntry = fs.getFatEntry(i);
+            if (fatEntry != CLUSTER_UNUSED && fatEntry != CLUSTER_DEALLOC)
+                fs.putFatEntry(i, CLUSTER_DEALLOC);
+            ++free;
+        }
+        return free;
+    }
+
+    /**
+     * Checks the format of FAT entry.
+     */
+    @Override
+    public boolean isValidEntry(int fatEntry) {
+        switch (fatEntry & CLUSTER_STATUS) {
+        case CLUSTER_FREE:
+            return fatEntry == CLUSTER_UNUSED || fatEntry == CLUSTER_DEALLOC;
+        case CLUSTER_ALLOCATED:
+            return (fatEntry & CLUSTER_INDEX) < fs.clusterCount;
+        }
+        return fatEntry == CLUSTER_EOC;
+    }
 }
@@ -1,6 +1,7 @@
 package com.test;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
 
 /**
  * Classical heap-on-array algorithm.
@@ -15,6 +16,10 @@ import java.io.IOException;
 
 class FATFreeListClusterAllocator implements FATClusterAllocator {
     final static int CLUSTER_FREE_EOC = 0xC8000000;
+    // the entries of single bulk put on format
+    private final static int FORMAT_BLOCK = 1024;
+    // the free list walk of [allocateRun], keeps the FAT lock short
+    final static int RUN_WALK_LIMIT = 1 << 16;
 
     private final FATSystem fs;
     private int freeListHead;
@@ -30,14 +35,22 @@ class FATFreeListClusterAllocator implements FATClusterAllocator {
      */
     @Override
     public void initFAT() throws IOException {
-        // init FAT32
-        for (int i = 0; i < fs.clusterCount - 1; ++i)
-            fs.putFatEntry(i, CLUSTER_FREE | (i + 1));
-
-        fs.putFatEntry(fs.clusterCount - 1, CLUSTER_FREE_EOC);
+        // init FAT32: the list of all clusters in index order
+        fs.formatFat(new ListPattern(fs.clusterCount, CLUSTER_FREE_EOC), 0, fs.clusterCount);
         freeListHead = 0;
     }
 
+    /**
+     * Puts the new clusters in index order to the head of free list.
+     */
+    @Override
+    public void growFAT(int from, int to) throws IOException {
+        fs.formatFat(new ListPattern(to, (freeListHead < 0)
+                ? CLUSTER_FREE_EOC
+                : CLUSTER_FREE | freeListHead), from, to);
+        freeListHead = from;
+    }
+
     /**
      * Allocates a cluster chain. Classical heap-on-array algorithm.
      *
@@ -63,7 +76,7 @@ class FATFreeListClusterAllocator implements FATClusterAllocator {
 
                 // "God, save EOC on power down!"
                 // mark as EOC
-                --fs.freeClusterCount;
+                fs.clusterAllocated(freeListHead);
                 fs.putFatEntry(freeListHead, CLUSTER_EOC);
                 if (tailOffset != -1) {
                     // mark as ALLOCATED with forward index
@@ -93,6 +106,71 @@ class FATFreeListClusterAllocator implements FATClusterAllocator {
         throw new IOException("Disk full.");
     }
 
+    /**
+     * Allocates the given free clusters as a chain in index order.
+     *
+     * Bad   point: the clusters are unlinked from the list, the run
+     *            deeper than [RUN_WALK_LIMIT] entries is refused.
+     * Good  point: O(RUN_WALK_LIMIT)
+     */
+    @Override
+    public boolean allocateRun(int first, int count) throws IOException {
+        int last = first + count - 1;
+        if (!isNearHead(first, last, count))
+            return false;
+        int found = 0;
+        int prev = -1;
+        int cluster = freeListHead;
+        while (cluster >= 0 && found < count) {
+            int fatEntry = fs.getFatEntry(cluster);
+            if ((fatEntry & CLUSTER_STATUS) != CLUSTER_FREE && fatEntry != CLUSTER_FREE_EOC) {
+                fs.setDirtyState("Wrong value in free list. Cluster#:" + cluster
+                        + " Value:" + fatEntry, true);
+            }
+            int next = (fatEntry == CLUSTER_FREE_EOC)
+                ? -1
+                : (fatEntry & CLUSTER_INDEX);
+            if (cluster >= first && cluster <= last) {
+                if (prev == -1) {
+                    freeListHead = next;
+                } else {
+                    fs.putFatEntry(prev, (next == -1)
+                            ? CLUSTER_FREE_EOC
+                            : CLUSTER_FREE | next);
+                }
+                fs.clusterAllocated(cluster);
+                fs.putFatEntry(cluster, (cluster == last)
+                        ? CLUSTER_EOC
+                        : CLUSTER_ALLOCATED | (cluster + 1));
+                ++found;
+            } else {
+                prev = cluster;
+            }
+            cluster = next;
+        }
+        if (found != count)
+            fs.setDirtyState("Allocation of clusters out of free list. Cluster#:" + first, true);
+        return true;
+    }
+
+    /**
+     * @return [true] if the clusters from [first] to [last] are in
+     *         the first [RUN_WALK_LIMIT] entries of free list
+     */
+    private boolean isNearHead(int first, int last, int count) {
+        int found = 0;
+        int cluster = freeListHead;
+        for (int i = 0; i < RUN_WALK_LIMIT && cluster >= 0; ++i) {
+            if (cluster >= first && cluster <= last && ++found == count)
+                return true;
+            int fatEntry = fs.getFatEntry(cluster);
+            if ((fatEntry & CLUSTER_STATUS) != CLUSTER_FREE)
+                break;
+            cluster = fatEntry & CLUSTER_INDEX;
+        }
+        return false;
+    }
+
     /**
      * Frees chain that start from [headCluster] cluster.
      *
@@ -130,7 +208,7 @@ class FATFreeListClusterAllocator implements FATClusterAllocator {
                     fs.putFatEntry(headCluster, CLUSTER_FREE | freeListHead);
                     freeListHead = headCluster;
                 }
-                ++fs.freeClusterCount;
+                fs.clusterFreed(headCluster);
                 if ((fatEntry & CLUSTER_EOC) == CLUSTER_EOC)
                     break;
                 headCluster = fatEntry & CLUSTER_INDEX;
@@ -156,4 +234,67 @@ class FATFreeListClusterAllocator implements FATClusterAllocator {
     public void force() throws IOException {
         fs.putFatEntry(-1, freeListHead);
     }
+
+    /**
+     * Rebuilds the free list in index order.
+     */
+    @Override
+    public int rebuildFreeSpace(FATMaintenance.ClusterMap used) throws IOException {
+        int free = 0;
+        int tail = -1;
+        freeListHead = -1;
+        for (int i = 0; i < fs.clusterCount; ++i) {
+            if (used.isMarked(i))
+                continue;
+            if (tail == -1) {
+                freeListHead = i;
+            } else {
+                fs.putFatEntry(tail, CLUSTER_FREE | i);
+            }
+            tail = i;
+            ++free;
+        }
+        if (tail != -1)
+            fs.putFatEntry(tail, CLUSTER_FREE_EOC);
+        force();
+        return free;
+    }
+
+    /**
+     * Checks the format of FAT entry.
+     */
+    @Override
+    public boolean isValidEntry(int fatEntry) {
+        switch (fatEntry & CLUSTER_STATUS) {
+        case CLUSTER_FREE:
+        case CLUSTER_ALLOCATED:
+            return (fatEntry & CLUSTER_INDEX) < fs.clusterCount;
+        }
+        return fatEntry == CLUSTER_EOC || fatEntry == CLUSTER_FREE_EOC;
+    }
+
+    /**
+     * The list of clusters in index order, the last one links to [tail].
+     */
+    private static class ListPattern extends FATSystem.EntryPattern {
+        private final int end;
+        private final int tail;
+
+        ListPattern(int end, int tail) {
+            this.end = end;
+            this.tail = tail;
+        }
+
+        @Override
+        void fill(IntBuffer entries, int first) {
+            int[] block = new int[Math.min(entries.remaining(), FORMAT_BLOCK)];
+            int next = first + 1;
+            while (entries.hasRemaining()) {
+                int count = Math.min(block.length, entries.remaining());
+                for (int i = 0; i < count; ++i, ++next)
+                    block[i] = (next == end) ? tail : CLUSTER_FREE | next;
+                entries.put(block, 0, count);
+            }
+        }
+    }
 }
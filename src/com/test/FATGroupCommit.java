@@ -0,0 +1,146 @@
+package com.test;
+
+import java.io.IOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit of the storage sync.
+ *
+ * Each sync request takes a ticket. The first requester becomes the leader:
+ * it waits for the [commitDelay], takes all tickets issued so far as a batch
+ * and makes one data sync and one FAT sync for the batch
+ * (see [FATSystem.syncStorage]). The requests that come during the sync
+ * wait for it and form the next batch, so N concurrent requests cost two
+ * syncs at most. The batch failure goes to all its members: each member
+ * keeps its [Batch] with the result.
+ */
+class FATGroupCommit {
+    private final FATSystem fat;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition done = lock.newCondition();
+
+    // guarded by [lock]
+    // the batch that takes the new requests
+    private Batch open = new Batch();
+    private boolean syncing;
+    private long requestCount;
+    private long syncCount;
+
+    private volatile long commitDelay;
+
+    FATGroupCommit(FATSystem fat) {
+        this.fat = fat;
+    }
+
+    /**
+     * Makes the written data durable.
+     *
+     * @param updateMetadata [true] if the host file metadata have to be synced too
+     * @throws IOException if the sync of the batch failed
+     */
+    void sync(boolean updateMetadata) throws IOException {
+        lock.lock();
+        try {
+            Batch batch = open;
+            ++requestCount;
+            if (updateMetadata)
+                batch.metadata = true;
+            while (!batch.completed) {
+                if (syncing) {
+                    done.awaitUninterruptibly();
+                    continue;
+                }
+                lead();
+            }
+            if (batch.failure != null)
+                throw new IOException("Group sync failed", batch.failure);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Syncs the open batch.
+     *
+     * Have to be called under [lock], releases it for the sync.
+     */
+    private void lead() {
+        syncing = true;
+        Batch batch = open;
+        IOException error = null;
+        boolean success = false;
+        lock.unlock();
+        try {
+            long delay = commitDelay;
+            if (delay > 0) {
+                // PERFORMANCE HINT: the window for the followers
+                LockSupport.parkNanos(delay);
+            }
+            lock.lock();
+            try {
+                // the next requests go to the next batch
+                open = new Batch();
+            } finally {
+                lock.unlock();
+            }
+            fat.syncStorage(batch.metadata);
+            success = true;
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            lock.lock();
+            if (open == batch) {
+                // failed before the batch was closed
+                open = new Batch();
+            }
+            ++syncCount;
+            if (!success)
+                batch.failure = (error != null) ? error : new IOException("Storage sync was interrupted");
+            batch.completed = true;
+            syncing = false;
+            done.signalAll();
+        }
+    }
+
+    /**
+     * @param delay the time in nanoseconds the leader waits for followers
+     */
+    void setCommitDelay(long delay) {
+        if (delay < 0)
+            throw new IllegalArgumentException("Negative commit delay");
+        commitDelay = delay;
+    }
+
+    long getCommitDelay() {
+        return commitDelay;
+    }
+
+    long getRequestCount() {
+        lock.lock();
+        try {
+            return requestCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getSyncCount() {
+        lock.lock();
+        try {
+            return syncCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The requests synced by one leader, guarded by [lock].
+     */
+    private static class Batch {
+        boolean metadata;
+        boolean completed;
+        IOException failure;
+    }
+}
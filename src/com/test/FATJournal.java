@@ -0,0 +1,260 @@
+package com.test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Undo journal of the metadata changes.
+ *
+ * The journal takes the tail of host file after the [Data Section]
+ * (see [FATSystem.VERSION_JOURNAL]) and is mapped to memory. Each change
+ * of FAT, root record or folder content is recorded with its previous
+ * bytes right before the change. The records live till the next quiescent
+ * point of the file system, where no transaction is open and the storage
+ * is consistent (see [FATSystem.markDiskStateActual]); there the journal
+ * restarts with the next epoch.
+ *
+ * After the crash with open transactions the storage keeps [-1] free
+ * cluster count. On open the records of the last epoch are rolled back
+ * in reverse order, so the storage returns to the last quiescent state
+ * in time proportional to the journal, not the volume.
+ *
+ * The file content is not journaled, so the cluster freed in the epoch
+ * is not given to other chain till the next epoch: the rollback would
+ * return the old chain with the bytes of new one. The reuse of such
+ * cluster marks the journal as unusable (see [logFree], [logReuse]),
+ * the storage falls back to maintenance after the crash.
+ *
+ * The journal covers the process crash: the host page cache keeps both
+ * the journal and the changes. The host crash is not covered: the pages
+ * could reach the disk in any order.
+ *
+ * Layout: [magic][epoch][state][free cluster count] head, then records
+ * [epoch][length][host position][previous bytes]. The epoch of the record
+ * is written last, a torn or stale record ends the journal.
+ *
+ * Not thread-safe. The owner serializes the calls (see [FATSystem.fatLock]).
+ */
+class FATJournal implements Closeable {
+    final static int MAGIC_WORD = 0x6a726e6c; //jrnl
+    final static int HEAD_SIZE = 16;
+    final static int RECORD_HEAD_SIZE = 16;
+
+    private final static int EPOCH_OFFSET = 4;
+    private final static int STATE_OFFSET = 8;
+    private final static int FREE_COUNT_OFFSET = 12;
+    private final static int STATE_VALID = 1;
+    // some changes were not recorded, the rollback is impossible
+    private final static int STATE_OVERFLOW = 2;
+
+    private MappedByteBuffer zone;
+    private int epoch;
+    private int tail = HEAD_SIZE;
+    private boolean overflow;
+    // the clusters freed in the current epoch
+    private final BitSet freed = new BitSet();
+
+    /**
+     * @param zone the mapped journal region in the storage byte order
+     */
+    FATJournal(MappedByteBuffer zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * Formats the region, the journal starts empty.
+     *
+     * @param freeClusterCount the free cluster count of the consistent state
+     */
+    void init(int freeClusterCount) {
+        zone.putInt(0, MAGIC_WORD);
+        epoch = 0;
+        reset(freeClusterCount);
+    }
+
+    /**
+     * Reads the head of the region.
+     *
+     * @return [true] if the journal could be rolled back
+     * @throws IOException if the region is not a journal
+     */
+    boolean load() throws IOException {
+        if (zone.getInt(0) != MAGIC_WORD)
+            throw new IOException("Wrong journal. That is not FFS journal");
+        epoch = zone.getInt(EPOCH_OFFSET);
+        return zone.getInt(STATE_OFFSET) == STATE_VALID;
+    }
+
+    /**
+     * @return the free cluster count of the state that the rollback restores
+     */
+    int getFreeClusterCount() {
+        return zone.getInt(FREE_COUNT_OFFSET);
+    }
+
+    int getSize() {
+        return zone.capacity();
+    }
+
+    /**
+     * @return the number of bytes in records of the current epoch
+     */
+    int getUsed() {
+        return tail - HEAD_SIZE;
+    }
+
+    /**
+     * Starts new epoch: the current state is consistent.
+     *
+     * @param freeClusterCount the free cluster count of the state
+     */
+    void reset(int freeClusterCount) {
+        ++epoch;
+        tail = HEAD_SIZE;
+        overflow = false;
+        freed.clear();
+        zone.putInt(FREE_COUNT_OFFSET, freeClusterCount);
+        zone.putInt(HEAD_SIZE, 0);
+        // the stale records of old epoch are not valid anymore
+        zone.putInt(EPOCH_OFFSET, epoch);
+        zone.putInt(STATE_OFFSET, STATE_VALID);
+    }
+
+    /**
+     * Marks the journal as unusable till the next [reset].
+     */
+    void invalidate() {
+        overflow = true;
+        zone.putInt(STATE_OFFSET, STATE_OVERFLOW);
+    }
+
+    /**
+     * Remembers the cluster freed in the current epoch.
+     *
+     * @param cluster the index of the freed cluster
+     */
+    void logFree(int cluster) {
+        if (!overflow)
+            freed.set(cluster);
+    }
+
+    /**
+     * Checks the allocated cluster: the reuse of the cluster freed
+     * in the current epoch makes the rollback impossible.
+     *
+     * @param cluster the index of the allocated cluster
+     */
+    void logReuse(int cluster) {
+        if (!overflow && freed.get(cluster)) {
+            // PERFORMANCE HINT: the crash before the next quiescent point
+            // needs maintenance
+            invalidate();
+        }
+    }
+
+    /**
+     * Records the FAT entry before the change.
+     *
+     * @param hostPos the position of the entry in host file
+     * @param value the entry value before the change
+     */
+    void logInt(long hostPos, int value) {
+        if (!reserve(FATSystem.FAT_E_SIZE))
+            return;
+        zone.putInt(tail + RECORD_HEAD_SIZE, value);
+        commitRecord(hostPos, FATSystem.FAT_E_SIZE);
+    }
+
+    /**
+     * Records the bytes before the change.
+     *
+     * @param hostPos the position of the bytes in host file
+     * @param before the bytes before the change, from [position] to [limit],
+     *               the position is not changed
+     */
+    void log(long hostPos, ByteBuffer before) {
+        int len = before.remaining();
+        if (!reserve(len))
+            return;
+        zone.position(tail + RECORD_HEAD_SIZE);
+        zone.put(before.duplicate());
+        commitRecord(hostPos, len);
+    }
+
+    /**
+     * Restores the previous bytes of the records in reverse order.
+     *
+     * @param fat the storage to restore
+     * @return the number of rolled back records
+     * @throws IOException
+     */
+    int rollback(FATSystem fat) throws IOException {
+        int[] records = new int[64];
+        int count = 0;
+        int pos = HEAD_SIZE;
+        while (pos + RECORD_HEAD_SIZE <= zone.capacity()
+                && zone.getInt(pos) == epoch) {
+            int len = zone.getInt(pos + 4);
+            if (len < 0 || pos + RECORD_HEAD_SIZE + len > zone.capacity())
+                break;
+            if (count == records.length)
+                records = Arrays.copyOf(records, count*2);
+            records[count++] = pos;
+            pos += RECORD_HEAD_SIZE + len;
+        }
+        for (int i = count - 1; i >= 0; --i) {
+            int record = records[i];
+            int len = zone.getInt(record + 4);
+            long hostPos = zone.getLong(record + 8);
+            zone.limit(record + RECORD_HEAD_SIZE + len).position(record + RECORD_HEAD_SIZE);
+            fat.restoreJournaled(hostPos, zone.slice());
+            zone.clear();
+        }
+        return count;
+    }
+
+    /**
+     * Unmaps the region. The object cannot be used after the call.
+     *
+     * @return [false] if the region could not be unmapped explicitly
+     */
+    boolean unmap() {
+        MappedByteBuffer region = zone;
+        // critical point: the region have to be unreachable ASAP
+        zone = null;
+        return region == null || FATSystem.unmap(region);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!unmap())
+            throw new IOException("Cannot unmap the journal.");
+    }
+
+    private boolean reserve(int len) {
+        if (overflow)
+            return false;
+        if (tail + RECORD_HEAD_SIZE + len > zone.capacity()) {
+            // PERFORMANCE HINT: long transactions need bigger journal
+            invalidate();
+            return false;
+        }
+        return true;
+    }
+
+    private void commitRecord(long hostPos, int len) {
+        zone.putInt(tail + 4, len);
+        zone.putLong(tail + 8, hostPos);
+        int next = tail + RECORD_HEAD_SIZE + len;
+        // the stale bytes after the record could look like a record
+        if (next + 4 <= zone.capacity())
+            zone.putInt(next, 0);
+        // the record is valid from here
+        zone.putInt(tail, epoch);
+        tail = next;
+    }
+}
@@ -4,6 +4,9 @@ import java.util.concurrent.locks.Lock;
 
 /**
  * Transaction terminator with the lock
+ *
+ * Holds no per-call state, so the owner keeps one instance
+ * for each lock mode and returns it for every lock call.
  */
 public class FATLock {
     private final Lock lock;
@@ -14,8 +17,24 @@ public class FATLock {
         this.fs = fs;
     }
 
+    void lock() {
+        lock.lock();
+        fs.lockAcquired(this);
+    }
+
+    boolean tryLock() {
+        if (!lock.tryLock())
+            return false;
+        fs.lockAcquired(this);
+        return true;
+    }
+
     public void unlock() {
-        lock.unlock();
+        // [null] lock for nested transaction under the lock of outer one
+        if (lock != null) {
+            fs.lockReleased(this);
+            lock.unlock();
+        }
         fs.end();
     }
 }
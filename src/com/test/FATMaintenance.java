@@ -0,0 +1,429 @@
+package com.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Check and repair engine of the storage in maintenance mode.
+ *
+ * The folder tree is walked from the root record by [ForkJoinPool]:
+ * each folder and each long file chain is a task. The chain is validated
+ * against FAT and its length against the record size; each cluster
+ * of the chain is marked in the concurrent [ClusterMap], so the second
+ * owner of the cluster is the cross-link. The clusters that are neither
+ * free nor marked are orphans, they are counted by parallel scan of FAT.
+ *
+ * The repair goes after the walk, in single thread: the damaged chains
+ * are cut at the last valid cluster, the records get the size of the cut
+ * chain or are deleted, then the allocator rebuilds the free space from
+ * the marked clusters (see [FATClusterAllocator.rebuildFreeSpace]) and
+ * the storage gets the actual free cluster count. The damaged region map
+ * or journal is skipped on open in maintenance mode and is built anew
+ * by the repair.
+ *
+ * The engine owns the storage: nobody else uses it during the run.
+ */
+class FATMaintenance {
+    // the file chains that are longer are validated by separate task
+    final static int CHAIN_TASK_CLUSTERS = 1024;
+    // the FAT part of the scan task
+    final static int SCAN_TASK_CLUSTERS = 1 << 16;
+    // the limit of messages in the report
+    final static int MAX_PROBLEMS = 100;
+
+    private final static int RECORD_SIZE_OFFSET = 8;
+    private final static int READ_RECORDS = 64;
+
+    private final FATSystem fat;
+    private final int parallelism;
+    private final ClusterMap used;
+
+    // the walk results
+    private final ConcurrentLinkedQueue<Fix> fixes = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<String> problems = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger problemCount = new AtomicInteger();
+    private final AtomicLong folderCount = new AtomicLong();
+    private final AtomicLong fileCount = new AtomicLong();
+    private final AtomicLong crossLinkCount = new AtomicLong();
+    private final AtomicLong damagedChainCount = new AtomicLong();
+    // the scan results
+    private final AtomicLong freeCount = new AtomicLong();
+    private final AtomicLong orphanCount = new AtomicLong();
+
+    /**
+     * @param fat the storage opened in maintenance mode
+     * @param parallelism the number of walker threads
+     */
+    FATMaintenance(FATSystem fat, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Bad parallelism:" + parallelism);
+        this.fat = fat;
+        this.parallelism = parallelism;
+        used = new ClusterMap(fat.clusterCount);
+    }
+
+    /**
+     * Checks the storage, repairs it on request.
+     *
+     * @param repair [true] if the problems have to be fixed
+     * @return the report
+     * @throws IOException
+     */
+    FATCheckReport run(boolean repair) throws IOException {
+        long start = System.currentTimeMillis();
+        int headerFreeCount = fat.freeClusterCount;
+        for (String problem : fat.getMaintenanceProblems())
+            report(problem);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            ByteBuffer root = fat.getRootInfo();
+            try {
+                pool.invoke(new RecordTask(-1, 0, root));
+            } finally {
+                fat.releaseBuffer(root);
+            }
+            pool.invoke(new ScanTask(0, fat.clusterCount));
+        } catch (RuntimeException e) {
+            // the pool could wrap the exception of the task
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+            }
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+        if (orphanCount.get() > 0)
+            report("Orphan clusters: " + orphanCount.get());
+        if (headerFreeCount >= 0 && headerFreeCount != freeCount.get())
+            report("Wrong free cluster count: " + headerFreeCount + " instead of " + freeCount.get());
+
+        long freeAfter = freeCount.get();
+        int fixed = 0;
+        if (repair && problemCount.get() > 0) {
+            for (Fix fix : fixes) {
+                fix.apply();
+                ++fixed;
+            }
+            freeAfter = fat.rebuildFreeSpace(used);
+        }
+        return new FATCheckReport(
+                folderCount.get(), fileCount.get(), fat.clusterCount - freeCount.get() - orphanCount.get(),
+                freeAfter, orphanCount.get(), crossLinkCount.get(), damagedChainCount.get(),
+                fixed, repair && problemCount.get() > 0, parallelism,
+                System.currentTimeMillis() - start, new ArrayList<>(problems));
+    }
+
+    private void report(String problem) {
+        // the count goes on, the messages are limited
+        if (problemCount.incrementAndGet() <= MAX_PROBLEMS)
+            problems.add(problem);
+    }
+
+    /**
+     * Validates the record and its chain, walks the folder content.
+     */
+    private class RecordTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // the head of the folder chain with the record, [-1] for the root record
+        private final int parent;
+        private final int index;
+        private final int fileId;
+        private final int type;
+        private final long size;
+        // the chain goes after the last cluster for the size
+        private boolean longChain;
+
+        /**
+         * @param record the serialized record, the position is not changed
+         */
+        RecordTask(int parent, int index, ByteBuffer record) {
+            this.parent = parent;
+            this.index = index;
+            fileId = record.getInt(0);
+            type = record.getInt(4);
+            size = record.getLong(RECORD_SIZE_OFFSET);
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                ts_compute();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private String where() {
+            return (parent < 0)
+                ? "root"
+                : "record #" + index + " of folder " + parent;
+        }
+
+        private void ts_compute() throws IOException {
+            if (parent < 0 && (fileId != FATFile.ROOT_FILE_ID
+                    || type != FATFile.TYPE_FOLDER || size < 0)) {
+                // nothing could be marked as used: the repair would free all
+                throw new IOException("The root record is damaged. Cannot check the storage.");
+            }
+            if ((type != FATFile.TYPE_FILE && type != FATFile.TYPE_FOLDER)
+                    || fileId < 0 || fileId >= fat.clusterCount || size < 0) {
+                damagedChainCount.incrementAndGet();
+                report("Wrong " + where() + ": fileId=" + fileId + " type=" + type + " size=" + size);
+                fixes.add(new Fix(parent, index, fileId, -1, 0));
+                return;
+            }
+            if (type == FATFile.TYPE_FILE) {
+                fileCount.incrementAndGet();
+            } else {
+                folderCount.incrementAndGet();
+            }
+            int expected = fat.getSizeInClusters(size);
+            int valid = walkChain(expected);
+            long validSize = size;
+            if (valid < expected)
+                validSize = Math.min(size, (long)valid*fat.getClusterSize());
+            if (type == FATFile.TYPE_FOLDER)
+                validSize -= validSize % FATFile.RECORD_SIZE;
+            if (valid == 0) {
+                if (parent >= 0) {
+                    fixes.add(new Fix(parent, index, fileId, 0, 0));
+                    return;
+                }
+                // the root record is not deleted: the root is empty
+                used.mark(fileId);
+                valid = 1;
+                validSize = 0;
+            }
+            if (validSize != size || valid != expected || longChain)
+                fixes.add(new Fix(parent, index, fileId, valid, validSize));
+            if (type == FATFile.TYPE_FOLDER)
+                walkFolder(validSize);
+        }
+
+        /**
+         * @return the number of valid clusters of the chain,
+         *         [expected] for the valid chain
+         */
+        private int walkChain(int expected) {
+            int cluster = fileId;
+            for (int i = 0; i < expected; ++i) {
+                if (!used.mark(cluster)) {
+                    crossLinkCount.incrementAndGet();
+                    report("Cross-linked cluster " + cluster + " in " + where());
+                    return i;
+                }
+                int fatEntry = fat.getFatEntry(cluster);
+                boolean last = (i == expected - 1);
+                if (fatEntry == FATClusterAllocator.CLUSTER_EOC) {
+                    if (last)
+                        return expected;
+                    damagedChainCount.incrementAndGet();
+                    report("Short chain in " + where() + ": " + (i + 1) + " of " + expected);
+                    return i + 1;
+                }
+                if ((fatEntry & FATClusterAllocator.CLUSTER_STATUS) != FATClusterAllocator.CLUSTER_ALLOCATED
+                        || (fatEntry & FATClusterAllocator.CLUSTER_INDEX) >= fat.clusterCount) {
+                    damagedChainCount.incrementAndGet();
+                    report("Broken chain in " + where() + " at cluster " + cluster);
+                    // the cluster itself is not valid
+                    used.unmark(cluster);
+                    return i;
+                }
+                if (last) {
+                    damagedChainCount.incrementAndGet();
+                    report("Long chain in " + where() + ": more than " + expected);
+                    longChain = true;
+                    return expected;
+                }
+                cluster = fatEntry & FATClusterAllocator.CLUSTER_INDEX;
+            }
+            return expected;
+        }
+
+        private void walkFolder(long folderSize) throws IOException {
+            List<RecordTask> children = new ArrayList<>();
+            ByteBuffer bf = fat.allocateBuffer(READ_RECORDS*FATFile.RECORD_SIZE);
+            try {
+                int recordCount = (int) (folderSize/FATFile.RECORD_SIZE);
+                for (int first = 0; first < recordCount; first += READ_RECORDS) {
+                    int count = Math.min(READ_RECORDS, recordCount - first);
+                    bf.clear().limit(count*FATFile.RECORD_SIZE);
+                    while (bf.hasRemaining()) {
+                        if (fat.readChannel(fileId, (long)first*FATFile.RECORD_SIZE + bf.position(),
+                                bf, true) <= 0)
+                            throw new IOException("Unexpected end of folder " + fileId);
+                    }
+                    for (int i = 0; i < count; ++i) {
+                        bf.limit((i + 1)*FATFile.RECORD_SIZE).position(i*FATFile.RECORD_SIZE);
+                        ByteBuffer record = bf.slice().order(bf.order());
+                        if (record.getInt(0) == FATFile.INVALID_FILE_ID)
+                            continue; // deleted or reserved
+                        RecordTask child = new RecordTask(fileId, first + i, record);
+                        if (child.type == FATFile.TYPE_FILE
+                                && fat.getSizeInClusters(Math.max(0, child.size)) < CHAIN_TASK_CLUSTERS) {
+                            // PERFORMANCE HINT: the short chain is not worth the task
+                            child.ts_compute();
+                        } else {
+                            children.add(child);
+                        }
+                    }
+                }
+            } finally {
+                fat.releaseBuffer(bf);
+            }
+            invokeAll(children);
+        }
+    }
+
+    /**
+     * Counts the free and orphan clusters of FAT part.
+     */
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        ScanTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SCAN_TASK_CLUSTERS) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ScanTask(from, middle), new ScanTask(middle, to));
+                return;
+            }
+            int free = 0;
+            int orphan = 0;
+            for (int cluster = from; cluster < to; ++cluster) {
+                if (used.isMarked(cluster))
+                    continue;
+                if (FATRegionMap.isFreeEntry(fat.getFatEntry(cluster))) {
+                    ++free;
+                } else {
+                    ++orphan;
+                }
+            }
+            freeCount.addAndGet(free);
+            orphanCount.addAndGet(orphan);
+        }
+    }
+
+    /**
+     * The cut of the damaged chain and the record update.
+     */
+    private class Fix {
+        private final int parent;
+        private final int index;
+        private final int fileId;
+        // the number of clusters that stay in chain, [0] deletes the record
+        private final int valid;
+        private final long size;
+
+        Fix(int parent, int index, int fileId, int valid, long size) {
+            this.parent = parent;
+            this.index = index;
+            this.fileId = fileId;
+            this.valid = valid;
+            this.size = size;
+        }
+
+        void apply() throws IOException {
+            if (valid > 0) {
+                int keep = fat.getSizeInClusters(size);
+                int cluster = fileId;
+                for (int i = 1; i < keep; ++i)
+                    cluster = fat.getFatEntry(cluster) & FATClusterAllocator.CLUSTER_INDEX;
+                int last = cluster;
+                // the rest of valid part goes to free space
+                for (int i = keep; i < valid; ++i) {
+                    cluster = fat.getFatEntry(cluster) & FATClusterAllocator.CLUSTER_INDEX;
+                    used.unmark(cluster);
+                }
+                fat.repairChainEnd(last);
+            }
+            ByteBuffer record;
+            if (parent < 0) {
+                record = fat.getRootInfo();
+            } else {
+                record = fat.allocateBuffer(FATFile.RECORD_SIZE);
+                while (record.hasRemaining()) {
+                    if (fat.readChannel(parent, (long)index*FATFile.RECORD_SIZE + record.position(),
+                            record, true) <= 0)
+                        throw new IOException("Unexpected end of folder " + parent);
+                }
+                record.flip();
+            }
+            try {
+                if (valid > 0) {
+                    record.putLong(RECORD_SIZE_OFFSET, size);
+                } else {
+                    record.putInt(0, FATFile.INVALID_FILE_ID);
+                    record.putInt(4, FATFile.TYPE_DELETED);
+                }
+                if (parent < 0) {
+                    fat.writeRootInfo(record);
+                } else {
+                    while (record.hasRemaining())
+                        fat.writeChannel(parent, (long)index*FATFile.RECORD_SIZE + record.position(),
+                                record, true);
+                }
+            } finally {
+                fat.releaseBuffer(record);
+            }
+        }
+    }
+
+    /**
+     * Concurrent bitmap of clusters.
+     */
+    static class ClusterMap {
+        private final AtomicLongArray bits;
+
+        ClusterMap(int clusterCount) {
+            bits = new AtomicLongArray((clusterCount + 63) >>> 6);
+        }
+
+        /**
+         * @return [false] if the cluster was marked before
+         */
+        boolean mark(int cluster) {
+            int i = cluster >>> 6;
+            long bit = 1L << (cluster & 63);
+            while (true) {
+                long word = bits.get(i);
+                if ((word & bit) != 0)
+                    return false;
+                if (bits.compareAndSet(i, word, word | bit))
+                    return true;
+            }
+        }
+
+        void unmark(int cluster) {
+            int i = cluster >>> 6;
+            long bit = 1L << (cluster & 63);
+            while (true) {
+                long word = bits.get(i);
+                if (bits.compareAndSet(i, word, word & ~bit))
+                    return;
+            }
+        }
+
+        boolean isMarked(int cluster) {
+            return (bits.get(cluster >>> 6) & (1L << (cluster & 63))) != 0;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped view of the [Data Section].
+ *
+ * The section is mapped by fixed-size segments on the first access,
+ * so the untouched part of the storage does not take address space.
+ * The data is copied between the segments and the caller buffers,
+ * no host call per access.
+ *
+ * Not thread-safe: uses the position of the segments.
+ * The owner serializes the calls (see [FATSystem.fatLock]).
+ */
+class FATMappedData implements Closeable {
+    // default segment: a few segments cover the volume of a few GB
+    final static int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+    private final FileChannel fileChannel;
+    private final long dataOffset;
+    private final long dataSize;
+    private final int segmentSize;
+    private MappedByteBuffer[] segments;
+
+    /**
+     * @param fileChannel the host file channel
+     * @param dataOffset the offset of [Data Section] in host file
+     * @param dataSize the size of [Data Section]
+     * @param segmentSize the size of single mapped segment
+     */
+    FATMappedData(FileChannel fileChannel, long dataOffset, long dataSize, int segmentSize) {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("Bad segment size:" + segmentSize);
+        this.fileChannel = fileChannel;
+        this.dataOffset = dataOffset;
+        this.dataSize = dataSize;
+        this.segmentSize = segmentSize;
+        segments = new MappedByteBuffer[(int) ((dataSize + segmentSize - 1)/segmentSize)];
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Copies [dst.remaining()] bytes from [Data Section] to [dst].
+     *
+     * @param pos the offset in [Data Section]
+     * @param dst the destination of bytes
+     * @return the number of copied bytes
+     * @throws IOException
+     */
+    int get(long pos, ByteBuffer dst) throws IOException {
+        int count = dst.remaining();
+        checkRange(pos, count);
+        while (dst.hasRemaining()) {
+            MappedByteBuffer segment = getSegment(pos);
+            int offset = (int) (pos % segmentSize);
+            int len = Math.min(dst.remaining(), segment.capacity() - offset);
+            segment.limit(offset + len).position(offset);
+            dst.put(segment);
+            pos += len;
+        }
+        return count;
+    }
+
+    /**
+     * Copies [src.remaining()] bytes from [src] to [Data Section].
+     *
+     * @param pos the offset in [Data Section]
+     * @param src the source of bytes
+     * @return the number of copied bytes
+     * @throws IOException
+     */
+    int put(long pos, ByteBuffer src) throws IOException {
+        int count = src.remaining();
+        checkRange(pos, count);
+        int limit = src.limit();
+        try {
+            while (src.hasRemaining()) {
+                MappedByteBuffer segment = getSegment(pos);
+                int offset = (int) (pos % segmentSize);
+                int len = Math.min(src.remaining(), segment.capacity() - offset);
+                segment.clear().position(offset);
+                src.limit(src.position() + len);
+                segment.put(src);
+                src.limit(limit);
+                pos += len;
+            }
+        } finally {
+            src.limit(limit);
+        }
+        return count;
+    }
+
+    /**
+     * Flushes the mapped segments to disk.
+     */
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            if (segment != null)
+                segment.force();
+        }
+    }
+
+    /**
+     * Unmaps the segments. The object cannot be used after the call.
+     *
+     * @return [false] if some segment could not be unmapped explicitly
+     */
+    boolean unmap() {
+        MappedByteBuffer[] zones = segments;
+        // critical point: the segments have to be unreachable ASAP
+        segments = new MappedByteBuffer[0];
+        boolean ret = true;
+        for (MappedByteBuffer zone : zones) {
+            if (zone != null && !FATSystem.unmap(zone))
+                ret = false;
+        }
+        return ret;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!unmap())
+            throw new IOException("Cannot unmap the data section.");
+    }
+
+    private void checkRange(long pos, int count) throws IOException {
+        if (pos < 0 || pos + count > dataSize)
+            throw new IOException("Access out of data section: " + pos + "+" + count);
+    }
+
+    private MappedByteBuffer getSegment(long pos) throws IOException {
+        int index = (int) (pos/segmentSize);
+        MappedByteBuffer segment = segments[index];
+        if (segment == null) {
+            long start = (long) index*segmentSize;
+            segment = fileChannel.map(FileChannel.MapMode.READ_WRITE,
+                    dataOffset + start, Math.min(segmentSize, dataSize - start));
+            segments[index] = segment;
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,156 @@
+package com.test;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of [FATFile]/[FATFolder] objects by file Id.
+ *
+ * Two tiers:
+ *  - identity map with weak references: one object per file Id
+ *    while anybody holds it, lock-free lookup;
+ *  - bounded LRU with strong references: keeps hot objects
+ *    alive between the calls, so they are not re-read from disk
+ *    after each GC.
+ *
+ * The LRU order is approximate: a hit touches the order only
+ * if the LRU lock is free at the moment.
+ *
+ * @param <T> the cached object type
+ */
+class FATObjectCache<T> {
+    private final ConcurrentHashMap<Integer, WeakReference<T>> identity
+            = new ConcurrentHashMap<>();
+
+    // guarded by [lruLock]
+    private final ReentrantLock lruLock = new ReentrantLock();
+    private final LinkedHashMap<Integer, T> lru
+            = new LinkedHashMap<Integer, T>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, T> eldest) {
+            return size() > limit;
+        }
+    };
+    private volatile int limit;
+
+    /**
+     * @param limit the max number of strongly held objects,
+     *              [0] means weak references only.
+     */
+    FATObjectCache(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Gets the cached object.
+     *
+     * @param id the file Id
+     * @return the object or [null] if it was not cached or has gone
+     */
+    T get(int id) {
+        WeakReference<T> r = identity.get(id);
+        T ret = (r == null) ? null : r.get();
+        if (ret != null && limit > 0 && lruLock.tryLock()) {
+            try {
+                if (lru.get(id) == null)
+                    lru.put(id, ret);
+            } finally {
+                lruLock.unlock();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Adds new object to cache.
+     *
+     * @param id the file Id
+     * @param value the object
+     * @return [false] if there is alive object with the same Id
+     */
+    boolean add(int id, T value) {
+        WeakReference<T> ref = new WeakReference<>(value);
+        while (true) {
+            WeakReference<T> r = identity.putIfAbsent(id, ref);
+            if (r == null)
+                break;
+            if (r.get() != null)
+                return false;
+            // the old object is gone, but was not disposed yet
+            if (identity.replace(id, r, ref))
+                break;
+        }
+        retain(id, value);
+        return true;
+    }
+
+    /**
+     * Drops the object from cache.
+     *
+     * @param id the file Id
+     */
+    void remove(int id) {
+        identity.remove(id);
+        lruLock.lock();
+        try {
+            lru.remove(id);
+        } finally {
+            lruLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the entry of collected object.
+     *
+     * Called by disposer; the Id could be reused by a new object already.
+     *
+     * @param id the file Id
+     */
+    void dispose(int id) {
+        WeakReference<T> r = identity.get(id);
+        if (r != null && r.get() == null)
+            identity.remove(id, r);
+    }
+
+    int size() {
+        return identity.size();
+    }
+
+    void setLimit(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Negative cache limit");
+        lruLock.lock();
+        try {
+            this.limit = limit;
+            // shrink from the eldest
+            Iterator<Integer> it = lru.keySet().iterator();
+            while (lru.size() > limit && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } finally {
+            lruLock.unlock();
+        }
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    private void retain(int id, T value) {
+        if (limit == 0)
+            return;
+        lruLock.lock();
+        try {
+            lru.put(id, value);
+        } finally {
+            lruLock.unlock();
+        }
+    }
+}
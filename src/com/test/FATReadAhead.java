@@ -0,0 +1,242 @@
+package com.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Sequential read-ahead of the file content.
+ *
+ * One instance per channel. After [SEQUENTIAL_THRESHOLD] reads that
+ * follow each other the next window of the file is read in background
+ * (see [FATFileSystem.getIOExecutor]) to the buffer that the next reads
+ * consume. The window starts from [MIN_WINDOW_CLUSTERS] clusters and
+ * doubles on each consumed prefetch up to the limit from
+ * [FATFileSystem.setReadAheadSize].
+ * The prefetch reads the window by [FATSystem.readChannel], so
+ * the physically contiguous runs of clusters go by single host read
+ * and the reader does not wait on cluster boundaries.
+ *
+ * The prefetched bytes are dropped on any content change of the file
+ * (see [FATFile.ts_getContentVersion]). The reader never waits for
+ * the prefetch in flight: the I/O executor is shared with the other
+ * background tasks, so the unfinished prefetch is dropped and the reader
+ * goes to the file by itself.
+ *
+ * Not thread-safe: the owner channel serializes the calls by its position lock.
+ */
+class FATReadAhead {
+    // the number of sequential reads that starts the read-ahead
+    final static int SEQUENTIAL_THRESHOLD = 2;
+    final static int MIN_WINDOW_CLUSTERS = 4;
+
+    private final FATFile file;
+    private final int clusterSize;
+    private final int maxWindowClusters;
+    private int windowClusters;
+
+    // the position of expected sequential read
+    private long nextPos = -1;
+    private int sequentialCount;
+    // the prefetch in consumption and the one in flight
+    private Prefetch current;
+    private Prefetch next;
+
+    /**
+     * @param file the owner
+     * @param clusterSize the cluster size of the file system
+     * @param maxWindowSize the limit of the window in bytes
+     */
+    FATReadAhead(FATFile file, int clusterSize, int maxWindowSize) {
+        this.file = file;
+        this.clusterSize = clusterSize;
+        maxWindowClusters = Math.max(MIN_WINDOW_CLUSTERS, maxWindowSize/clusterSize);
+        windowClusters = MIN_WINDOW_CLUSTERS;
+    }
+
+    /**
+     * Copies the prefetched bytes from [position] to [dst].
+     *
+     * Have to be called under the file read lock.
+     *
+     * @return the number of copied bytes, [0] if there is no prefetched
+     *         bytes for [position]
+     */
+    int ts_rl_read(ByteBuffer dst, long position) throws IOException {
+        if (position != nextPos) {
+            // random access: stop the read-ahead
+            sequentialCount = 0;
+            windowClusters = MIN_WINDOW_CLUSTERS;
+            drop();
+            return 0;
+        }
+        int wasRead = 0;
+        long version = file.ts_getContentVersion();
+        while (dst.hasRemaining()) {
+            if (current == null || !current.covers(position)) {
+                if (current != null)
+                    release(current);
+                current = null;
+                if (next == null || !next.covers(position))
+                    break;
+                if (!next.isDone()) {
+                    // no wait under the file lock
+                    next.cancel();
+                    next = null;
+                    break;
+                }
+                // PERFORMANCE HINT: usually the prefetch is done
+                current = next;
+                next = null;
+                // the window was useful: grow it
+                windowClusters = Math.min(windowClusters*2, maxWindowClusters);
+                // the actual window could be shorter: EOF
+                continue;
+            }
+            if (!current.isValid(version)) {
+                drop();
+                break;
+            }
+            int len = current.copy(position, dst);
+            position += len;
+            wasRead += len;
+        }
+        return wasRead;
+    }
+
+    /**
+     * Tracks the access pattern, starts the prefetch if need.
+     *
+     * Have to be called under the file read lock.
+     *
+     * @param position the position of the read
+     * @param wasRead the result of the read
+     */
+    void ts_rl_afterRead(long position, int wasRead) throws IOException {
+        if (wasRead <= 0)
+            return;
+        if (position == nextPos || nextPos < 0)
+            ++sequentialCount;
+        nextPos = position + wasRead;
+        if (sequentialCount < SEQUENTIAL_THRESHOLD || next != null
+                || file.fs.isWriteMapped())
+            return;
+        long start = nextPos;
+        if (current != null) {
+            // keep one window ahead of the reader
+            if (current.end() - nextPos > current.size()/2)
+                return;
+            start = current.end();
+        }
+        if (start >= file.length())
+            return;
+        Prefetch prefetch = new Prefetch(start, windowClusters*clusterSize);
+        if (!file.fs.submitReadAhead(prefetch)) {
+            release(prefetch);
+            return;
+        }
+        next = prefetch;
+    }
+
+    /**
+     * Drops the prefetched bytes.
+     */
+    void drop() {
+        if (current != null)
+            release(current);
+        // the buffer in flight goes with GC
+        if (next != null)
+            next.cancel();
+        current = null;
+        next = null;
+    }
+
+    private void release(Prefetch prefetch) {
+        file.fs.ts_releaseBuffer(prefetch.buffer);
+    }
+
+    /**
+     * The window read in background.
+     */
+    private class Prefetch implements Runnable {
+        private final long pos;
+        private final int size;
+        private final ByteBuffer buffer;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean cancelled;
+        // written before [done] release
+        private long version = -1;
+        private boolean success;
+
+        Prefetch(long pos, int size) {
+            this.pos = pos;
+            this.size = size;
+            buffer = file.fs.ts_allocateBuffer(size);
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (cancelled)
+                    return;
+                // no wait: the reader goes to the file by itself
+                FATLock lock = file.tryLockInternal(false);
+                try {
+                    version = file.ts_getContentVersion();
+                    long rest = file.length() - pos;
+                    if (rest < buffer.remaining())
+                        buffer.limit((int) Math.max(0, rest));
+                    while (buffer.hasRemaining()) {
+                        if (file.fs.readFileContext(file, pos + buffer.position(), buffer) <= 0)
+                            break;
+                    }
+                    buffer.flip();
+                    success = buffer.hasRemaining();
+                } finally {
+                    lock.unlock();
+                }
+            } catch (IOException e) {
+                // locked or closed: the reader goes to the file by itself
+            } finally {
+                done.countDown();
+            }
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Skips the read if it has not started yet.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean covers(long position) {
+            // in flight the window is [pos, pos + size)
+            return position >= pos && position < end();
+        }
+
+        long end() {
+            return pos + (isDone() ? buffer.limit() : size);
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isValid(long version) {
+            return success && this.version == version;
+        }
+
+        int copy(long position, ByteBuffer dst) {
+            int offset = (int) (position - pos);
+            int len = Math.min(dst.remaining(), buffer.limit() - offset);
+            ByteBuffer src = buffer.duplicate();
+            src.limit(offset + len).position(offset);
+            dst.put(src);
+            return len;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.test;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Persisted dirty map of FAT regions.
+ *
+ * The FAT is split into regions of [1 << REGION_SHIFT] entries. The dirty
+ * bit of the region is set and forced before the first change of its
+ * entries, and cleared after the FAT is forced at the quiescent point
+ * (see [FATSystem.forceFat]). The clean region keeps its free cluster
+ * count in the map, so the open after the journal rollback re-validates
+ * and recounts the dirty regions only (see [FATSystem.validateDirtyRegions]),
+ * and the clean open trusts the counts (see [FATSystem.validateNextRegion]).
+ *
+ * The map does not shorten the maintenance: after the crash without
+ * usable journal the orphan clusters could be in any region (the folder
+ * record could lose the chain before the FAT change), so the check scans
+ * the whole FAT (see [FATMaintenance]).
+ *
+ * The map takes the place after the [Data Section] of
+ * [FATSystem.VERSION_REGION_MAP] and [FATSystem.VERSION_GROWABLE] storage,
+ * just before the journal.
+ *
+ * Layout: [magic][region shift][region count][reserved] head,
+ * the dirty bitmap by ints, then the free cluster count of each region.
+ *
+ * Not thread-safe. The owner serializes the calls (see [FATSystem.fatLock]).
+ */
+class FATRegionMap {
+    final static int MAGIC_WORD = 0x72676e6d; //rgnm
+    final static int REGION_SHIFT = 12;
+    final static int HEAD_SIZE = 16;
+
+    private final static int SHIFT_OFFSET = 4;
+    private final static int COUNT_OFFSET = 8;
+
+    private MappedByteBuffer zone;
+    private final int clusterCount;
+    private final int regionCount;
+    private final int countsOffset;
+    // the live state, the map keeps the state of the last clean point
+    private final int[] freeCount;
+    private final boolean[] dirty;
+    private int dirtyCount;
+
+    /**
+     * @param zone the mapped region of [getSize] bytes in the storage byte order
+     * @param clusterCount the number of entries in FAT
+     */
+    FATRegionMap(MappedByteBuffer zone, int clusterCount) {
+        this.zone = zone;
+        this.clusterCount = clusterCount;
+        regionCount = getRegionCount(clusterCount);
+        countsOffset = HEAD_SIZE + getBitmapSize(regionCount);
+        freeCount = new int[regionCount];
+        dirty = new boolean[regionCount];
+    }
+
+    /**
+     * @param clusterCount the number of entries in FAT
+     * @return the size of map in host file, page aligned
+     */
+    static long getSize(int clusterCount) {
+        int regionCount = getRegionCount(clusterCount);
+        long size = HEAD_SIZE + getBitmapSize(regionCount) + (long)regionCount*4;
+        return FATSystem.getSizeInUnits(size, FATSystem.DATA_ALIGNMENT_PAGE)
+                * FATSystem.DATA_ALIGNMENT_PAGE;
+    }
+
+    /**
+     * Checks the entry for free cluster of any allocator.
+     */
+    static boolean isFreeEntry(int fatEntry) {
+        return (fatEntry & FATClusterAllocator.CLUSTER_STATUS) == FATClusterAllocator.CLUSTER_FREE
+            || fatEntry == FATFreeListClusterAllocator.CLUSTER_FREE_EOC;
+    }
+
+    /**
+     * Formats the map for just initialized FAT: all clusters are free.
+     */
+    void init() {
+        zone.putInt(0, MAGIC_WORD);
+        zone.putInt(SHIFT_OFFSET, REGION_SHIFT);
+        zone.putInt(COUNT_OFFSET, regionCount);
+        for (int region = 0; region < regionCount; ++region)
+            freeCount[region] = getRegionEnd(region) - getRegionStart(region);
+        save();
+    }
+
+    /**
+     * Saves the free counts of all regions and marks them clean.
+     *
+     * Have to be called for the consistent FAT only.
+     */
+    void save() {
+        for (int region = 0; region < regionCount; ++region)
+            zone.putInt(countsOffset + region*4, freeCount[region]);
+        for (int i = HEAD_SIZE; i < countsOffset; i += 4)
+            zone.putInt(i, 0);
+        zone.force();
+        Arrays.fill(dirty, false);
+        dirtyCount = 0;
+    }
+
+    /**
+     * Reads the map. The free cluster count of dirty region
+     * have to be set by [setFreeCount].
+     *
+     * @throws IOException if the region is not a map of the FAT
+     */
+    void load() throws IOException {
+        if (zone.getInt(0) != MAGIC_WORD
+                || zone.getInt(SHIFT_OFFSET) != REGION_SHIFT
+                || zone.getInt(COUNT_OFFSET) != regionCount)
+            throw new IOException("Wrong region map.");
+        dirtyCount = 0;
+        for (int region = 0; region < regionCount; ++region) {
+            int bits = zone.getInt(HEAD_SIZE + (region >>> 5)*4);
+            dirty[region] = (bits & (1 << (region & 31))) != 0;
+            if (dirty[region])
+                ++dirtyCount;
+            freeCount[region] = zone.getInt(countsOffset + region*4);
+        }
+    }
+
+    int getRegionCount() {
+        return regionCount;
+    }
+
+    int getRegionStart(int region) {
+        return region << REGION_SHIFT;
+    }
+
+    int getRegionEnd(int region) {
+        return (int) Math.min(clusterCount, (long)(region + 1) << REGION_SHIFT);
+    }
+
+    boolean isDirty(int region) {
+        return dirty[region];
+    }
+
+    int getDirtyCount() {
+        return dirtyCount;
+    }
+
+    int getFreeCount(int region) {
+        return freeCount[region];
+    }
+
+    void setFreeCount(int region, int count) {
+        freeCount[region] = count;
+    }
+
+    /**
+     * Marks the region of the entry dirty, tracks the free count.
+     *
+     * Have to be called before the entry change.
+     *
+     * @param index the entry index in FAT, the header entries are ignored
+     * @param before the entry value before the change
+     * @param value the new entry value
+     */
+    void beforeChange(int index, int before, int value) {
+        if (index < 0)
+            return;
+        int region = index >>> REGION_SHIFT;
+        if (!dirty[region]) {
+            dirty[region] = true;
+            ++dirtyCount;
+            int offset = HEAD_SIZE + (region >>> 5)*4;
+            zone.putInt(offset, zone.getInt(offset) | (1 << (region & 31)));
+            // PERFORMANCE HINT: single sync for the region till the next clean point
+            zone.force();
+        }
+        boolean wasFree = isFreeEntry(before);
+        if (wasFree != isFreeEntry(value))
+            freeCount[region] += wasFree ? -1 : 1;
+    }
+
+    /**
+     * Saves the free counts of dirty regions and marks them clean.
+     *
+     * Have to be called after the FAT is forced at the quiescent point.
+     */
+    void clean() {
+        if (dirtyCount == 0)
+            return;
+        for (int region = 0; region < regionCount; ++region) {
+            if (dirty[region])
+                zone.putInt(countsOffset + region*4, freeCount[region]);
+        }
+        // the counts first: the bits are the validation marker
+        zone.force();
+        for (int i = HEAD_SIZE; i < countsOffset; i += 4)
+            zone.putInt(i, 0);
+        zone.force();
+        Arrays.fill(dirty, false);
+        dirtyCount = 0;
+    }
+
+    /**
+     * Unmaps the region. The object cannot be used after the call.
+     *
+     * @return [false] if the region could not be unmapped explicitly
+     */
+    boolean unmap() {
+        MappedByteBuffer region = zone;
+        // critical point: the region have to be unreachable ASAP
+        zone = null;
+        return region == null || FATSystem.unmap(region);
+    }
+
+    private static int getRegionCount(int clusterCount) {
+        return (int) FATSystem.getSizeInUnits(clusterCount, 1 << REGION_SHIFT);
+    }
+
+    private static int getBitmapSize(int regionCount) {
+        return (int) FATSystem.getSizeInUnits(regionCount, 32)*4;
+    }
+}
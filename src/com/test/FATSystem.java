@@ -6,12 +6,22 @@ import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -35,19 +45,44 @@ class FATSystem implements Closeable {
     final static int  HEADER_SIZE = HEADER_HEAD_SIZE_RESERVED
                                   + FATFile.RECORD_SIZE
                                   + HEADER_TAIL_SIZE_RESERVED;
+    final static int  CLUSTER_COUNT_OFFSET = 4*4;
     final static int  FREE_CLUSTER_COUNT_OFFSET = 5*4;
+    final static int  DATA_ALIGNMENT_OFFSET = 6*4;
     final static int  ROOT_RECORD_OFFSET = HEADER_HEAD_SIZE_RESERVED;
     final static int  VERSION     = 1;
+    // [VERSION] layout with [FATJournal] after the [Data Section]
+    final static int  VERSION_JOURNAL = 2;
+    // [VERSION_REGION_MAP] layout with FAT headroom for online growth, see [grow]:
+    // the FAT capacity takes the place of allocator header that goes after it
+    final static int  VERSION_GROWABLE = 3;
+    // [VERSION_JOURNAL] layout with [FATRegionMap] just before the [FATJournal]
+    final static int  VERSION_REGION_MAP = 4;
+    final static int  FAT_CAPACITY_OFFSET = HEADER_SIZE - HEADER_TAIL_SIZE_RESERVED;
+    final static int  MIN_JOURNAL_SIZE = 4096;
+    final static int  DEFAULT_JOURNAL_SIZE = 1 << 20;
     final static long MAPFILE_SIZE_LIMIT = Integer.MAX_VALUE;
+    // the FAT part of the single format task, see [formatFat]
+    final static int  FORMAT_CHUNK_ENTRIES = 1 << 20;
+    // the FAT part of the single search step, see [allocateRun]
+    final static int  RUN_SEARCH_STEP = 1 << 16;
 
     final static int FAT_E_SIZE  = 4; //bytes for FAT32
     final static int MAGIC_WORD  = 0x75616673;
-    //final static int MAGIC_WORD  = 0x73666175; //check ENDIAN sfau/uafs as BIG/LITTLE
+    // the [MAGIC_WORD] of little-endian storage read in big-endian order
+    final static int MAGIC_WORD_SWAPPED = 0x73666175; //check ENDIAN sfau/uafs as BIG/LITTLE
+
+    // [Data Section] layout: [0] - packed just after FAT (legacy),
+    // power of two - the section starts at the aligned host offset
+    final static int DATA_ALIGNMENT_NONE = 0;
+    final static int DATA_ALIGNMENT_PAGE = 4096;
 
     //header
     private int fsVersion;
     private int clusterSize;
     int clusterCount;
+    private int dataAlignment;
+    // the number of entries in the FAT section, [clusterCount] up to [VERSION_GROWABLE]
+    private int fatCapacity;
 
     //offsets in file
     private int fatOffset;
@@ -59,11 +94,40 @@ class FATSystem implements Closeable {
     private RandomAccessFile randomAccessFile;
     private FileChannel fileChannel;
     private MappedByteBuffer fatZone;
-    private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN; //default encoding (currently fixed)
+    // the encoding of header, FAT and records: BIG_ENDIAN by default,
+    // detected by [MAGIC_WORD] on open
+    private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
     private FATClusterAllocator clusterAllocator;
+    // optional mapped [Data Section], [null] for host I/O
+    private FATMappedData mappedData;
+    // optional cache of clusters, [null] for no cache
+    private FATClusterCache clusterCache;
+    // the undo journal of [VERSION_JOURNAL] storage, [null] for [VERSION]
+    private FATJournal journal;
+    // the dirty map of FAT regions, see [hasRegionMap], [null] for other storage
+    private FATRegionMap regionMap;
+    // the damaged parts of storage that the maintenance mode skipped on open
+    private final List<String> maintenanceProblems = new ArrayList<>();
+    // [true] if no transaction is open, see [markDiskStateActual]
+    private boolean quiescent = true;
+    // the number of regions checked after open, see [validateNextRegion]
+    private int validatedRegionCount;
+    // [true] after the first read-write view of file, see [mapChannel]
+    private boolean writeMapped;
+    // [true] after the first view of file in any mode, see [mapChannel]
+    private boolean mapped;
+    // internal I/O buffers
+    private final FATBufferPool bufferPool = new FATBufferPool();
+    // shares the syncs between concurrent force requests
+    private final FATGroupCommit groupCommit = new FATGroupCommit(this);
 
     private final boolean normalMode;
 
+    // guards the FAT, the header and the [fileChannel] position.
+    // Not the object monitor: the sections do blocking I/O and a virtual
+    // thread must not pin its carrier there.
+    private final ReentrantLock fatLock = new ReentrantLock();
+
     void checkFileId(int fileId) throws IOException {
         int fatEntry = getFatEntry(fileId);
         if ((fatEntry & FATClusterAllocator.CLUSTER_ALLOCATED) == 0)
@@ -126,460 +190,2113 @@ class FATSystem implements Closeable {
 
         fileChannel = randomAccessFile.getChannel();
         ByteBuffer bf = allocateBuffer(HEADER_SIZE);
-        readFromChannel(bf);
-
-        // init header
-        int magic = bf.getInt(); //media type
-        if (magic != MAGIC_WORD)
-            throw new IOException("Wrong media type. That is not FFS file");
-        int version = bf.getInt();  //FS version
-        if (version != VERSION)
-            throw new IOException("Wrong version: " + version
-                      + "Version " +  VERSION + " is the only supported.");
-        int allocatorType = bf.getInt();
-        clusterSize = bf.getInt();
-        clusterCount = bf.getInt();
-        freeClusterCount = bf.getInt();
-        if (freeClusterCount < 0) {
-            state = SystemState.DIRTY;
-            LogError("Open for read-only. Dirty state.");
-        } else {
-            state = SystemState.ACTIVE;
+        int allocatorType;
+        try {
+            readFromChannel(bf);
+
+            // init header
+            int magic = bf.getInt(); //media type
+            if (magic == MAGIC_WORD_SWAPPED) {
+                byteOrder = (byteOrder == ByteOrder.BIG_ENDIAN)
+                        ? ByteOrder.LITTLE_ENDIAN
+                        : ByteOrder.BIG_ENDIAN;
+                bf.order(byteOrder);
+            } else if (magic != MAGIC_WORD) {
+                throw new IOException("Wrong media type. That is not FFS file");
+            }
+            fsVersion = bf.getInt();  //FS version
+            if (fsVersion < VERSION || fsVersion > VERSION_REGION_MAP)
+                throw new IOException("Wrong version: " + fsVersion
+                          + "Versions from " +  VERSION + " to " + VERSION_REGION_MAP
+                          + " are the only supported.");
+            allocatorType = bf.getInt();
+            clusterSize = bf.getInt();
+            clusterCount = bf.getInt();
+            freeClusterCount = bf.getInt();
+            dataAlignment = bf.getInt(); //[0] for legacy storage
+            fatCapacity = (fsVersion == VERSION_GROWABLE)
+                    ? bf.getInt(FAT_CAPACITY_OFFSET)
+                    : clusterCount;
+        } finally {
+            releaseBuffer(bf);
         }
+        if (fatCapacity < clusterCount)
+            throw new IOException("Wrong FAT capacity:" + fatCapacity);
+
+        checkDataAlignment(clusterSize, dataAlignment);
 
         // max storage size for 4k cluster: CLUSTER_INDEX*4096 = 3FF FFFF F000
         // 0x3FFFFFFF000/0x10000000000 = 3T - big enough.
-        long sizeFS = getRequestedStorageFileSize(clusterSize, clusterCount);
-
-        if (randomAccessFile.length() < sizeFS) {
+        long sizeFS = getRequestedStorageFileSize(clusterSize, clusterCount, fatCapacity,
+                getFatOffset(fsVersion), dataAlignment);
+        long regionMapSize = hasRegionMap(fsVersion)
+                ? FATRegionMap.getSize(clusterCount)
+                : 0;
+        long journalSize = (fsVersion >= VERSION_JOURNAL)
+                ? randomAccessFile.length() - sizeFS - regionMapSize
+                : 0;
+
+        if (randomAccessFile.length() < sizeFS
+                || (fsVersion >= VERSION_JOURNAL && journalSize < MIN_JOURNAL_SIZE)) {
             setDirtyState("Wrong storage size. Storage was truncated in host FS.", true);
         }
         
         initDenormalized();
         // map FAT section
-        fatZone = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fatOffset + clusterCount*FAT_E_SIZE);
+        fatZone = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fatOffset + fatCapacity*FAT_E_SIZE);
+        fatZone.order(byteOrder);
+        if (fsVersion >= VERSION_JOURNAL && state != SystemState.DIRTY) {
+            if (regionMapSize > 0)
+                openRegionMap(sizeFS, regionMapSize);
+            openJournal(sizeFS + regionMapSize, journalSize);
+        }
+
+        if (freeClusterCount < 0) {
+            state = SystemState.DIRTY;
+            LogError("Open for read-only. Dirty state.");
+        } else {
+            state = SystemState.ACTIVE;
+        }
         clusterAllocator = createAllocator(allocatorType);
         clusterAllocator.initFromFile();
+        if (regionMap != null && state == SystemState.ACTIVE)
+            validateDirtyRegions();
+        if (journal != null && state == SystemState.ACTIVE)
+            journal.reset(freeClusterCount);
         forceFat();
     }
 
     /**
-     * Creates new FAT file system.
-     * @param path is the path in host FS for file storage that need be created
-     * @param clusterSize  the size of single cluster. Mast be at least [FATFile.RECORD_SIZE] size
-     * @param clusterCount the total number of clusters in created file storage.
-     * @param allocatorType the cluster allocation strategy
-     * @return new In-file FS over the file that created in host FS.
-     * @throws IOException for bad parameters or file access problem in the host FS
+     * Maps the region map.
+     *
+     * @param regionMapOffset the offset of map in host file
+     * @param regionMapSize the size of map in bytes
+     * @throws IOException
      */
-    public static FATSystem create(Path path, int clusterSize,int clusterCount,
-                                   int allocatorType) throws IOException {
-        if (clusterSize < FATFile.RECORD_SIZE)
-            throw new IOException("Bad value of cluster size:" + clusterSize);
-
-        // max storage size for 4k cluster: CLUSTER_INDEX*4096 = 3FF FFFF F000
-        // 0x3FFFFFFF000/0x10000000000 = 3T - big enough.
-        long sizeFS = getRequestedStorageFileSize(clusterSize, clusterCount);
-
-        FATSystem ret = new FATSystem(true);
-        boolean success = false;
+    private void openRegionMap(long regionMapOffset, long regionMapSize) throws IOException {
+        FATRegionMap map = new FATRegionMap(mapZone(regionMapOffset, regionMapSize), clusterCount);
         try {
-            ret.randomAccessFile = new RandomAccessFile(path.toString(), "rw");
-            ret.randomAccessFile.setLength(sizeFS);
-            ret.initStorage(clusterSize, clusterCount, allocatorType);
-            success = true;
-            ret.state = SystemState.ACTIVE;
-        } finally {
-            if (!success) {
-                //rest in [INIT] state - no action
-                ret.close();
-            }        
+            map.load();
+        } catch (IOException e) {
+            map.unmap();
+            if (normalMode)
+                throw e;
+            // the repair builds the map from scratch, see [rebuildFreeSpace]
+            maintenanceProblems.add(e.getMessage());
+            return;
         }
-        return ret;
+        regionMap = map;
     }
 
     /**
-     * Initializes new storage from parameters.
+     * Maps the part of host file after the [Data Section].
      *
-     * @param _clusterSize single cluster size
-     * @param _clusterCount count of clusters in created storage
-     * @param allocatorType the allocation algorithm for FAT
+     * @param offset the offset in host file
+     * @param size the size of the part
+     * @return the read-write view in the storage byte order
      * @throws IOException
      */
-    private void initStorage(int _clusterSize, int _clusterCount,
-                             int allocatorType) throws IOException {
-        fsVersion = VERSION;
-        clusterSize = _clusterSize;
-        clusterCount = _clusterCount;
-        initDenormalized();
-        freeClusterCount = clusterCount;
-        fileChannel = randomAccessFile.getChannel();
-
-        // map FAT section
-        fatZone = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fatOffset + clusterCount*FAT_E_SIZE);
-        fatZone.order(byteOrder)
-        //writeToChannel( allocateBuffer(HEADER_SIZE)
-            // init header
-            .putInt(MAGIC_WORD)
-            .putInt(fsVersion)     //FS version
-            .putInt(allocatorType)
-            .putInt(clusterSize)
-            .putInt(clusterCount)
-            //Set dirty flag in free cluster count. We drop it on right close.
-            .putInt(-1);
-        //);
-        clusterAllocator = createAllocator(allocatorType);
-        clusterAllocator.initFAT();
-        forceFat();
+    private MappedByteBuffer mapZone(long offset, long size) throws IOException {
+        if (size > MAPFILE_SIZE_LIMIT)
+            throw new IOException("Wrong size of storage part:" + size);
+        MappedByteBuffer zone = fileChannel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+        zone.order(byteOrder);
+        return zone;
     }
 
-    private void writeFreeClusterCount(int value) {
-        synchronized (this) {
-            //fully constructed FS
-            if (isNormalMode() 
-                    && (state != SystemState.CLOSED) 
-                    && (fatZone != null)) 
-            {
-                // saves real dirty status
-                fatZone.putInt(FREE_CLUSTER_COUNT_OFFSET, value);
+    /**
+     * Checks the entries of dirty regions and recounts their free clusters.
+     *
+     * PERFORMANCE HINT: the clean regions are not read, their free
+     * cluster counts come from the map.
+     *
+     * Have to be called on open only, after the journal rollback.
+     *
+     * @throws IOException
+     */
+    private void validateDirtyRegions() throws IOException {
+        long free = 0;
+        for (int region = 0; region < regionMap.getRegionCount(); ++region) {
+            if (regionMap.isDirty(region)) {
+                int count = countFreeClusters(region);
+                if (count < 0) {
+                    setDirtyState("Damaged FAT region #" + region, false);
+                    return;
+                }
+                regionMap.setFreeCount(region, count);
             }
-        } 
+            free += regionMap.getFreeCount(region);
+        }
+        if (free != freeClusterCount)
+            setDirtyState("Region map does not fit the free cluster count.", false);
     }
 
-    void writeRootInfo(ByteBuffer rootInfo) throws IOException {
-        if (rootInfo.remaining() > FATFile.RECORD_SIZE)
-            throw new IOException("Wrong root info.");
-        synchronized (this) {
+    /**
+     * Adds clusters to [VERSION_GROWABLE] storage online.
+     *
+     * The FAT is mapped up to the capacity, so only the entries of new
+     * clusters are formatted and spliced into the free space
+     * (see [FATClusterAllocator.growFAT]). The new clusters take the place
+     * of the region map and the journal, those start from scratch at
+     * the new end of [Data Section]. The growth goes at the quiescent
+     * point: the journal has no record to keep, see [FATFileSystem.grow].
+     *
+     * The header keeps the dirty marker and the journals are invalid during
+     * the growth: the crash in the middle leaves the storage for maintenance.
+     *
+     * Have not to be called in transaction.
+     *
+     * @param newClusterCount the new number of clusters, up to the FAT capacity
+     * @throws IOException for bad cluster count or file access problem in the host FS
+     */
+    void grow(int newClusterCount) throws IOException {
+        fatLock.lock();
+        try {
             checkCanWrite();
-            fatZone.position(ROOT_RECORD_OFFSET);
-            fatZone.put(rootInfo);
+            if (fsVersion != VERSION_GROWABLE || !isNormalMode())
+                throw new IOException("The storage could not grow. Version: " + fsVersion);
+            if (!quiescent)
+                throw new IOException("The storage could not grow in transaction.");
+            if (newClusterCount <= clusterCount || newClusterCount > fatCapacity)
+                throw new IOException("Bad value of cluster count:" + newClusterCount);
+            ts_grow(newClusterCount);
+        } finally {
+            fatLock.unlock();
         }
     }
 
-    ByteBuffer getRootInfo() throws IOException {
-        byte[] bb = new byte[FATFile.RECORD_SIZE];
-        synchronized (this) {
-            checkCanRead();
-            fatZone.position(ROOT_RECORD_OFFSET);
-            fatZone.get(bb);
-            return ByteBuffer.wrap(bb).order(byteOrder);
+    /**
+     * Have to be called under [fatLock] at the quiescent point.
+     */
+    private void ts_grow(int newClusterCount) throws IOException {
+        int oldCount = clusterCount;
+        int freeCount = freeClusterCount + (newClusterCount - oldCount);
+        long dataEnd = dataOffset + (long)newClusterCount*clusterSize;
+        long regionMapSize = FATRegionMap.getSize(newClusterCount);
+        long journalSize = journal.getSize();
+        boolean success = false;
+        try {
+            fatZone.putInt(FREE_CLUSTER_COUNT_OFFSET, -1);
+            fatZone.force();
+            // the growth is not journaled: the crash goes to maintenance
+            journal.invalidate();
+            randomAccessFile.setLength(dataEnd + regionMapSize + journalSize);
+            clusterAllocator.growFAT(oldCount, newClusterCount);
+
+            // the old region counts stay, the new clusters are free
+            FATRegionMap newRegionMap = new FATRegionMap(mapZone(dataEnd, regionMapSize),
+                    newClusterCount);
+            newRegionMap.init();
+            for (int region = 0; region < regionMap.getRegionCount(); ++region) {
+                newRegionMap.setFreeCount(region, regionMap.getFreeCount(region)
+                        + newRegionMap.getRegionEnd(region) - regionMap.getRegionEnd(region));
+            }
+            FATJournal newJournal = new FATJournal(mapZone(dataEnd + regionMapSize, journalSize));
+            // the old zones are the new clusters from here
+            regionMap.unmap();
+            journal.unmap();
+            regionMap = newRegionMap;
+            journal = newJournal;
+            regionMap.save();
+            // the new journal is not valid till the commit point
+            journal.init(freeCount);
+            journal.invalidate();
+
+            // commit point
+            clusterAllocator.force();
+            fatZone.force();
+            fatZone.putInt(CLUSTER_COUNT_OFFSET, newClusterCount);
+            clusterCount = newClusterCount;
+            freeClusterCount = freeCount;
+            fatZone.putInt(FREE_CLUSTER_COUNT_OFFSET, freeCount);
+            forceFat();
+            journal.reset(freeCount);
+
+            if (mappedData != null) {
+                FATMappedData data = mappedData;
+                mappedData = null;
+                data.close();
+                mappedData = new FATMappedData(fileChannel, dataOffset, getSize(),
+                        data.getSegmentSize());
+            }
+            success = true;
+        } finally {
+            if (!success)
+                setDirtyState("Storage growth failed.", false);
         }
     }
 
-    void markDiskStateDirty() {
-        writeFreeClusterCount(-1);
+    /**
+     * @return the max number of clusters, see [grow]
+     */
+    int getFatCapacity() {
+        return fatCapacity;
     }
 
-    void markDiskStateActual() {
-        writeFreeClusterCount(freeClusterCount);
+    /**
+     * Counts the clusters of the chain.
+     *
+     * @param startCluster the head of chain
+     * @return the length of the chain
+     * @throws IOException if the chain is broken
+     */
+    int getChainLength(int startCluster) throws IOException {
+        fatLock.lock();
+        try {
+            checkCanRead();
+            int length = 1;
+            int cluster = startCluster;
+            while (getFatEntry(cluster) != FATClusterAllocator.CLUSTER_EOC) {
+                if (length == clusterCount)
+                    setDirtyState("Cluster chain is looped. Cluster#:" + startCluster, true);
+                cluster = getShift(cluster, 1);
+                ++length;
+            }
+            return length;
+        } finally {
+            fatLock.unlock();
+        }
     }
 
+    /**
+     * Counts the physically contiguous runs of the chain, see [FATDefragmenter].
+     *
+     * @param startCluster the head of chain
+     * @param length the length of the chain
+     * @return the number of runs, [1] for contiguous chain
+     * @throws IOException if the chain is broken
+     */
+    int getRunCount(int startCluster, int length) throws IOException {
+        fatLock.lock();
+        try {
+            checkCanRead();
+            int runs = 0;
+            int cluster = startCluster;
+            while (length > 0) {
+                int run = getRunLength(cluster, length);
+                ++runs;
+                length -= run;
+                if (length > 0)
+                    cluster = getShift(cluster + run - 1, 1);
+            }
+            return runs;
+        } finally {
+            fatLock.unlock();
+        }
+    }
 
-    @Override
-    public void close() throws IOException {
-        synchronized (this) {
-            if (state == SystemState.CLOSED)
-                throw new IOException("Storage was closed earlier.");
-            
-            boolean needGCrun = false;
+    /**
+     * Allocates the contiguous run of free clusters for the chain
+     * after [startCluster], see [FATDefragmenter].
+     *
+     * The run just after [startCluster] goes first: the whole chain
+     * becomes contiguous. The run is a chain in index order.
+     *
+     * PERFORMANCE HINT: the FAT is searched by steps of [RUN_SEARCH_STEP]
+     * entries, the FAT lock is free between the steps.
+     *
+     * @param startCluster the head of chain
+     * @param count the length of the run
+     * @param adjacentOnly [true] if the run have to follow [startCluster]
+     * @return the first cluster of the run, [-1] if there is no free run
+     * @throws IOException
+     */
+    int allocateRun(int startCluster, int count, boolean adjacentOnly) throws IOException {
+        fatLock.lock();
+        try {
+            checkCanWrite();
+            if (count > freeClusterCount)
+                return -1;
+            if (isFreeRun(startCluster + 1, count))
+                return clusterAllocator.allocateRun(startCluster + 1, count) ? startCluster + 1 : -1;
+            if (adjacentOnly)
+                return -1;
+        } finally {
+            fatLock.unlock();
+        }
+        int run = 0;
+        int cluster = 0;
+        while (true) {
+            fatLock.lock();
             try {
-                if (randomAccessFile != null) {
-                    if (fileChannel != null) {
-                        if (fatZone != null) {
-                            markDiskStateActual();
-                            force();
-                            if (fatZone instanceof DirectBuffer) {
-                                // That is bad, but it is the only available solution
-                                // http://stackoverflow.com/questions/2972986/how-to-unmap-a-file-from-memory-mapped-using-filechannel-in-java
-                                sun.misc.Cleaner cleaner = ((DirectBuffer)fatZone).cleaner();
-                                // critical point: fatZone have to be [null] ASAP to avoid 
-                                // finalizer call with double free and JVM crash
-                                fatZone = null;
-                                cleaner.clean();
-                            } else {
-                                fatZone = null;
-                                LogError("Not Oracle implementation for memory-mapped file."
-                                       + "We can get a problem. Trying direct GC call.");
-                            }
-                            needGCrun = true;
-                        }
-                        fileChannel.close();
+                checkCanWrite();
+                int end = Math.min(cluster + RUN_SEARCH_STEP, clusterCount);
+                if (cluster >= end)
+                    return -1;
+                for (; cluster < end; ++cluster) {
+                    if (run == 0 && isInFullRegion(cluster)) {
+                        cluster = getRegionEnd(cluster) - 1;
+                        continue;
+                    }
+                    if (!FATRegionMap.isFreeEntry(getFatEntry(cluster))) {
+                        run = 0;
+                    } else if (++run == count) {
+                        // the start of run could be taken between the steps
+                        int first = cluster - count + 1;
+                        if (isFreeRun(first, count))
+                            return clusterAllocator.allocateRun(first, count) ? first : -1;
+                        run = 0;
                     }
-                    randomAccessFile.close();
                 }
             } finally {
-                // RIP
-                state = SystemState.CLOSED;
-                if (needGCrun)
-                    System.gc();
+                fatLock.unlock();
             }
         }
     }
 
-    public void forceChannel(boolean updateMetadata) throws IOException {
-        boolean success = false;
+    /**
+     * Replaces the chain after [startCluster] by the [run] with the same
+     * content, the old clusters become free, see [FATDefragmenter].
+     *
+     * @param startCluster the head of chain
+     * @param run the first cluster of the new chain tail
+     * @throws IOException
+     */
+    void swapChainTail(int startCluster, int run) throws IOException {
+        fatLock.lock();
         try {
-            fileChannel.force(updateMetadata);
-            success = true;
+            checkCanWrite();
+            int fatEntry = getFatEntry(startCluster);
+            if ((fatEntry & FATClusterAllocator.CLUSTER_STATUS) != FATClusterAllocator.CLUSTER_ALLOCATED)
+                setDirtyState("Cluster chain is broken. Cluster#:" + startCluster
+                        + " Value:" + fatEntry, true);
+            putFatEntry(startCluster, FATClusterAllocator.CLUSTER_ALLOCATED | run);
+            clusterAllocator.freeClusters(fatEntry & FATClusterAllocator.CLUSTER_INDEX, true);
         } finally {
-            if (!success)
-                setDirtyState("Cannot force data to host FS.", false);
+            fatLock.unlock();
         }
     }
 
-    public void force() throws IOException {
-        synchronized (this) {
-            // One is not a guaranty for another            
-            forceChannel(true);
+    /**
+     * Have to be called under [fatLock].
+     */
+    private boolean isFreeRun(int first, int count) {
+        if (first < 0 || (long)first + count > clusterCount)
+            return false;
+        for (int cluster = first; cluster < first + count; ++cluster) {
+            if (!FATRegionMap.isFreeEntry(getFatEntry(cluster)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Cuts the chain in repair, see [FATMaintenance].
+     *
+     * @param cluster the new end of the chain
+     * @throws IOException
+     */
+    void repairChainEnd(int cluster) throws IOException {
+        fatLock.lock();
+        try {
+            checkCanWrite();
+            putFatEntry(cluster, FATClusterAllocator.CLUSTER_EOC);
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the free space after the repair of chains, see [FATMaintenance].
+     *
+     * The storage becomes consistent: the dirty state is dropped, the region
+     * map and the journal of [VERSION_JOURNAL] storage start from scratch.
+     *
+     * @param used the clusters of valid chains
+     * @return the number of free clusters
+     * @throws IOException
+     */
+    int rebuildFreeSpace(FATMaintenance.ClusterMap used) throws IOException {
+        fatLock.lock();
+        try {
+            checkCanWrite();
+            int free = clusterAllocator.rebuildFreeSpace(used);
+            freeClusterCount = free;
+            if (fsVersion >= VERSION_JOURNAL) {
+                long sizeFS = getDataEnd();
+                long regionMapSize = 0;
+                if (hasRegionMap(fsVersion)) {
+                    regionMapSize = FATRegionMap.getSize(clusterCount);
+                    if (regionMap == null)
+                        regionMap = new FATRegionMap(mapZone(sizeFS, regionMapSize), clusterCount);
+                    regionMap.init();
+                    for (int region = 0; region < regionMap.getRegionCount(); ++region) {
+                        int count = countFreeClusters(region);
+                        if (count < 0)
+                            throw new IOException("Damaged FAT region #" + region + " after repair");
+                        regionMap.setFreeCount(region, count);
+                    }
+                    regionMap.save();
+                }
+                long journalSize = randomAccessFile.length() - sizeFS - regionMapSize;
+                if (journal == null && journalSize >= MIN_JOURNAL_SIZE)
+                    journal = new FATJournal(mapZone(sizeFS + regionMapSize, journalSize));
+                if (journal != null)
+                    journal.init(free);
+            }
+            // the dirty marker goes away
+            fatZone.putInt(FREE_CLUSTER_COUNT_OFFSET, free);
+            state = SystemState.ACTIVE;
             forceFat();
+            return free;
+        } finally {
+            fatLock.unlock();
         }
     }
 
     /**
-     * Flush content to disk.
-     * Have to be called in synchronized section
+     * Checks the next region of the clean storage: the lazy part of open.
+     *
+     * The clean regions are trusted on open by the free cluster counts of
+     * [regionMap]; the check confirms the counts in background, one region
+     * per call under [fatLock].
+     *
+     * @return [false] if there is no region to check or the storage is not active
+     * @throws IOException
      */
-    private void forceFat() throws IOException {
-        clusterAllocator.force();
-        fatZone.force();
+    boolean validateNextRegion() throws IOException {
+        fatLock.lock();
+        try {
+            if (regionMap == null || state != SystemState.ACTIVE
+                    || validatedRegionCount >= regionMap.getRegionCount())
+                return false;
+            int region = validatedRegionCount++;
+            // the count of region is actual at any time under [fatLock]
+            if (countFreeClusters(region) != regionMap.getFreeCount(region)) {
+                setDirtyState("Damaged FAT region #" + region, false);
+                return false;
+            }
+            return true;
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of FAT regions, [0] for storage without region map
+     */
+    int getRegionCount() {
+        fatLock.lock();
+        try {
+            return (regionMap != null) ? regionMap.getRegionCount() : 0;
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    int getValidatedRegionCount() {
+        fatLock.lock();
+        try {
+            return validatedRegionCount;
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * Checks the free-space summary for the region of the cluster.
+     *
+     * Have to be called under [fatLock].
+     *
+     * @param cluster the index of the cluster in FAT
+     * @return [true] if the region has no free cluster,
+     *         [false] if it has or there is no summary
+     */
+    boolean isInFullRegion(int cluster) {
+        return regionMap != null
+            && regionMap.getFreeCount(cluster >>> FATRegionMap.REGION_SHIFT) == 0;
+    }
+
+    /**
+     * @param cluster the index of the cluster in FAT
+     * @return the index after the last cluster of the region
+     */
+    int getRegionEnd(int cluster) {
+        return regionMap.getRegionEnd(cluster >>> FATRegionMap.REGION_SHIFT);
+    }
+
+    /**
+     * @return the number of free clusters in the region,
+     *         [-1] for the entry of wrong format
+     */
+    private int countFreeClusters(int region) {
+        int free = 0;
+        for (int i = regionMap.getRegionStart(region); i < regionMap.getRegionEnd(region); ++i) {
+            int fatEntry = getFatEntry(i);
+            if (!clusterAllocator.isValidEntry(fatEntry))
+                return -1;
+            if (FATRegionMap.isFreeEntry(fatEntry))
+                ++free;
+        }
+        return free;
+    }
+
+    /**
+     * Maps the journal, rolls the unfinished transactions back.
+     *
+     * PERFORMANCE HINT: the recovery reads the journal only,
+     * no FAT scan for the crash with open transactions.
+     *
+     * @param journalOffset the offset of journal in host file
+     * @param journalSize the size of journal in bytes
+     * @throws IOException
+     */
+    private void openJournal(long journalOffset, long journalSize) throws IOException {
+        journal = new FATJournal(mapZone(journalOffset, journalSize));
+        boolean valid;
+        try {
+            valid = journal.load();
+        } catch (IOException e) {
+            if (normalMode)
+                throw e;
+            // the repair formats the journal, see [rebuildFreeSpace]
+            journal.unmap();
+            journal = null;
+            maintenanceProblems.add(e.getMessage());
+            return;
+        }
+        if (freeClusterCount < 0 && normalMode && valid) {
+            int count = journal.rollback(this);
+            freeClusterCount = journal.getFreeClusterCount();
+            LogError("Recovered by journal. Rolled back changes: " + count);
+        }
+        if (freeClusterCount < 0) {
+            // the maintenance changes are not journaled
+            journal.invalidate();
+        } else {
+            journal.reset(freeClusterCount);
+        }
+    }
+
+    /**
+     * Restores the bytes of journal record.
+     *
+     * Have to be called on open only, before the storage is in use.
+     *
+     * @param hostPos the position of the bytes in host file
+     * @param bytes the bytes before the change
+     * @throws IOException
+     */
+    void restoreJournaled(long hostPos, ByteBuffer bytes) throws IOException {
+        if (hostPos + bytes.remaining() <= fatZone.capacity()) {
+            fatZone.clear().position((int) hostPos);
+            fatZone.put(bytes);
+            fatZone.clear();
+            return;
+        }
+        while (bytes.hasRemaining())
+            hostPos += fileChannel.write(bytes, hostPos);
+    }
+
+    /**
+     * Creates new FAT file system.
+     * @param path is the path in host FS for file storage that need be created
+     * @param clusterSize  the size of single cluster. Mast be at least [FATFile.RECORD_SIZE] size
+     * @param clusterCount the total number of clusters in created file storage.
+     * @param allocatorType the cluster allocation strategy
+     * @return new In-file FS over the file that created in host FS.
+     * @throws IOException for bad parameters or file access problem in the host FS
+     */
+    public static FATSystem create(Path path, int clusterSize,int clusterCount,
+                                   int allocatorType) throws IOException {
+        return create(path, clusterSize, clusterCount, allocatorType, DATA_ALIGNMENT_NONE);
+    }
+
+    /**
+     * Creates new FAT file system with aligned [Data Section].
+     *
+     * PERFORMANCE HINT: with page alignment and the cluster size that
+     * is a multiple of page (or a power of two below it) no cluster
+     * straddles two host pages. That allows aligned I/O, cheaper mapping
+     * and full-page writes.
+     *
+     * @param path is the path in host FS for file storage that need be created
+     * @param clusterSize  the size of single cluster. Mast be at least [FATFile.RECORD_SIZE] size
+     * @param clusterCount the total number of clusters in created file storage.
+     * @param allocatorType the cluster allocation strategy
+     * @param dataAlignment the alignment of [Data Section] in host file,
+     *                      [DATA_ALIGNMENT_NONE] or power of two
+     * @return new In-file FS over the file that created in host FS.
+     * @throws IOException for bad parameters or file access problem in the host FS
+     */
+    public static FATSystem create(Path path, int clusterSize,int clusterCount,
+                                   int allocatorType, int dataAlignment) throws IOException {
+        return create(path, clusterSize, clusterCount, allocatorType, dataAlignment,
+                ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Creates new FAT file system with aligned [Data Section] and
+     * the given encoding.
+     *
+     * PERFORMANCE HINT: the [ByteOrder.nativeOrder()] encoding saves
+     * the byte swap on each FAT entry and record field access.
+     *
+     * @param path is the path in host FS for file storage that need be created
+     * @param clusterSize  the size of single cluster. Mast be at least [FATFile.RECORD_SIZE] size
+     * @param clusterCount the total number of clusters in created file storage.
+     * @param allocatorType the cluster allocation strategy
+     * @param dataAlignment the alignment of [Data Section] in host file,
+     *                      [DATA_ALIGNMENT_NONE] or power of two
+     * @param byteOrder the encoding of header, FAT and records
+     * @return new In-file FS over the file that created in host FS.
+     * @throws IOException for bad parameters or file access problem in the host FS
+     */
+    public static FATSystem create(Path path, int clusterSize,int clusterCount,
+                                   int allocatorType, int dataAlignment,
+                                   ByteOrder byteOrder) throws IOException {
+        return create(path, clusterSize, clusterCount, allocatorType, dataAlignment,
+                byteOrder, 0);
+    }
+
+    /**
+     * Creates new FAT file system with metadata journal.
+     *
+     * PERFORMANCE HINT: the storage with journal recovers after
+     * the process crash by the journal rollback, without maintenance.
+     * The journal have to hold the metadata changes of the longest
+     * concurrent transaction pool, the overflow leaves the crashed
+     * storage for maintenance.
+     *
+     * @param path is the path in host FS for file storage that need be created
+     * @param clusterSize  the size of single cluster. Mast be at least [FATFile.RECORD_SIZE] size
+     * @param clusterCount the total number of clusters in created file storage.
+     * @param allocatorType the cluster allocation strategy
+     * @param dataAlignment the alignment of [Data Section] in host file,
+     *                      [DATA_ALIGNMENT_NONE] or power of two
+     * @param byteOrder the encoding of header, FAT and records
+     * @param journalSize the size of journal in bytes, [0] for no journal
+     *                    or at least [MIN_JOURNAL_SIZE]
+     * @return new In-file FS over the file that created in host FS.
+     * @throws IOException for bad parameters or file access problem in the host FS
+     */
+    public static FATSystem create(Path path, int clusterSize,int clusterCount,
+                                   int allocatorType, int dataAlignment,
+                                   ByteOrder byteOrder, int journalSize) throws IOException {
+        return create(path, clusterSize, clusterCount, allocatorType, dataAlignment,
+                byteOrder, journalSize, 0);
+    }
+
+    /**
+     * Creates new FAT file system that could grow online, see [grow].
+     *
+     * PERFORMANCE HINT: the FAT section takes [fatCapacity] entries
+     * in host file, the [Data Section] goes after it. The headroom
+     * costs 4 bytes per cluster.
+     *
+     * @param path is the path in host FS for file storage that need be created
+     * @param clusterSize  the size of single cluster. Mast be at least [FATFile.RECORD_SIZE] size
+     * @param clusterCount the total number of clusters in created file storage.
+     * @param allocatorType the cluster allocation strategy
+     * @param dataAlignment the alignment of [Data Section] in host file,
+     *                      [DATA_ALIGNMENT_NONE] or power of two
+     * @param byteOrder the encoding of header, FAT and records
+     * @param journalSize the size of journal in bytes, at least [MIN_JOURNAL_SIZE]
+     *                    for growable storage
+     * @param fatCapacity the max number of clusters, [0] for the storage
+     *                    that could not grow
+     * @return new In-file FS over the file that created in host FS.
+     * @throws IOException for bad parameters or file access problem in the host FS
+     */
+    public static FATSystem create(Path path, int clusterSize,int clusterCount,
+                                   int allocatorType, int dataAlignment,
+                                   ByteOrder byteOrder, int journalSize,
+                                   int fatCapacity) throws IOException {
+        if (clusterSize < FATFile.RECORD_SIZE)
+            throw new IOException("Bad value of cluster size:" + clusterSize);
+        if (journalSize != 0 && journalSize < MIN_JOURNAL_SIZE)
+            throw new IOException("Bad value of journal size:" + journalSize);
+        // the growth moves the region map and the journal
+        if (fatCapacity != 0 && (fatCapacity < clusterCount || journalSize == 0))
+            throw new IOException("Bad value of FAT capacity:" + fatCapacity);
+        checkDataAlignment(clusterSize, dataAlignment);
+
+        // max storage size for 4k cluster: CLUSTER_INDEX*4096 = 3FF FFFF F000
+        // 0x3FFFFFFF000/0x10000000000 = 3T - big enough.
+        long sizeFS = (fatCapacity != 0)
+                ? getRequestedStorageFileSize(clusterSize, clusterCount, fatCapacity,
+                        getFatOffset(VERSION_GROWABLE), dataAlignment)
+                : getRequestedStorageFileSize(clusterSize, clusterCount, clusterCount,
+                        getFatOffset(VERSION), dataAlignment);
+
+        FATSystem ret = new FATSystem(true);
+        ret.byteOrder = byteOrder;
+        boolean success = false;
+        try {
+            ret.randomAccessFile = new RandomAccessFile(path.toString(), "rw");
+            ret.randomAccessFile.setLength(sizeFS
+                    + ((journalSize > 0) ? FATRegionMap.getSize(clusterCount) : 0)
+                    + journalSize);
+            ret.initStorage(clusterSize, clusterCount, allocatorType, dataAlignment,
+                    journalSize, fatCapacity);
+            success = true;
+            ret.state = SystemState.ACTIVE;
+        } finally {
+            if (!success) {
+                //rest in [INIT] state - no action
+                ret.close();
+            }        
+        }
+        return ret;
+    }
+
+    /**
+     * Initializes new storage from parameters.
+     *
+     * @param _clusterSize single cluster size
+     * @param _clusterCount count of clusters in created storage
+     * @param allocatorType the allocation algorithm for FAT
+     * @param _dataAlignment the alignment of [Data Section]
+     * @param journalSize the size of journal, [0] for no journal
+     * @param _fatCapacity the max number of clusters, [0] for fixed storage
+     * @throws IOException
+     */
+    private void initStorage(int _clusterSize, int _clusterCount,
+                             int allocatorType, int _dataAlignment,
+                             int journalSize, int _fatCapacity) throws IOException {
+        fsVersion = (_fatCapacity != 0)
+                ? VERSION_GROWABLE
+                : (journalSize > 0) ? VERSION_REGION_MAP : VERSION;
+        clusterSize = _clusterSize;
+        clusterCount = _clusterCount;
+        fatCapacity = (_fatCapacity != 0) ? _fatCapacity : _clusterCount;
+        dataAlignment = _dataAlignment;
+        initDenormalized();
+        freeClusterCount = clusterCount;
+        fileChannel = randomAccessFile.getChannel();
+
+        // map FAT section
+        fatZone = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fatOffset + fatCapacity*FAT_E_SIZE);
+        fatZone.order(byteOrder)
+        //writeToChannel( allocateBuffer(HEADER_SIZE)
+            // init header
+            .putInt(MAGIC_WORD)
+            .putInt(fsVersion)     //FS version
+            .putInt(allocatorType)
+            .putInt(clusterSize)
+            .putInt(clusterCount)
+            //Set dirty flag in free cluster count. We drop it on right close.
+            .putInt(-1)
+            .putInt(dataAlignment);
+        //);
+        if (fsVersion == VERSION_GROWABLE)
+            fatZone.putInt(FAT_CAPACITY_OFFSET, fatCapacity);
+        clusterAllocator = createAllocator(allocatorType);
+        clusterAllocator.initFAT();
+        if (journalSize > 0) {
+            long sizeFS = getDataEnd();
+            long regionMapSize = FATRegionMap.getSize(clusterCount);
+            regionMap = new FATRegionMap(mapZone(sizeFS, regionMapSize), clusterCount);
+            regionMap.init();
+            journal = new FATJournal(mapZone(sizeFS + regionMapSize, journalSize));
+            journal.init(freeClusterCount);
+        }
+        forceFat();
+    }
+
+    private void writeFreeClusterCount(int value) {
+        fatLock.lock();
+        try {
+            //fully constructed FS
+            if (isNormalMode() 
+                    && (state != SystemState.CLOSED) 
+                    && (fatZone != null)) 
+            {
+                // saves real dirty status
+                fatZone.putInt(FREE_CLUSTER_COUNT_OFFSET, value);
+            }
+        } finally {
+            fatLock.unlock();
+        } 
+    }
+
+    void writeRootInfo(ByteBuffer rootInfo) throws IOException {
+        if (rootInfo.remaining() > FATFile.RECORD_SIZE)
+            throw new IOException("Wrong root info.");
+        fatLock.lock();
+        try {
+            checkCanWrite();
+            if (journal != null) {
+                ByteBuffer before = fatZone.duplicate();
+                before.limit(ROOT_RECORD_OFFSET + rootInfo.remaining()).position(ROOT_RECORD_OFFSET);
+                journal.log(ROOT_RECORD_OFFSET, before);
+            }
+            fatZone.position(ROOT_RECORD_OFFSET);
+            fatZone.put(rootInfo);
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the root record.
+     *
+     * @return the buffer from [allocateBuffer], could be released by caller
+     * @throws IOException
+     */
+    ByteBuffer getRootInfo() throws IOException {
+        ByteBuffer bf = allocateBuffer(FATFile.RECORD_SIZE);
+        fatLock.lock();
+        try {
+            checkCanRead();
+            int limit = fatZone.limit();
+            fatZone.limit(ROOT_RECORD_OFFSET + FATFile.RECORD_SIZE).position(ROOT_RECORD_OFFSET);
+            bf.put(fatZone);
+            fatZone.limit(limit);
+            bf.flip();
+            return bf;
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    void markDiskStateDirty() {
+        fatLock.lock();
+        try {
+            quiescent = false;
+            writeFreeClusterCount(-1);
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * Saves the consistent state: no open transaction.
+     *
+     * The journal restarts here, the rollback returns to the point.
+     */
+    void markDiskStateActual() {
+        fatLock.lock();
+        try {
+            if (journal != null && clusterAllocator != null && normalMode
+                    && state != SystemState.DIRTY && state != SystemState.CLOSED) {
+                try {
+                    // the allocator state goes to FAT under the journal
+                    clusterAllocator.force();
+                    journal.reset(freeClusterCount);
+                } catch (IOException e) {
+                    journal.invalidate();
+                    LogError("Journal problem: " + e.getMessage());
+                }
+            }
+            writeFreeClusterCount(freeClusterCount);
+            quiescent = true;
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of FAT regions that changed after the last
+     *         clean point, [0] for storage without region map
+     */
+    int getDirtyRegionCount() {
+        fatLock.lock();
+        try {
+            return (regionMap != null) ? regionMap.getDirtyCount() : 0;
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * @return the size of journal in bytes, [0] for storage without journal
+     */
+    int getJournalSize() {
+        fatLock.lock();
+        try {
+            return (journal != null) ? journal.getSize() : 0;
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        fatLock.lock();
+        try {
+            if (state == SystemState.CLOSED)
+                throw new IOException("Storage was closed earlier.");
+            
+            boolean needGCrun = false;
+            try {
+                if (randomAccessFile != null) {
+                    if (fileChannel != null) {
+                        if (fatZone != null) {
+                            markDiskStateActual();
+                            force();
+                            if (mappedData != null) {
+                                FATMappedData data = mappedData;
+                                mappedData = null;
+                                if (!data.unmap()) {
+                                    LogError("Cannot unmap the data section.");
+                                }
+                            }
+                            if (journal != null) {
+                                FATJournal zone = journal;
+                                journal = null;
+                                if (!zone.unmap()) {
+                                    LogError("Cannot unmap the journal.");
+                                }
+                            }
+                            if (regionMap != null) {
+                                FATRegionMap zone = regionMap;
+                                regionMap = null;
+                                if (!zone.unmap()) {
+                                    LogError("Cannot unmap the region map.");
+                                }
+                            }
+                            // critical point: fatZone have to be [null] ASAP to avoid
+                            // finalizer call with double free and JVM crash
+                            MappedByteBuffer zone = fatZone;
+                            fatZone = null;
+                            if (!unmap(zone)) {
+                                LogError("Not Oracle implementation for memory-mapped file."
+                                       + "We can get a problem. Trying direct GC call.");
+                            }
+                            needGCrun = true;
+                        }
+                        fileChannel.close();
+                    }
+                    randomAccessFile.close();
+                }
+            } finally {
+                // RIP
+                state = SystemState.CLOSED;
+                if (needGCrun)
+                    System.gc();
+            }
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    public void forceChannel(boolean updateMetadata) throws IOException {
+        boolean success = false;
+        try {
+            fileChannel.force(updateMetadata);
+            success = true;
+        } finally {
+            if (!success)
+                setDirtyState("Cannot force data to host FS.", false);
+        }
+    }
+
+    public void force() throws IOException {
+        fatLock.lock();
+        try {
+            // One is not a guaranty for another            
+            if (mappedData != null)
+                mappedData.force();
+            forceChannel(true);
+            forceFat();
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * Makes the written data and FAT durable.
+     *
+     * The concurrent calls share the syncs, see [FATGroupCommit].
+     *
+     * @param updateMetadata [true] if the host file metadata have to be synced too
+     * @throws IOException
+     */
+    void sync(boolean updateMetadata) throws IOException {
+        groupCommit.sync(updateMetadata);
+    }
+
+    /**
+     * One data sync and one FAT sync for the [groupCommit] batch.
+     *
+     * The data goes first: the durable FAT never points to the lost data.
+     * The host data sync is out of [fatLock], the I/O goes on.
+     */
+    void syncStorage(boolean updateMetadata) throws IOException {
+        checkCanRead();
+        forceChannel(updateMetadata);
+        fatLock.lock();
+        try {
+            checkCanRead();
+            if (mappedData != null)
+                mappedData.force();
+            forceFat();
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    void setCommitDelay(long delay) {
+        groupCommit.setCommitDelay(delay);
+    }
+
+    long getCommitDelay() {
+        return groupCommit.getCommitDelay();
+    }
+
+    long getSyncRequestCount() {
+        return groupCommit.getRequestCount();
+    }
+
+    long getSyncCount() {
+        return groupCommit.getSyncCount();
+    }
+
+    /**
+     * Flush content to disk.
+     * Have to be called under [fatLock]
+     */
+    private void forceFat() throws IOException {
+        clusterAllocator.force();
+        fatZone.force();
+        // the changed regions are durable and consistent
+        if (regionMap != null && quiescent)
+            regionMap.clean();
+    }
+
+
+    int getVersion() {
+       return fsVersion;
+    }
+
+    /**
+     * @return the damaged parts of storage that were skipped
+     *         by the open in maintenance mode
+     */
+    List<String> getMaintenanceProblems() {
+        return maintenanceProblems;
+    }
+
+    /**
+     * @return the encoding of header, FAT and records
+     */
+    ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    /**
+     * @return the alignment of [Data Section] in host file,
+     *         [DATA_ALIGNMENT_NONE] for packed layout
+     */
+    int getDataAlignment() {
+        return dataAlignment;
+    }
+
+    /**
+     * Returns the capacity of FS
+     * @return the size of storage. That is the [Data Section] size.
+     */
+    public long getSize() {
+        return  (long)clusterCount*clusterSize;
+    }
+
+    /**
+     * Returns the cluster size of FS
+     * @return the size of cluster.
+     */
+    public int getClusterSize() {
+        return clusterSize;
+    }
+
+    /**
+     * Returns the free capacity of FS
+     * @return the free size in storage. The [<0] means dirty FAT and the system needs in maintenance.
+     */
+    public long getFreeSize() {
+        return (long)freeClusterCount*clusterSize;
+    }
+
+    /**
+     * Reads cluster content. Need for maintenance.
+     *
+     * @param cluster the index of the cluster in FAT
+     * @return cluster content in the pooled buffer, see [releaseBuffer]
+     * @throws IOException
+     */
+    public ByteBuffer readCluster(int cluster) throws IOException {
+        if (cluster < 0 || cluster >= clusterCount)
+            throw new IOException("Bad cluster index:" + cluster);
+
+        ByteBuffer bf = allocateBuffer(clusterSize);
+        fatLock.lock();
+        try {
+            checkCanRead();
+            fileChannel
+                .position(getClusterPosition(cluster))
+                .read(bf);
+        } finally {
+            fatLock.unlock();
+        }
+        return bf;
+    }
+
+    /**
+     * Allocates a cluster chain.
+     *
+     * @param tailCluster the index of the tail of the chain.
+     *        The -1 value means that the chain should not be joined.
+     *        Any other value means that allocated cain will join to [tailCluster] tail
+     * @param count the number of cluster in the returned chain
+     * @return the index of the first cluster in allocated chain.
+     * @throws IOException if the chain could not be allocated
+     */
+    int allocateClusters(int tailCluster, int count) throws IOException {
+        // - bitmap of free clusters in memory?
+        // - chunk with free block counting for sequential allocation?
+        // - two stage allocation with "gray"
+        //    +final static int CLUSTER_GALLOCATED = 0x80000000;
+        //    +final static int CLUSTER_GEOC       = 0xC8000000;
+        //   up bit?
+        // - resize if need?
+        if (count < 1)
+            throw new IOException("Cannot allocate" + count + "clusters.");
+        fatLock.lock();
+        try {
+            checkCanWrite();
+            if ((tailCluster < clusterCount) && (
+                    ((freeClusterCount >= 0) && (count <= freeClusterCount))
+                 || ((freeClusterCount  < 0) && (count <= clusterCount)))) // without guaranty on dirty FAT
+            {
+                try {
+                    if (tailCluster != -1 && getFatEntry(tailCluster) != FATClusterAllocator.CLUSTER_EOC)
+                        throw new IOException("Can join the chain with the tail only.");
+                    return clusterAllocator.allocateClusters(tailCluster, count);
+                } finally {
+                    //forceFat();
+                }
+            }
+            throw new IOException("Disk full.");
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * Frees chain that start from [headOffset] cluster.
+     *
+     * @param headOffset the head of the chain
+     * @param freeHead if [true] the chain is freed together with head cluster
+     *                 else head cluster is marked as [EOC]
+     * @throws IOException
+     */
+     void freeClusters(int headOffset, boolean freeHead) throws IOException {
+        fatLock.lock();
+        try {
+            checkCanWrite();
+            try {
+                clusterAllocator.freeClusters(headOffset, freeHead);
+            } finally {
+                //forceFat();
+            }
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * Calculates the length of chain in clusters to hold [size] bytes.
+     *
+     * @param size the number of bytes to hold
+     * @return the length of the chain
+     */
+    public int getSizeInClusters(long size) {
+        return (int)getSizeInUnits(size, clusterSize);
+    }
+
+    /**
+     * Finds the [newSizeInClusters] value in the list that starts from [startCluster]
+     *
+     * Have to be called under [fatLock].
+     *
+     * @param startCluster the start of the chain
+     * @param nextCount the number of [next] actions in list.
+     * @return the index of cluster that is at [newSizeInClusters] pos in chain.
+     */
+    private int getShift(int startCluster, int nextCount) throws IOException {
+        while (nextCount > 0) {
+            int fatEntry = getFatEntry(startCluster);
+            // CLUSTER_ALLOCATED only
+            if ((fatEntry & FATClusterAllocator.CLUSTER_ALLOCATED) == FATClusterAllocator.CLUSTER_ALLOCATED) {
+                startCluster = fatEntry & FATClusterAllocator.CLUSTER_INDEX;
+            } else {
+                setDirtyState("Cluster chain is broken. Cluster#:" + startCluster
+                        + " Value:" + fatEntry, true);
+            }
+            --nextCount;
+        }
+        return startCluster;
+    }
+
+    /**
+     * Adjust cluster chain to hold [newLength] bytes.
+     *
+     * if [newLength] is [0], one cluster need to be allocated.
+     *
+     * @param startCluster the index of of the first cluster in chain
+     * @param newLength the size in bytes to store in the chain
+     */
+    void adjustClusterChain(int startCluster, long newLength, long oldLength) throws IOException {
+        fatLock.lock();
+        try {
+            checkCanWrite();
+            // check only public parameters
+            if (newLength < 0 || newLength > getSize())
+                throw new IOException("Wrong FATFile size:" + newLength);
+            int oldSizeInClusters = (int)getSizeInUnits(oldLength, clusterSize);
+            int newSizeInClusters = (int)getSizeInUnits(newLength, clusterSize);
+            // do nothing for [newSizeInClusters = oldSizeInClusters]
+            if (newSizeInClusters < oldSizeInClusters) {
+                freeClusters(getShift(startCluster, newSizeInClusters - 1), false);
+            } else if (newSizeInClusters > oldSizeInClusters) {
+                int allocateCount = newSizeInClusters - oldSizeInClusters;
+                if (allocateCount > freeClusterCount)
+                    throw new IOException("Disk full.");
+                allocateClusters(getShift(startCluster, oldSizeInClusters - 1), allocateCount);
+            }
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * Writes to [fileChannel] along the chain.
+     *
+     * The chain is resolved once for the [pos] and walked forward
+     * run by run while [src] has remaining bytes. Each physically
+     * contiguous run of clusters is written by single host write.
+     *
+     * @param startCluster the head of chain
+     * @param pos the byte offset in chain
+     * @param src the source of bytes
+     * @return the number of bytes that were written
+     */
+    int writeChannel(int startCluster, long pos, ByteBuffer src) throws IOException {
+        return writeChannel(startCluster, pos, src, false);
+    }
+
+    /**
+     * Writes to [fileChannel] along the chain.
+     *
+     * @param startCluster the head of chain
+     * @param pos the byte offset in chain
+     * @param src the source of bytes
+     * @param journaled [true] for metadata (folder content): the previous
+     *                  bytes go to the journal if any
+     * @return the number of bytes that were written
+     */
+    int writeChannel(int startCluster, long pos, ByteBuffer src,
+                     boolean journaled) throws IOException {
+        if (!src.hasRemaining())
+            return 0;
+        int wasWritten = 0;
+        fatLock.lock();
+        try {
+            checkCanWrite();
+            int nextToPos = (int)(pos/clusterSize);
+            int cluster = getShift(startCluster, nextToPos);
+            long offset = pos - (long)nextToPos*clusterSize;
+
+            int limit = src.limit();
+            try {
+                while (src.hasRemaining()) {
+                    if (offset >= clusterSize) {
+                        int next = (int)(offset/clusterSize);
+                        cluster = getShift(cluster, next);
+                        offset -= (long)next*clusterSize;
+                    }
+                    int run = getRunLength(cluster,
+                            (int)getSizeInUnits(offset + src.remaining(), clusterSize));
+                    long restOfRun = (long)run*clusterSize - offset;
+                    if (restOfRun < src.remaining())
+                        src.limit(src.position() + (int)restOfRun);
+                    if (journaled && journal != null)
+                        journalData(getDataPosition(cluster) + offset, src.remaining());
+                    int written = (mappedData != null)
+                            ? mappedData.put(getDataPosition(cluster) + offset, src)
+                            : fileChannel.write(src, getClusterPosition(cluster) + offset);
+                    src.limit(limit);
+                    if (written <= 0)
+                        break; //chanel is full (transport?)
+                    if (clusterCache != null)
+                        updateCache(cluster, offset, src, written);
+                    offset += written;
+                    wasWritten += written;
+                }
+            } finally {
+                src.limit(limit);
+            }
+        } finally {
+            fatLock.unlock();
+        }
+        return wasWritten;
+    }
+
+    /**
+     * Records the [Data Section] bytes before the change.
+     *
+     * Have to be called under [fatLock].
+     *
+     * @param dataPos the offset in [Data Section]
+     * @param count the number of bytes
+     * @throws IOException
+     */
+    private void journalData(long dataPos, int count) throws IOException {
+        ByteBuffer before = allocateBuffer(count);
+        try {
+            if (mappedData != null) {
+                mappedData.get(dataPos, before);
+            } else {
+                while (before.hasRemaining()) {
+                    if (fileChannel.read(before, dataOffset + dataPos + before.position()) < 0)
+                        break;
+                }
+            }
+            before.flip();
+            journal.log(dataOffset + dataPos, before);
+        } finally {
+            releaseBuffer(before);
+        }
+    }
+
+    /**
+     * Reads from [fileChannel] along the chain.
+     *
+     * The chain is resolved once for the [pos] and walked forward
+     * run by run while [dst] has remaining space. Each physically
+     * contiguous run of clusters is read by single host read.
+     *
+     * The small reads are served by [clusterCache] if any. The host read
+     * is done out of FAT lock: the caller has to protect the chain by
+     * the file lock, the transaction protects the storage from close.
+     *
+     * @param startCluster the head of chain
+     * @param pos the byte offset in chain
+     * @param dst the destination of bytes
+     * @param priority [true] for the chain that have to stay in cache
+     *                 longer: folder or small file
+     * @return the number of bytes that were read, [-1] on host EOF
+     * @throws IOException
+     */
+    int readChannel(int startCluster, long pos, ByteBuffer dst,
+                    boolean priority) throws IOException {
+        if (!dst.hasRemaining())
+            return 0;
+        int cluster;
+        long offset;
+        fatLock.lock();
+        try {
+            checkCanRead();
+            int nextToPos = (int)(pos/clusterSize);
+            cluster = getShift(startCluster, nextToPos);
+            offset = pos - (long)nextToPos*clusterSize;
+
+            // PERFORMANCE HINT: the long read goes to host directly
+            boolean cached = clusterCache != null && mappedData == null
+                    && offset + dst.remaining() <= (long)FATClusterCache.BYPASS_CLUSTERS*clusterSize;
+            if (cached || mappedData != null)
+                return readRuns(cluster, offset, dst, cached, priority);
+        } finally {
+            fatLock.unlock();
+        }
+
+        // PERFORMANCE HINT: the host read goes out of FAT lock,
+        // the caller keeps the chain by the file lock
+        int wasRead = 0;
+        int limit = dst.limit();
+        try {
+            while (dst.hasRemaining()) {
+                long hostPos;
+                fatLock.lock();
+                try {
+                    checkCanRead();
+                    if (offset >= clusterSize) {
+                        int next = (int)(offset/clusterSize);
+                        cluster = getShift(cluster, next);
+                        offset -= (long)next*clusterSize;
+                    }
+                    int run = getRunLength(cluster,
+                            (int)getSizeInUnits(offset + dst.remaining(), clusterSize));
+                    long restOfRun = (long)run*clusterSize - offset;
+                    if (restOfRun < dst.remaining())
+                        dst.limit(dst.position() + (int)restOfRun);
+                    hostPos = getClusterPosition(cluster) + offset;
+                } finally {
+                    fatLock.unlock();
+                }
+                int read = fileChannel.read(dst, hostPos);
+                dst.limit(limit);
+                if (read < 0) {
+                    if (wasRead == 0)
+                        return -1;
+                    break;
+                }
+                if (read == 0)
+                    break;
+                offset += read;
+                wasRead += read;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+        return wasRead;
+    }
+
+    /**
+     * Reads along the chain by [clusterCache] or [mappedData].
+     *
+     * Have to be called under [fatLock].
+     */
+    private int readRuns(int cluster, long offset, ByteBuffer dst,
+                         boolean cached, boolean priority) throws IOException {
+        int wasRead = 0;
+        int limit = dst.limit();
+        try {
+            while (dst.hasRemaining()) {
+                if (offset >= clusterSize) {
+                    int next = (int)(offset/clusterSize);
+                    cluster = getShift(cluster, next);
+                    offset -= (long)next*clusterSize;
+                }
+                int read;
+                if (cached) {
+                    read = readCached(cluster, (int)offset, dst, priority);
+                } else {
+                    int run = getRunLength(cluster,
+                            (int)getSizeInUnits(offset + dst.remaining(), clusterSize));
+                    long restOfRun = (long)run*clusterSize - offset;
+                    if (restOfRun < dst.remaining())
+                        dst.limit(dst.position() + (int)restOfRun);
+                    read = mappedData.get(getDataPosition(cluster) + offset, dst);
+                    dst.limit(limit);
+                }
+                if (read < 0) {
+                    if (wasRead == 0)
+                        return -1;
+                    break;
+                }
+                if (read == 0)
+                    break;
+                offset += read;
+                wasRead += read;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+        return wasRead;
+    }
+
+    /**
+     * Writes to [fileChannel] along the chain from the buffer sequence.
+     *
+     * The chain is resolved once for the [pos], each physically contiguous
+     * run of clusters is written by single gathering write.
+     *
+     * @param startCluster the head of chain
+     * @param pos the byte offset in chain
+     * @param srcs the sources of bytes
+     * @param offset the index of the first buffer in [srcs]
+     * @param length the number of buffers to be accessed
+     * @param count the number of bytes to write
+     * @return the number of bytes that were written
+     */
+    long writeChannel(int startCluster, long pos, ByteBuffer[] srcs,
+                      int offset, int length, long count) throws IOException {
+        fatLock.lock();
+        try {
+            checkCanWrite();
+            return transferVector(startCluster, pos, srcs, offset, length, count, true);
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * Reads from [fileChannel] along the chain to the buffer sequence.
+     *
+     * The chain is resolved once for the [pos], each physically contiguous
+     * run of clusters is read by single scattering read.
+     *
+     * @param startCluster the head of chain
+     * @param pos the byte offset in chain
+     * @param dsts the destinations of bytes
+     * @param offset the index of the first buffer in [dsts]
+     * @param length the number of buffers to be accessed
+     * @param count the number of bytes to read
+     * @return the number of bytes that were read, [-1] on host EOF
+     * @throws IOException
+     */
+    long readChannel(int startCluster, long pos, ByteBuffer[] dsts,
+                     int offset, int length, long count) throws IOException {
+        fatLock.lock();
+        try {
+            checkCanRead();
+            return transferVector(startCluster, pos, dsts, offset, length, count, false);
+        } finally {
+            fatLock.unlock();
+        }
+    }
+
+    /**
+     * Maps the chain region to memory.
+     *
+     * Each physically contiguous run of clusters is mapped by single
+     * host call, so the number of buffers is the number of runs
+     * (the runs over [MAPFILE_SIZE_LIMIT] are split).
+     *
+     * @param startCluster the head of chain
+     * @param pos the byte offset in chain
+     * @param count the number of bytes to map, the chain
+     *              have to hold [pos + count] bytes
+     * @param mode the host mapping mode
+     * @return the buffers in chain order
+     * @throws IOException
+     */
+    MappedByteBuffer[] mapChannel(int startCluster, long pos, long count,
+                                  FileChannel.MapMode mode) throws IOException {
+        ArrayList<MappedByteBuffer> ret = new ArrayList<>();
+        fatLock.lock();
+        try {
+            if (mode == FileChannel.MapMode.READ_WRITE) {
+                checkCanWrite();
+                // the writes through the view pass by the cache
+                writeMapped = true;
+                clusterCache = null;
+            } else {
+                checkCanRead();
+            }
+            // the view keeps the clusters, see [FATDefragmenter]
+            mapped = true;
+            int nextToPos = (int)(pos/clusterSize);
+            int cluster = getShift(startCluster, nextToPos);
+            long offset = pos - (long)nextToPos*clusterSize;
+            while (count > 0) {
+                if (offset >= clusterSize) {
+                    int next = (int)(offset/clusterSize);
+                    cluster = getShift(cluster, next);
+                    offset -= (long)next*clusterSize;
+                }
+                int run = getRunLength(cluster, (int)getSizeInUnits(offset + count, clusterSize));
+                long runBytes = Math.min(Math.min((long)run*clusterSize - offset, count),
+                        MAPFILE_SIZE_LIMIT);
+                ret.add(fileChannel.map(mode, getClusterPosition(cluster) + offset, runBytes));
+                count -= runBytes;
+                offset += runBytes;
+            }
+        } finally {
+            fatLock.unlock();
+        }
+        return ret.toArray(new MappedByteBuffer[ret.size()]);
+    }
+
+    /**
+     * Transfers bytes of the chain to [target] by host [FileChannel.transferTo].
+     *
+     * Each physically contiguous run of clusters is transferred by single
+     * host call. The host call is done out of FAT monitor: the caller has
+     * to protect the chain by the file lock, the transaction protects
+     * the storage from close.
+     *
+     * @param startCluster the head of chain
+     * @param pos the byte offset in chain
+     * @param count the maximal number of bytes to transfer
+     * @param target the target channel
+     * @return the number of bytes that were transferred
+     * @throws IOException
+     */
+    long transferTo(int startCluster, long pos, long count,
+                    WritableByteChannel target) throws IOException {
+        return transferChannel(startCluster, pos, count, target, null);
+    }
+
+    /**
+     * Transfers bytes from [src] to the chain by host [FileChannel.transferFrom].
+     *
+     * Each physically contiguous run of clusters is transferred by single
+     * host call. The host call is done out of FAT monitor: the caller has
+     * to protect the chain by the file lock, the transaction protects
+     * the storage from close.
+     *
+     * @param startCluster the head of chain
+     * @param pos the byte offset in chain
+     * @param count the maximal number of bytes to transfer, the transfer
+     *              stops at the end of chain
+     * @param src the source channel
+     * @return the number of bytes that were transferred
+     * @throws IOException
+     */
+    long transferFrom(int startCluster, long pos, long count,
+                      ReadableByteChannel src) throws IOException {
+        return transferChannel(startCluster, pos, count, null, src);
+    }
+
+    private long transferChannel(int startCluster, long pos, long count,
+                                 WritableByteChannel target,
+                                 ReadableByteChannel src) throws IOException {
+        if (count <= 0)
+            return 0;
+        int cluster;
+        long offset;
+        fatLock.lock();
+        try {
+            checkCanRead();
+            int nextToPos = (int)(pos/clusterSize);
+            cluster = getShift(startCluster, nextToPos);
+            offset = pos - (long)nextToPos*clusterSize;
+        } finally {
+            fatLock.unlock();
+        }
+
+        long wasTransferred = 0;
+        while (count > 0) {
+            long hostPos;
+            long runBytes;
+            fatLock.lock();
+            try {
+                if (src != null)
+                    checkCanWrite();
+                else
+                    checkCanRead();
+                if (offset >= clusterSize) {
+                    int next = (int)(offset/clusterSize);
+                    cluster = getShift(cluster, next - 1);
+                    int fatEntry = getFatEntry(cluster);
+                    if ((fatEntry & FATClusterAllocator.CLUSTER_STATUS) != FATClusterAllocator.CLUSTER_ALLOCATED)
+                        break; // the end of chain
+                    cluster = fatEntry & FATClusterAllocator.CLUSTER_INDEX;
+                    offset -= (long)next*clusterSize;
+                }
+                // [offset + count] overflows for the huge [count]
+                int run = getRunLength(cluster,
+                        (int)Math.min(count/clusterSize + 2, Integer.MAX_VALUE));
+                runBytes = Math.min((long)run*clusterSize - offset, count);
+                hostPos = getClusterPosition(cluster) + offset;
+                // the file lock keeps the readers of the chain out
+                // till the end of host call
+                if (src != null && clusterCache != null)
+                    clusterCache.invalidate(getDataPosition(cluster) + offset, runBytes);
+            } finally {
+                fatLock.unlock();
+            }
+
+            long transferred = (src != null)
+                    ? fileChannel.transferFrom(src, hostPos, runBytes)
+                    : fileChannel.transferTo(hostPos, runBytes, target);
+            if (transferred <= 0)
+                break;
+            wasTransferred += transferred;
+            count -= transferred;
+            offset += transferred;
+            if (src != null && transferred < runBytes)
+                break; //source is drained
+        }
+        return wasTransferred;
+    }
+
+    /**
+     * Moves [count] bytes between the chain and the buffer sequence
+     * run by run.
+     *
+     * Have to be called under [fatLock]: uses the [fileChannel] position.
+     */
+    private long transferVector(int startCluster, long pos, ByteBuffer[] bfs,
+                                int offset, int length, long count,
+                                boolean write) throws IOException {
+        if (count <= 0)
+            return 0;
+        int nextToPos = (int)(pos/clusterSize);
+        int cluster = getShift(startCluster, nextToPos);
+        long offsetInCluster = pos - (long)nextToPos*clusterSize;
+
+        long wasTransferred = 0;
+        while (count > 0) {
+            int maxRun = (int)getSizeInUnits(offsetInCluster + count, clusterSize);
+            int run = getRunLength(cluster, maxRun);
+            long runBytes = Math.min((long)run*clusterSize - offsetInCluster, count);
+            if (write && clusterCache != null)
+                clusterCache.invalidate(getDataPosition(cluster) + offsetInCluster, runBytes);
+
+            long transferred = transferRun(getClusterPosition(cluster) + offsetInCluster,
+                    runBytes, bfs, offset, length, write);
+            if (transferred < 0) {
+                if (wasTransferred == 0)
+                    return -1;
+                break;
+            }
+            if (transferred == 0)
+                break; //chanel is full (transport?)
+            wasTransferred += transferred;
+            count -= transferred;
+            offsetInCluster += transferred;
+            if (count > 0 && offsetInCluster >= clusterSize) {
+                int next = (int)(offsetInCluster/clusterSize);
+                cluster = getShift(cluster, next);
+                offsetInCluster -= (long)next*clusterSize;
+            }
+        }
+        return wasTransferred;
+    }
+
+    /**
+     * Moves up to [runBytes] bytes between contiguous host file region
+     * and the buffer sequence.
+     *
+     * Have to be called under [fatLock]: uses the [fileChannel] position.
+     */
+    private long transferRun(long hostPos, long runBytes, ByteBuffer[] bfs,
+                             int offset, int length, boolean write) throws IOException {
+        // clamp the sequence to the run
+        int end = offset;
+        long rest = runBytes;
+        ByteBuffer clamped = null;
+        int clampedLimit = 0;
+        while (end < offset + length && rest > 0) {
+            ByteBuffer bf = bfs[end++];
+            int remaining = bf.remaining();
+            if (remaining > rest) {
+                clamped = bf;
+                clampedLimit = bf.limit();
+                bf.limit(bf.position() + (int)rest);
+                remaining = (int)rest;
+            }
+            rest -= remaining;
+        }
+        try {
+            if (mappedData != null)
+                return copyRun(hostPos - dataOffset, bfs, offset, end, write);
+            fileChannel.position(hostPos);
+            long wasTransferred = 0;
+            while (wasTransferred < runBytes) {
+                long transferred = write
+                        ? fileChannel.write(bfs, offset, end - offset)
+                        : fileChannel.read(bfs, offset, end - offset);
+                if (transferred < 0) {
+                    if (wasTransferred == 0)
+                        return -1;
+                    break;
+                }
+                if (transferred == 0)
+                    break;
+                wasTransferred += transferred;
+            }
+            return wasTransferred;
+        } finally {
+            if (clamped != null)
+                clamped.limit(clampedLimit);
+        }
+    }
+
+    /**
+     * Copies the clamped buffer sequence [offset, end) from/to
+     * the mapped [Data Section].
+     *
+     * Have to be called under [fatLock].
+     */
+    private long copyRun(long dataPos, ByteBuffer[] bfs, int offset, int end,
+                         boolean write) throws IOException {
+        long wasTransferred = 0;
+        for (int i = offset; i < end; ++i) {
+            int transferred = write
+                    ? mappedData.put(dataPos + wasTransferred, bfs[i])
+                    : mappedData.get(dataPos + wasTransferred, bfs[i]);
+            wasTransferred += transferred;
+        }
+        return wasTransferred;
+    }
+
+    /**
+     * Reads the part of single cluster through [clusterCache],
+     * loads the whole cluster on miss.
+     *
+     * Have to be called under [fatLock].
+     *
+     * @return the number of bytes that were read, [-1] on host EOF
+     */
+    private int readCached(int cluster, int offset, ByteBuffer dst,
+                           boolean priority) throws IOException {
+        ByteBuffer slot = clusterCache.get(cluster, priority);
+        if (slot == null) {
+            slot = clusterCache.admit(cluster, priority);
+            long hostPos = getClusterPosition(cluster);
+            while (slot.hasRemaining()) {
+                if (fileChannel.read(slot, hostPos + slot.position()) < 0) {
+                    clusterCache.invalidate(cluster);
+                    return -1;
+                }
+            }
+        }
+        int len = Math.min(dst.remaining(), clusterSize - offset);
+        slot.limit(offset + len).position(offset);
+        dst.put(slot);
+        return len;
     }
 
-
-    int getVersion() {
-       return fsVersion;
+    /**
+     * Passes the written bytes to the cached clusters of the run.
+     *
+     * Have to be called under [fatLock].
+     *
+     * @param cluster the first cluster of the run
+     * @param offset the offset of the write in the run
+     * @param src the buffer with [written] bytes just before the position
+     */
+    private void updateCache(int cluster, long offset, ByteBuffer src, int written) {
+        int position = src.position();
+        int limit = src.limit();
+        try {
+            for (int start = position - written; start < position; ) {
+                int index = (int)(offset/clusterSize);
+                int inCluster = (int)(offset - (long)index*clusterSize);
+                int len = Math.min(clusterSize - inCluster, position - start);
+                src.limit(start + len).position(start);
+                clusterCache.update(cluster + index, inCluster, src);
+                start += len;
+                offset += len;
+            }
+        } finally {
+            src.limit(limit);
+            src.position(position);
+        }
     }
 
     /**
-     * Returns the capacity of FS
-     * @return the size of storage. That is the [Data Section] size.
+     * Counts the clusters of the chain that follow each other in the host file.
+     *
+     * Have to be called under [fatLock].
+     *
+     * @param cluster the first cluster of the run
+     * @param maxCount the limit for the run length
+     * @return the number of clusters in the run, at least one
      */
-    public long getSize() {
-        return  clusterCount*clusterSize;
+    private int getRunLength(int cluster, int maxCount) {
+        int count = 1;
+        while (count < maxCount) {
+            int fatEntry = getFatEntry(cluster);
+            if ((fatEntry & FATClusterAllocator.CLUSTER_STATUS) != FATClusterAllocator.CLUSTER_ALLOCATED
+                    || (fatEntry & FATClusterAllocator.CLUSTER_INDEX) != cluster + 1)
+                break;
+            ++cluster;
+            ++count;
+        }
+        return count;
     }
 
     /**
-     * Returns the cluster size of FS
-     * @return the size of cluster.
+     * Finds the position of the chain byte in the host file.
+     *
+     * @param startCluster the head of chain
+     * @param pos the byte offset in chain, have to be inside the chain
+     * @return the offset of the byte in host file
+     * @throws IOException
      */
-    public int getClusterSize() {
-        return clusterSize;
+    long getHostPosition(int startCluster, long pos) throws IOException {
+        fatLock.lock();
+        try {
+            checkCanRead();
+            int nextToPos = (int)(pos/clusterSize);
+            return getClusterPosition(getShift(startCluster, nextToPos))
+                    + pos - (long)nextToPos*clusterSize;
+        } finally {
+            fatLock.unlock();
+        }
     }
 
     /**
-     * Returns the free capacity of FS
-     * @return the free size in storage. The [<0] means dirty FAT and the system needs in maintenance.
+     * Calculates the position of the cluster in the host file.
+     *
+     * @param cluster the index of the cluster in FAT
+     * @return the offset of the cluster data in host file
      */
-    public long getFreeSize() {
-        return freeClusterCount*clusterSize;
+    private long getClusterPosition(int cluster) {
+        return dataOffset + getDataPosition(cluster);
     }
 
     /**
-     * Reads cluster content. Need for maintenance.
+     * Calculates the position of the cluster in [Data Section].
      *
      * @param cluster the index of the cluster in FAT
-     * @return cluster content
-     * @throws IOException
+     * @return the offset of the cluster data in [Data Section]
      */
-    public ByteBuffer readCluster(int cluster) throws IOException {
-        if (cluster < 0 || cluster >= clusterCount)
-            throw new IOException("Bad cluster index:" + cluster);
-
-        ByteBuffer bf = ByteBuffer.allocateDirect(clusterSize);  //check with alloc!
-        synchronized (this) {
-            checkCanRead();
-            fileChannel
-                .position(dataOffset + cluster * clusterSize)
-                .read(bf);
-        }
-        return bf;
+    private long getDataPosition(int cluster) {
+        return (long)cluster*clusterSize;
     }
 
     /**
-     * Allocates a cluster chain.
+     * Switches the data access between host I/O and mapped segments.
      *
-     * @param tailCluster the index of the tail of the chain.
-     *        The -1 value means that the chain should not be joined.
-     *        Any other value means that allocated cain will join to [tailCluster] tail
-     * @param count the number of cluster in the returned chain
-     * @return the index of the first cluster in allocated chain.
-     * @throws IOException if the chain could not be allocated
+     * PERFORMANCE HINT: the mapping removes the host call per access,
+     * that is the win for the volume that is hot in the page cache.
+     * The address space for the touched segments is taken till
+     * the mode switch or close.
+     *
+     * @param segmentSize the size of mapped segment, [0] switches
+     *                    the mapping off
+     * @throws IOException if the storage is truncated in host FS
      */
-    int allocateClusters(int tailCluster, int count) throws IOException {
-        // - bitmap of free clusters in memory?
-        // - chunk with free block counting for sequential allocation?
-        // - two stage allocation with "gray"
-        //    +final static int CLUSTER_GALLOCATED = 0x80000000;
-        //    +final static int CLUSTER_GEOC       = 0xC8000000;
-        //   up bit?
-        // - resize if need?
-        if (count < 1)
-            throw new IOException("Cannot allocate" + count + "clusters.");
-        synchronized (this) {
-            checkCanWrite();
-            if ((tailCluster < clusterCount) && (
-                    ((freeClusterCount >= 0) && (count <= freeClusterCount))
-                 || ((freeClusterCount  < 0) && (count <= clusterCount)))) // without guaranty on dirty FAT
-            {
-                try {
-                    if (tailCluster != -1 && getFatEntry(tailCluster) != FATClusterAllocator.CLUSTER_EOC)
-                        throw new IOException("Can join the chain with the tail only.");
-                    return clusterAllocator.allocateClusters(tailCluster, count);
-                } finally {
-                    //forceFat();
-                }
+    void setDataMapping(int segmentSize) throws IOException {
+        if (segmentSize < 0)
+            throw new IllegalArgumentException("Bad segment size:" + segmentSize);
+        fatLock.lock();
+        try {
+            checkCanRead();
+            if (mappedData != null) {
+                if (mappedData.getSegmentSize() == segmentSize)
+                    return;
+                FATMappedData data = mappedData;
+                data.force();
+                mappedData = null;
+                data.close();
             }
-            throw new IOException("Disk full.");
+            if (segmentSize == 0)
+                return;
+            if (randomAccessFile.length() < dataOffset + getSize())
+                throw new IOException("Cannot map the data section: storage is truncated.");
+            mappedData = new FATMappedData(fileChannel, dataOffset, getSize(), segmentSize);
+        } finally {
+            fatLock.unlock();
         }
     }
 
     /**
-     * Frees chain that start from [headOffset] cluster.
-     *
-     * @param headOffset the head of the chain
-     * @param freeHead if [true] the chain is freed together with head cluster
-     *                 else head cluster is marked as [EOC]
-     * @throws IOException
+     * @return the size of mapped segment, [0] for host I/O
      */
-     void freeClusters(int headOffset, boolean freeHead) throws IOException {
-        synchronized (this) {
-            checkCanWrite();
-            try {
-                clusterAllocator.freeClusters(headOffset, freeHead);
-            } finally {
-                //forceFat();
-            }
+    int getDataMapping() {
+        fatLock.lock();
+        try {
+            return (mappedData == null) ? 0 : mappedData.getSegmentSize();
+        } finally {
+            fatLock.unlock();
         }
     }
 
     /**
-     * Calculates the length of chain in clusters to hold [size] bytes.
+     * Sets the native memory budget for cluster cache.
      *
-     * @param size the number of bytes to hold
-     * @return the length of the chain
+     * The cache content is dropped on each call.
+     *
+     * @param budget the size in bytes, [0] switches the cache off
+     * @throws IOException if there is read-write view of file,
+     *                     see [mapChannel]
      */
-    public int getSizeInClusters(long size) {
-        return (int)getSizeInUnits(size, clusterSize);
+    void setClusterCache(long budget) throws IOException {
+        if (budget < 0)
+            throw new IllegalArgumentException("Negative cache budget");
+        fatLock.lock();
+        try {
+            checkCanRead();
+            if (writeMapped && budget > 0)
+                throw new IOException("Cluster cache cannot follow read-write mapped files.");
+            // the slabs go with GC
+            clusterCache = (budget < clusterSize)
+                    ? null
+                    : new FATClusterCache(clusterSize, budget);
+        } finally {
+            fatLock.unlock();
+        }
     }
 
     /**
-     * Finds the [newSizeInClusters] value in the list that starts from [startCluster]
-     *
-     * Have to be called in synchronized section.
-     *
-     * @param startCluster the start of the chain
-     * @param nextCount the number of [next] actions in list.
-     * @return the index of cluster that is at [newSizeInClusters] pos in chain.
+     * @return [true] if there was read-write view of a file,
+     *         see [mapChannel]
      */
-    private int getShift(int startCluster, int nextCount) throws IOException {
-        while (nextCount > 0) {
-            int fatEntry = getFatEntry(startCluster);
-            // CLUSTER_ALLOCATED only
-            if ((fatEntry & FATClusterAllocator.CLUSTER_ALLOCATED) == FATClusterAllocator.CLUSTER_ALLOCATED) {
-                startCluster = fatEntry & FATClusterAllocator.CLUSTER_INDEX;
-            } else {
-                setDirtyState("Cluster chain is broken. Cluster#:" + startCluster
-                        + " Value:" + fatEntry, true);
-            }
-            --nextCount;
+    boolean isWriteMapped() {
+        fatLock.lock();
+        try {
+            return writeMapped;
+        } finally {
+            fatLock.unlock();
         }
-        return startCluster;
     }
 
     /**
-     * Adjust cluster chain to hold [newLength] bytes.
-     *
-     * if [newLength] is [0], one cluster need to be allocated.
-     *
-     * @param startCluster the index of of the first cluster in chain
-     * @param newLength the size in bytes to store in the chain
+     * @return [true] if there was a view of a file in any mode,
+     *         see [mapChannel]
      */
-    void adjustClusterChain(int startCluster, long newLength, long oldLength) throws IOException {
-        synchronized (this) {
-            checkCanWrite();
-            // check only public parameters
-            if (newLength < 0 || newLength > getSize())
-                throw new IOException("Wrong FATFile size:" + newLength);
-            int oldSizeInClusters = (int)getSizeInUnits(oldLength, clusterSize);
-            int newSizeInClusters = (int)getSizeInUnits(newLength, clusterSize);
-            // do nothing for [newSizeInClusters = oldSizeInClusters]
-            if (newSizeInClusters < oldSizeInClusters) {
-                freeClusters(getShift(startCluster, newSizeInClusters - 1), false);
-            } else if (newSizeInClusters > oldSizeInClusters) {
-                int allocateCount = newSizeInClusters - oldSizeInClusters;
-                if (allocateCount > freeClusterCount)
-                    throw new IOException("Disk full.");
-                allocateClusters(getShift(startCluster, oldSizeInClusters - 1), allocateCount);
-            }
+    boolean isMapped() {
+        fatLock.lock();
+        try {
+            return mapped;
+        } finally {
+            fatLock.unlock();
         }
     }
 
     /**
-     * Writes to [fileChannel] along the chain.
-     *
-     * [startCluster] and [pos] passed by reference for hinting.
-     *
-     * @param startCluster the head of chain
-     * @param pos the byte offset in chain
-     * @param src the source of bytes
-     * @return the number of bytes that were written
+     * @return the native memory budget for cluster cache, [0] for no cache
      */
-    int writeChannel(int[] startCluster, long[] pos, ByteBuffer src) throws IOException {
-        int wasWritten;
-        synchronized (this) {
-            checkCanWrite();
-            int nextToPos = (int)(pos[0]/clusterSize);
-            startCluster[0] = getShift(startCluster[0], nextToPos);
-            pos[0] -= nextToPos*clusterSize;
+    long getClusterCache() {
+        fatLock.lock();
+        try {
+            return (clusterCache == null) ? 0 : clusterCache.getBudget();
+        } finally {
+            fatLock.unlock();
+        }
+    }
 
-            long startPos = dataOffset + startCluster[0]*clusterSize + pos[0];
+    long getClusterCacheHitCount() {
+        fatLock.lock();
+        try {
+            return (clusterCache == null) ? 0 : clusterCache.getHitCount();
+        } finally {
+            fatLock.unlock();
+        }
+    }
 
-            int limit = src.limit();
-            int restOfCluster = (int)(clusterSize - pos[0]);
-            if (restOfCluster >= src.remaining()) {
-                wasWritten = fileChannel.write(src, startPos);
-            } else {
-                src.limit(src.position() + restOfCluster);
-                wasWritten = fileChannel.write(src, startPos);
-                src.limit(limit);
-            }
-            pos[0] += wasWritten;
+    long getClusterCacheMissCount() {
+        fatLock.lock();
+        try {
+            return (clusterCache == null) ? 0 : clusterCache.getMissCount();
+        } finally {
+            fatLock.unlock();
         }
-        return wasWritten;
     }
 
     /**
-     * Reads from [fileChannel] along the chain.
+     * Releases the memory-mapped buffer in place.
      *
-     * [startCluster] and [pos] passed by reference for hinting.
+     * That is bad, but it is the only available solution
+     * http://stackoverflow.com/questions/2972986/how-to-unmap-a-file-from-memory-mapped-using-filechannel-in-java
      *
-     * @param startCluster the head of chain
-     * @param pos the byte offset in chain
-     * @param dst the destination of bytes
-     * @return the number of bytes that were read
-     * @throws IOException
+     * Java 9+ runtimes (the only ones with virtual threads) close
+     * [sun.nio.ch] and provide [sun.misc.Unsafe.invokeCleaner] instead;
+     * the [DirectBuffer] cleaner is the Java 7/8 fallback.
+     *
+     * @param buffer the buffer that nobody uses anymore
+     * @return [false] if the buffer has to wait for GC
      */
-    public int readChannel(int[] startCluster, long[] pos, ByteBuffer dst) throws IOException {
-        int wasRead;
-        synchronized (this) {
-            checkCanRead();
-            int nextToPos = (int)(pos[0]/clusterSize);
-            startCluster[0] = getShift(startCluster[0], nextToPos);
-            pos[0] -= nextToPos*clusterSize;
-
-            long startPos = dataOffset + startCluster[0]*clusterSize + pos[0];
-
-            int limit = dst.limit();
-            int restOfCluster = (int)(clusterSize - pos[0]);
-            if (restOfCluster > dst.remaining()) {
-                wasRead = fileChannel.read(dst, startPos);
-            } else {
-                dst.limit(dst.position() + restOfCluster);
-                wasRead = fileChannel.read(dst, startPos);
-                dst.limit(limit);
+    static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return true;
+        } catch (NoSuchMethodException e) {
+            // Java 7/8 runtime
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+        if (buffer instanceof DirectBuffer) {
+            sun.misc.Cleaner cleaner = ((DirectBuffer)buffer).cleaner();
+            if (cleaner != null) {
+                cleaner.clean();
+                return true;
             }
-            pos[0] += wasRead;
         }
-        return wasRead;
+        return false;
+    }
+
+    /**
+     * Gets the native address of the direct buffer on Java 7/8 runtime,
+     * see [unmap] for the [DirectBuffer] usage.
+     *
+     * @param direct the direct buffer
+     * @return the address of the first byte in native memory
+     */
+    static long getAddress(ByteBuffer direct) {
+        return ((DirectBuffer)direct).address();
     }
 
     /**
@@ -620,6 +2337,8 @@ class FATSystem implements Closeable {
         if (state != SystemState.DIRTY) {
             state = SystemState.DIRTY;
             freeClusterCount = -1;
+            if (journal != null)
+                journal.invalidate();
             LogError(message);
             if (throwException)
                 checkCanWrite();
@@ -627,30 +2346,79 @@ class FATSystem implements Closeable {
     }
 
     private void initDenormalized() {
-        fatOffset = HEADER_SIZE; //version dependant
-        dataOffset = (int)getDataOffset(fatOffset + clusterCount*FAT_E_SIZE);
+        fatOffset = getFatOffset(fsVersion);
+        dataOffset = (int)getDataOffset(fatOffset + (long)fatCapacity*FAT_E_SIZE, dataAlignment);
+    }
+
+    /**
+     * @return [true] if the storage of [version] has [FATRegionMap]
+     */
+    private static boolean hasRegionMap(int version) {
+        return version == VERSION_GROWABLE || version == VERSION_REGION_MAP;
+    }
+
+    private static int getFatOffset(int version) {
+        // the allocator header goes after the FAT capacity
+        return (version == VERSION_GROWABLE)
+                ? HEADER_SIZE + HEADER_TAIL_SIZE_RESERVED
+                : HEADER_SIZE;
+    }
+
+    /**
+     * @return the offset of the part after the [Data Section] in host file
+     */
+    private long getDataEnd() {
+        return dataOffset + (long)clusterCount*clusterSize;
     }
 
+    /**
+     * Gets the page-aligned direct buffer from the pool.
+     *
+     * @param capacity the size in bytes
+     * @return the cleared buffer in FS byte order
+     */
     ByteBuffer allocateBuffer(int capacity) {
-        return ByteBuffer.allocateDirect(capacity).order(byteOrder);
+        return bufferPool.allocate(capacity).order(byteOrder);
         //return ByteBuffer.allocate(capacity).order(byteOrder);
     }
 
+    /**
+     * Returns the buffer from [allocateBuffer] to the pool.
+     *
+     * The caller must not use the buffer after the call.
+     *
+     * @param bf the buffer, could be [null]
+     */
+    void releaseBuffer(ByteBuffer bf) {
+        bufferPool.release(bf);
+    }
+
+    long getBufferPoolHitCount() {
+        return bufferPool.getHitCount();
+    }
+
+    long getBufferPoolMissCount() {
+        return bufferPool.getMissCount();
+    }
+
     private void writeToChannel(ByteBuffer bf, long position) throws IOException {
-        synchronized (this) {
+        fatLock.lock();
+        try {
             checkCanWrite();
             fileChannel.position(position);
             while(bf.hasRemaining()) {
                 fileChannel.write(bf);
             }
+        } finally {
+            fatLock.unlock();
         }
     }
 
     private void readFromChannel(ByteBuffer bf) throws IOException {
         bf.position(0);
-        int size = bf.capacity();
-        while(size > 0) {
-            size -= fileChannel.read(bf);
+        while(bf.hasRemaining()) {
+            if (fileChannel.read(bf) < 0)
+                throw new IOException("Unexpected end of storage");
         }
         bf.flip();
     }
@@ -672,6 +2440,101 @@ class FATSystem implements Closeable {
         */
     }
 
+    /**
+     * The entries of just formatted FAT, see [formatFat].
+     */
+    static abstract class EntryPattern {
+        /**
+         * Fills the part of FAT.
+         *
+         * @param entries the view of FAT part in the storage byte order
+         * @param first the index of the first entry in the view
+         */
+        abstract void fill(IntBuffer entries, int first);
+    }
+
+    /**
+     * Formats FAT in bulk. The parts of [FORMAT_CHUNK_ENTRIES] entries are
+     * filled in parallel.
+     *
+     * For new storage or new clusters only: the changes are neither
+     * journaled nor tracked by the region map.
+     *
+     * @param pattern the entries of formatted FAT
+     * @param from the index of the first entry
+     * @param to the index after the last entry
+     */
+    void formatFat(EntryPattern pattern, int from, int to) {
+        if (to - from <= FORMAT_CHUNK_ENTRIES) {
+            fillFat(pattern, from, to);
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new FormatTask(pattern, from, to));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void fillFat(EntryPattern pattern, int from, int to) {
+        // PERFORMANCE HINT: own view for each task, bulk puts to the mapping
+        ByteBuffer part = fatZone.duplicate();
+        part.limit(fatOffset + to*FAT_E_SIZE).position(fatOffset + from*FAT_E_SIZE);
+        pattern.fill(part.slice().order(byteOrder).asIntBuffer(), from);
+    }
+
+    private class FormatTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final EntryPattern pattern;
+        private final int from;
+        private final int to;
+
+        FormatTask(EntryPattern pattern, int from, int to) {
+            this.pattern = pattern;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > FORMAT_CHUNK_ENTRIES) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new FormatTask(pattern, from, middle),
+                        new FormatTask(pattern, middle, to));
+                return;
+            }
+            fillFat(pattern, from, to);
+        }
+    }
+
+    /**
+     * Counts the cluster that the allocator takes from the free space.
+     *
+     * Have to be called under [fatLock].
+     *
+     * @param cluster the index of the allocated cluster
+     */
+    void clusterAllocated(int cluster) {
+        --freeClusterCount;
+        if (journal != null)
+            journal.logReuse(cluster);
+    }
+
+    /**
+     * Counts the cluster that the allocator returns to the free space.
+     *
+     * Have to be called under [fatLock].
+     *
+     * @param cluster the index of the freed cluster
+     */
+    void clusterFreed(int cluster) {
+        ++freeClusterCount;
+        if (journal != null)
+            journal.logFree(cluster);
+    }
+
     /**
      * Writes the entry to FAT by index.
      *
@@ -679,6 +2542,15 @@ class FATSystem implements Closeable {
      * @param value to store
      */
     void putFatEntry(int index, int value) {
+        if (journal != null || regionMap != null) {
+            int before = getFatEntry(index);
+            if (before == value)
+                return;
+            if (regionMap != null)
+                regionMap.beforeChange(index, before, value);
+            if (journal != null)
+                journal.logInt(fatOffset + index*FAT_E_SIZE, before);
+        }
         fatZone.putInt(fatOffset + index*FAT_E_SIZE, value);
         /* Uncomment the alternative procedure to compare the performance
         ByteBuffer bf = allocateBuffer(4);
@@ -713,15 +2585,32 @@ class FATSystem implements Closeable {
                 : fullClusters + 1;
     }
 
-    private static long getDataOffset(long mapSize) {
+    private static long getDataOffset(long mapSize, int dataAlignment) {
         //PERFORMANCE HINT POINT - 4k alignment for memory mapping.
-        //return getSizeInUnits(mapSize, 4096) * 4096; //4k alignment
-        return mapSize; // size first
+        if (dataAlignment == DATA_ALIGNMENT_NONE)
+            return mapSize; // size first
+        return getSizeInUnits(mapSize, dataAlignment) * dataAlignment;
+    }
+
+    /**
+     * Checks that no cluster straddles the alignment border:
+     * the cluster size have to be a multiple or a divisor of alignment.
+     */
+    private static void checkDataAlignment(int clusterSize, int dataAlignment) throws IOException {
+        if (dataAlignment == DATA_ALIGNMENT_NONE)
+            return;
+        if (dataAlignment < 0 || Integer.bitCount(dataAlignment) != 1)
+            throw new IOException("Bad value of data alignment:" + dataAlignment);
+        if (clusterSize % dataAlignment != 0 && dataAlignment % clusterSize != 0)
+            throw new IOException("Cluster size " + clusterSize
+                    + " does not fit data alignment " + dataAlignment);
     }
 
-    private static long getRequestedStorageFileSize(int clusterSize, int clusterCount) throws IOException {
-        long mapLength = (long)clusterCount*FAT_E_SIZE + HEADER_SIZE;
-        if (clusterCount <= 0 || clusterCount > FATClusterAllocator.CLUSTER_INDEX || mapLength > MAPFILE_SIZE_LIMIT)
+    private static long getRequestedStorageFileSize(int clusterSize, int clusterCount,
+                                                    int fatCapacity, int fatOffset,
+                                                    int dataAlignment) throws IOException {
+        long mapLength = (long)fatCapacity*FAT_E_SIZE + fatOffset;
+        if (clusterCount <= 0 || fatCapacity > FATClusterAllocator.CLUSTER_INDEX || mapLength > MAPFILE_SIZE_LIMIT)
             throw new IOException("Bad value of cluster count:" + clusterCount);
 
         long length = (long)clusterCount * clusterSize;
@@ -730,7 +2619,7 @@ class FATSystem implements Closeable {
 
         // max storage size for 4k cluster: CLUSTER_INDEX*4096 = 3FF FFFF F000
         // 0x3FFFFFFF000/0x10000000000 = 3T - big enough.
-        long sizeFS = length + getDataOffset(mapLength);
+        long sizeFS = length + getDataOffset(mapLength, dataAlignment);
         if (sizeFS < length)
             throw new IOException("File system is too big, no space for header" );
         return sizeFS;
@@ -0,0 +1,232 @@
+package com.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind staging buffer of the file content.
+ *
+ * One instance per file, shared by the buffered channels of the file.
+ * The small writes that follow each other are gathered into the buffer
+ * without file lock and transaction; the staged region is written to
+ * the file by single write on buffer full, on any other access to the file
+ * (see [FATFile.getLockInternal]), on [force], on channel close,
+ * on file system close or by timer.
+ *
+ * So the staged bytes are visible to any reader in the process:
+ * the reader takes the file lock, and the lock flushes the buffer first.
+ * The stager holds the file write lock for the time of the staging call
+ * (no wait, no transaction), so the buffer stays clean while anybody
+ * holds the read lock: the readers share the file as without staging
+ * (see [FATFile.checkStaged]).
+ *
+ * The buffer is taken from the pool on the first staged write and is
+ * returned to the pool by the flush.
+ */
+class FATWriteBehind {
+    // the delay of timer flush after the first staged write, ms
+    final static long FLUSH_DELAY = 50;
+
+    private final FATFile file;
+    // the write path without staging
+    private final FATFileChannel channel;
+    private final int size;
+    // guarded by [stageLock], [null] if nothing is staged
+    private ByteBuffer buffer;
+    private final ReentrantLock stageLock = new ReentrantLock();
+    // the file position of the buffer start
+    private long stagePos;
+    // [true] if the staged region started at the end of file
+    private boolean appendStaged;
+    // the buffer has staged bytes, could be read without lock
+    private volatile boolean dirty;
+
+    /**
+     * @param file the owner
+     * @param size the buffer size in bytes
+     */
+    FATWriteBehind(FATFile file, int size) {
+        this.file = file;
+        channel = new FATFileChannel(file, false);
+        this.size = size;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Stages the bytes of [src].
+     *
+     * @param src the buffer from which bytes are to be transferred
+     * @param position the file position, ignored for [append]
+     * @param append [true] if the bytes go to the end of file
+     * @return the file position after the staged bytes,
+     *         [-1] if the write is too big for staging or the file is
+     *         locked, and the write have to go to the file directly
+     * @throws IOException
+     */
+    long write(ByteBuffer src, long position, boolean append) throws IOException {
+        int len = src.remaining();
+        if (len > size/2)
+            return -1;
+        // no staging under the read lock of others, no wait
+        if (!file.tryLockStaging())
+            return -1;
+        try {
+            return ts_wl_write(src, position, append, len);
+        } finally {
+            file.unlockStaging();
+        }
+    }
+
+    /**
+     * Have to be called under the file write lock.
+     */
+    private long ts_wl_write(ByteBuffer src, long position, boolean append, int len) throws IOException {
+        stageLock.lock();
+        try {
+            if (dirty) {
+                long stageEnd = stagePos + buffer.position();
+                if (append && appendStaged)
+                    position = stageEnd; // nobody changed the file: any access flushes
+                if ((append && !appendStaged) || position != stageEnd
+                        || len > buffer.remaining()) {
+                    // no wait for the file lock under [stageLock]
+                    FATLock lock = file.tryLockInternal(true);
+                    try {
+                        ts_wl_sl_flush();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+            if (!dirty) {
+                if (append)
+                    position = file.length(); // clean: no flush in the lock
+                file.fs.addDirtyBuffer(this);
+                buffer = file.fs.ts_allocateBuffer(size);
+                dirty = true;
+                stagePos = position;
+                appendStaged = append;
+                file.fs.scheduleFlush(this);
+            }
+            buffer.put(src);
+            return stagePos + buffer.position();
+        } finally {
+            stageLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the staged bytes to the file.
+     *
+     * Does nothing in the flush itself: the file lock calls it back.
+     * The file lock is taken before [stageLock], the stager under
+     * [stageLock] never waits for the file lock.
+     *
+     * @param wait [false] means throwing [FATFileLockedException] if the file is locked
+     * @throws IOException
+     */
+    void flush(boolean wait) throws IOException {
+        if (!dirty || stageLock.isHeldByCurrentThread())
+            return;
+        FATLock lock;
+        try {
+            lock = wait
+                ? file.lockInternal(true)
+                : file.tryLockInternal(true);
+        } catch (FATFileLockedException e) {
+            throw e;
+        } catch (IOException e) {
+            if (!isDeleted())
+                throw e;
+            // nobody could read the staged bytes
+            discard();
+            return;
+        }
+        try {
+            stageLock.lock();
+            try {
+                if (dirty)
+                    ts_wl_sl_flush();
+            } finally {
+                stageLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The timer call: retries later if the file is busy.
+     */
+    void flushByTimer() {
+        try {
+            flush(false);
+        } catch (FATFileLockedException e) {
+            file.fs.scheduleFlush(this);
+        } catch (IOException e) {
+            // the file system close flushes the rest
+            file.fs.ts_logError("Write-behind flush problem: " + e.getMessage());
+        }
+    }
+
+    private boolean isDeleted() {
+        try {
+            file.checkValid();
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private void discard() {
+        stageLock.lock();
+        try {
+            if (!dirty)
+                return;
+            releaseBuffer();
+            dirty = false;
+            file.fs.removeDirtyBuffer(this);
+        } finally {
+            stageLock.unlock();
+        }
+    }
+
+    /**
+     * Have to be called under the file write lock and [stageLock].
+     */
+    private void ts_wl_sl_flush() throws IOException {
+        int end = buffer.position();
+        boolean success = false;
+        buffer.flip();
+        try {
+            channel.ts_wl_write(buffer, null, 0, 0, stagePos);
+            success = true;
+        } finally {
+            if (success) {
+                releaseBuffer();
+                dirty = false;
+                file.fs.removeDirtyBuffer(this);
+            } else {
+                // keep the staged bytes for the next attempt
+                buffer.limit(size).position(end);
+            }
+        }
+    }
+
+    /**
+     * Have to be called under [stageLock].
+     */
+    private void releaseBuffer() {
+        ByteBuffer bf = buffer;
+        buffer = null;
+        file.fs.ts_releaseBuffer(bf);
+    }
+}
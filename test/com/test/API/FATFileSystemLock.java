@@ -8,6 +8,7 @@ import com.test.*;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 
 public class FATFileSystemLock extends FATBaseTest {
@@ -311,4 +312,81 @@ public class FATFileSystemLock extends FATBaseTest {
         logOk();
     }
 
+    //
+    //  Test of nested transactions under the lock of outer one.
+    //
+    static public void testNestedTransactions(Path path, int clusterSize, int clusterCount,
+                                              int allocatorType) throws IOException {
+        startUp(path);
+        try (final FATFileSystem ffs = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            final FATFile file = ffs.getRoot().createFolder("folder").createFile("file");
+            FATFileChannel channel = file.getChannel(false);
+            ByteBuffer bf = ByteBuffer.allocate(clusterSize);
+
+            FATLock lock = file.getLock(true);
+            try {
+                // growth, parent record update and attribute reads
+                // in nested transactions
+                for (int i = 0; i < 10; ++i) {
+                    bf.clear();
+                    channel.write(bf);
+                    file.getName();
+                    file.setLastModified(i);
+                }
+                if (file.length() != 10*clusterSize)
+                    throw new Error("Wrong length");
+
+                // no nested locks for the other threads
+                final IOException problem[] = new IOException[]{null};
+                Thread reader = new Thread(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            file.length();
+                        } catch (IOException e) {
+                            problem[0] = e;
+                        }
+                    }
+                });
+                reader.start();
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    //ok
+                }
+                if (!(problem[0] instanceof FATFileLockedException))
+                    throw new Error("Lock leaked to other thread");
+            } finally {
+                lock.unlock();
+            }
+
+            // read lock does not allow write in nested transaction
+            lock = file.getLock(false);
+            try {
+                file.setLength(0);
+                throw new Error("Write under read lock");
+            } catch (FATFileLockedException e) {
+                //ok
+            } finally {
+                lock.unlock();
+            }
+
+            // all the transactions are closed
+            if (!ffs.shutdownRequest())
+                throw new Error("Transaction leak");
+        }
+        //checkDirty()
+        FATFileSystem.open(path).close();
+        tearDown(path);
+    }
+    @Test
+    public void testNestedTransactions() throws IOException {
+        int clusterSize = FATFile.RECORD_SIZE; //fixed!
+        int clusterCount = 400; //fixed!
+        for (int allocatorType : allocatorTypes) {
+            logStart(getPath(), clusterSize, clusterCount, allocatorType);
+            testNestedTransactions(getPath(), clusterSize, clusterCount, allocatorType);
+            logOk();
+        }
+    }
+
 }
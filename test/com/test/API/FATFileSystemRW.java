@@ -8,8 +8,19 @@ import com.test.*;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class FATFileSystemRW extends FATBaseTest {
 
@@ -317,4 +328,1138 @@ public class FATFileSystemRW extends FATBaseTest {
             }
         }
     }
+
+    //
+    //  Test of positional read-write on shared channel
+    //
+    static public void testPositionalReadWrite(Path path, int clusterSize, int clusterCount,
+                                               int allocatorType) throws IOException
+    {
+        startUp(path);
+
+        try (final FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            final int fileSize = (int) (ffs.getFreeSize()/2);
+            final FATFile file = ffs.getRoot().createFile("pageFile");
+            try (final FATFileChannel channel = file.getChannel(false)) {
+                // write pages in reverse order: the file grows on the first write
+                final int pageSize = FATFile.RECORD_SIZE/4;
+                final int pageCount = fileSize/pageSize;
+                ByteBuffer page = ByteBuffer.allocateDirect(pageSize);
+                for (int i = pageCount - 1; i >= 0; --i) {
+                    page.clear();
+                    while (page.hasRemaining())
+                        page.put((byte) i);
+                    page.flip();
+                    if (channel.write(page, (long)i*pageSize) != pageSize)
+                        throw new Error("Positional write problem.");
+                }
+                if (channel.position() != 0 || channel.size() != (long)pageCount*pageSize)
+                    throw new Error("Positional write moved the channel.");
+                log(" Positional W:Ok");
+
+                // random page reads from the shared channel
+                Thread[] readers = new Thread[8];
+                final Throwable[] errors = new Throwable[readers.length];
+                for (int k = 0; k < readers.length; ++k) {
+                    final int readerI = k;
+                    readers[k] = new Thread(new Runnable() {
+                        @Override public void run() {
+                            try {
+                                java.util.Random random = new java.util.Random(readerI);
+                                ByteBuffer rpage = ByteBuffer.allocateDirect(pageSize);
+                                for (int j = 0; j < 1000; ++j) {
+                                    int i = random.nextInt(pageCount);
+                                    rpage.clear();
+                                    if (channel.read(rpage, (long)i*pageSize) != pageSize)
+                                        throw new Error("Positional read problem.");
+                                    rpage.flip();
+                                    while (rpage.hasRemaining()) {
+                                        if (rpage.get() != (byte) i)
+                                            throw new Error("Wrong content read.");
+                                    }
+                                }
+                            } catch (Throwable e) {
+                                errors[readerI] = e;
+                            }
+                        }
+                    });
+                    readers[k].start();
+                }
+                for (int k = 0; k < readers.length; ++k) {
+                    try {
+                        readers[k].join();
+                    } catch (InterruptedException e) {
+                        //ok
+                    }
+                    if (errors[k] != null)
+                        throw new IOException("Concurrent read problem:" + errors[k].getMessage(), errors[k]);
+                }
+                if (channel.position() != 0)
+                    throw new Error("Positional read moved the channel.");
+                log(", Positional R:Ok");
+
+                //EOF test
+                page.clear();
+                if (channel.read(page, channel.size()) != -1)
+                    throw new Error("Read more than file?");
+                page.clear();
+                int tail = pageSize/3;
+                if (channel.read(page, channel.size() - tail) != tail || page.limit() != pageSize)
+                    throw new Error("Wrong tail read.");
+                log(", EOF:Ok, common:");
+            }
+        }
+
+        tearDown(path);
+    }
+    @Test
+    public void testPositionalReadWrite() throws IOException {
+        int[] clusterSizes = new int[] {
+                FATFile.RECORD_SIZE + 17, FATFile.RECORD_SIZE*3
+        };
+        int clusterCount = 1021;
+        for (int allocatorType : allocatorTypes) {
+            for(int clusterSize : clusterSizes) {
+                logStart(getPath(), clusterSize, clusterCount, allocatorType);
+                testPositionalReadWrite(getPath(), clusterSize, clusterCount, allocatorType);
+                logOk();
+            }
+        }
+    }
+
+    //
+    //  Test of scatter/gather read-write
+    //
+    static public void testScatterGather(Path path, int clusterSize, int clusterCount,
+                                         int allocatorType) throws IOException
+    {
+        startUp(path);
+
+        try (final FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            FATFolder root = ffs.getRoot();
+            // fragment the storage: the record file is interleaved with the filler
+            FATFile filler = root.createFile("filler");
+            FATFile records = root.createFile("records");
+            final int headerSize = 12;
+            final int bodySize = FATFile.RECORD_SIZE - 5;
+            final int fillerSize = clusterSize/2 + 1;
+            final int recordCount = (int) (ffs.getFreeSize()/(2*(headerSize + bodySize + fillerSize)));
+            ByteBuffer header = ByteBuffer.allocateDirect(headerSize);
+            ByteBuffer body = ByteBuffer.allocateDirect(bodySize);
+            ByteBuffer[] pair = new ByteBuffer[] {header, body};
+            try (FATFileChannel fillerChannel = filler.getChannel(true);
+                 FATFileChannel recordChannel = records.getChannel(true)) {
+                for (int i = 0; i < recordCount; ++i) {
+                    header.clear();
+                    header.putInt(i).putLong(bodySize).flip();
+                    body.clear();
+                    while (body.hasRemaining())
+                        body.put((byte) i);
+                    body.flip();
+                    if (recordChannel.write(pair) != headerSize + bodySize)
+                        throw new Error("Gathering write problem.");
+                    fillerChannel.write(ByteBuffer.wrap(new byte[fillerSize]));
+                }
+            }
+            log(" Gather W:Ok");
+
+            try (FATFileChannel recordChannel = records.getChannel(false)) {
+                ByteBuffer[] triple = new ByteBuffer[] {null, header, body};
+                for (int i = 0; i < recordCount; ++i) {
+                    header.clear();
+                    body.clear();
+                    if (recordChannel.read(triple, 1, 2) != headerSize + bodySize)
+                        throw new Error("Scattering read problem.");
+                    header.flip();
+                    body.flip();
+                    if (header.getInt() != i || header.getLong() != bodySize)
+                        throw new Error("Wrong header read.");
+                    while (body.hasRemaining()) {
+                        if (body.get() != (byte) i)
+                            throw new Error("Wrong body read.");
+                    }
+                }
+                header.clear();
+                if (recordChannel.read(pair) != -1)
+                    throw new Error("Read more than file?");
+            }
+            log(", Scatter R:Ok, common:");
+        }
+
+        tearDown(path);
+    }
+    @Test
+    public void testScatterGather() throws IOException {
+        int[] clusterSizes = new int[] {
+                FATFile.RECORD_SIZE + 17, FATFile.RECORD_SIZE*3
+        };
+        int clusterCount = 1021;
+        for (int allocatorType : allocatorTypes) {
+            for(int clusterSize : clusterSizes) {
+                logStart(getPath(), clusterSize, clusterCount, allocatorType);
+                testScatterGather(getPath(), clusterSize, clusterCount, allocatorType);
+                logOk();
+            }
+        }
+    }
+
+    //
+    //  Test of transfer to/from host channels
+    //
+    static public void testTransfer(Path path, int clusterSize, int clusterCount,
+                                    int allocatorType) throws IOException
+    {
+        startUp(path);
+        Path hostPath = path.resolveSibling(path.getFileName() + ".host");
+        startUp(hostPath);
+
+        try (final FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            FATFolder root = ffs.getRoot();
+            FATFile filler = root.createFile("filler");
+            FATFile data = root.createFile("data");
+            final int fileSize = (int) (ffs.getFreeSize()/5);
+            final ByteBuffer lbf = ByteBuffer.allocateDirect(fileSize);
+            try (FATFileChannel fillerChannel = filler.getChannel(true);
+                 FATFileChannel dataChannel = data.getChannel(true)) {
+                // fragment the storage: the data file is interleaved with the filler
+                byte i = (byte)'0';
+                while (lbf.hasRemaining()) {
+                    lbf.put(i++);
+                    if (lbf.position() % clusterSize == 0) {
+                        lbf.flip();
+                        lbf.position(lbf.limit() - clusterSize);
+                        dataChannel.write(lbf);
+                        lbf.limit(lbf.capacity());
+                        fillerChannel.write(ByteBuffer.wrap(new byte[1]));
+                    }
+                }
+                lbf.flip();
+                lbf.position(lbf.limit() - lbf.limit() % clusterSize);
+                dataChannel.write(lbf);
+            }
+
+            try (FileChannel host = FileChannel.open(hostPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FATFileChannel dataChannel = data.getChannel(false))
+            {
+                long shift = clusterSize/2;
+                long wasTransferred = 0;
+                while (wasTransferred < fileSize - shift) {
+                    wasTransferred += dataChannel.transferTo(shift + wasTransferred, fileSize, host);
+                }
+                if (wasTransferred != fileSize - shift || dataChannel.position() != 0)
+                    throw new Error("Wrong transferTo size.");
+                ByteBuffer hbf = ByteBuffer.allocateDirect(fileSize);
+                host.read(hbf, 0);
+                hbf.flip();
+                lbf.position((int) shift).limit(fileSize);
+                if (!hbf.equals(lbf))
+                    throw new Error("Wrong transferTo content.");
+                log(" TransferTo:Ok");
+
+                FATFile copy = root.createFile("copy");
+                try (FATFileChannel copyChannel = copy.getChannel(false)) {
+                    host.position(0);
+                    // the source has less bytes than requested
+                    if (copyChannel.transferFrom(host, 0, fileSize) != fileSize - shift)
+                        throw new Error("Wrong transferFrom size.");
+                    if (copy.length() != fileSize - shift || copyChannel.position() != 0)
+                        throw new Error("Wrong transferFrom length.");
+                    ByteBuffer cbf = ByteBuffer.allocateDirect(fileSize);
+                    copyChannel.read(cbf);
+                    cbf.flip();
+                    lbf.position((int) shift).limit(fileSize);
+                    if (!cbf.equals(lbf))
+                        throw new Error("Wrong transferFrom content.");
+                    if (copyChannel.transferFrom(host, copy.length() + 1, 1) != 0)
+                        throw new Error("Transfer after EOF.");
+                    // the huge count is limited by the source
+                    long length = copy.length();
+                    host.position(0);
+                    if (copyChannel.transferFrom(host, length, Long.MAX_VALUE) != length)
+                        throw new Error("Wrong huge transferFrom size.");
+                    if (copy.length() != 2*length)
+                        throw new Error("Wrong huge transferFrom length.");
+                    cbf.clear();
+                    copyChannel.read(cbf, length);
+                    cbf.flip();
+                    lbf.position((int) shift).limit(fileSize);
+                    if (!cbf.equals(lbf))
+                        throw new Error("Wrong huge transferFrom content.");
+                    host.position(0);
+                    if (copyChannel.transferFrom(host, 0, 1L << 40) != length
+                            || copy.length() != 2*length)
+                        throw new Error("Wrong huge transferFrom overwrite.");
+                }
+                log(", TransferFrom:Ok, common:");
+            }
+        }
+
+        tearDown(hostPath);
+        tearDown(path);
+    }
+    @Test
+    public void testTransfer() throws IOException {
+        int[] clusterSizes = new int[] {
+                FATFile.RECORD_SIZE + 17, FATFile.RECORD_SIZE*3
+        };
+        int clusterCount = 1021;
+        for (int allocatorType : allocatorTypes) {
+            for(int clusterSize : clusterSizes) {
+                logStart(getPath(), clusterSize, clusterCount, allocatorType);
+                testTransfer(getPath(), clusterSize, clusterCount, allocatorType);
+                logOk();
+            }
+        }
+    }
+
+    //
+    //  Test of asynchronous read-write
+    //
+    static public void testAsyncReadWrite(Path path, int clusterSize, int clusterCount,
+                                          int allocatorType) throws IOException
+    {
+        startUp(path);
+
+        try (final FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            final int pageSize = FATFile.RECORD_SIZE/2;
+            final int pageCount = (int) (ffs.getFreeSize()/(2*pageSize));
+            FATFile file = ffs.getRoot().createFile("asyncFile");
+            FATAsyncFileChannel channel = file.getAsyncChannel(null);
+            try {
+                // shuffled writes
+                ArrayList<Integer> order = new ArrayList<>();
+                for (int i = 0; i < pageCount; ++i)
+                    order.add(i);
+                Collections.shuffle(order, new java.util.Random(pageCount));
+                ArrayList<Future<Integer>> writes = new ArrayList<>();
+                for (int i : order) {
+                    ByteBuffer page = ByteBuffer.allocate(pageSize);
+                    while (page.hasRemaining())
+                        page.put((byte) i);
+                    page.flip();
+                    writes.add(channel.write(page, (long)i*pageSize));
+                }
+                for (Future<Integer> write : writes) {
+                    if (write.get() != pageSize)
+                        throw new Error("Asynchronous write problem.");
+                }
+                if (channel.size() != (long)pageCount*pageSize)
+                    throw new Error("Wrong file size.");
+                log(" Async W:Ok");
+
+                // adjacent and random reads
+                final CountDownLatch done = new CountDownLatch(pageCount);
+                final Throwable[] problem = new Throwable[]{null};
+                for (int i : order) {
+                    ByteBuffer page = ByteBuffer.allocate(pageSize);
+                    channel.read(page, (long)i*pageSize, i, new CompletionHandler<Integer, Integer>() {
+                        @Override public void completed(Integer result, Integer i) {
+                            try {
+                                if (result != pageSize)
+                                    throw new Error("Asynchronous read problem.");
+                                done.countDown();
+                            } catch (Throwable e) {
+                                failed(e, i);
+                            }
+                        }
+                        @Override public void failed(Throwable e, Integer i) {
+                            problem[0] = e;
+                            done.countDown();
+                        }
+                    });
+                }
+                ByteBuffer[] pages = new ByteBuffer[pageCount];
+                ArrayList<Future<Integer>> reads = new ArrayList<>();
+                for (int i = 0; i < pageCount; ++i) {
+                    pages[i] = ByteBuffer.allocate(pageSize);
+                    reads.add(channel.read(pages[i], (long)i*pageSize));
+                }
+                done.await();
+                if (problem[0] != null)
+                    throw new Error("Asynchronous read problem.", problem[0]);
+                for (int i = 0; i < pageCount; ++i) {
+                    if (reads.get(i).get() != pageSize)
+                        throw new Error("Asynchronous read problem.");
+                    pages[i].flip();
+                    while (pages[i].hasRemaining()) {
+                        if (pages[i].get() != (byte) i)
+                            throw new Error("Wrong content read.");
+                    }
+                }
+                if (channel.read(ByteBuffer.allocate(1), channel.size()).get() != -1)
+                    throw new Error("Read more than file?");
+                log(", Async R:Ok");
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            } finally {
+                channel.close();
+            }
+
+            try {
+                channel.read(ByteBuffer.allocate(1), 0).get();
+                throw new Error("Read from closed channel.");
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof AsynchronousCloseException))
+                    throw new Error("Wrong close status.", e);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            log(", Async close:Ok, common:");
+        }
+
+        tearDown(path);
+    }
+    @Test
+    public void testAsyncReadWrite() throws IOException {
+        int[] clusterSizes = new int[] {
+                FATFile.RECORD_SIZE + 17, FATFile.RECORD_SIZE*3
+        };
+        int clusterCount = 1021;
+        for (int allocatorType : allocatorTypes) {
+            for(int clusterSize : clusterSizes) {
+                logStart(getPath(), clusterSize, clusterCount, allocatorType);
+                testAsyncReadWrite(getPath(), clusterSize, clusterCount, allocatorType);
+                logOk();
+            }
+        }
+    }
+
+    //
+    // Test of the garbage on hot read/write/stat path.
+    //
+    static long getAllocatedBytes(com.sun.management.ThreadMXBean bean) {
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static public void testAllocationFree(Path path, int clusterSize, int clusterCount,
+                                          int allocatorType) throws IOException
+    {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            log(" no allocation counter ");
+            return;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!bean.isThreadAllocatedMemorySupported()) {
+            log(" no allocation counter ");
+            return;
+        }
+        bean.setThreadAllocatedMemoryEnabled(true);
+
+        startUp(path);
+        try (final FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            final int opCount = 20000;
+            final int fileSize = clusterSize*4;
+            FATFile file = ffs.getRoot().createFile("hotFile");
+            file.setLength(fileSize);
+            FATFileChannel channel = file.getChannel(false);
+            ByteBuffer heap = ByteBuffer.allocate(64);
+            ByteBuffer direct = ByteBuffer.allocateDirect(64);
+
+            long read = 0, write = 0, stat = 0;
+            // the first passes warm up JIT, pools and caches
+            for (int pass = 0; pass < 5; ++pass) {
+                long start = getAllocatedBytes(bean);
+                for (int i = 0; i < opCount; ++i) {
+                    ByteBuffer bf = ((i & 1) == 0) ? heap : direct;
+                    bf.clear();
+                    channel.read(bf, (i*61) % (fileSize - 64));
+                }
+                channel.position(0);
+                for (int i = 0; i < opCount; ++i) {
+                    heap.clear();
+                    if (channel.read(heap) < 0)
+                        channel.position(0);
+                }
+                read = getAllocatedBytes(bean) - start;
+
+                start = getAllocatedBytes(bean);
+                for (int i = 0; i < opCount; ++i) {
+                    ByteBuffer bf = ((i & 1) == 0) ? heap : direct;
+                    bf.clear();
+                    channel.write(bf, (i*61) % (fileSize - 64));
+                }
+                write = getAllocatedBytes(bean) - start;
+
+                start = getAllocatedBytes(bean);
+                long hash = 0;
+                for (int i = 0; i < opCount; ++i) {
+                    hash += file.length() + file.lastModified() + file.access()
+                          + file.getName().length();
+                }
+                stat = getAllocatedBytes(bean) - start;
+                if (hash == 0)
+                    throw new Error("Wrong attributes!");
+            }
+            log(" bytes/op read:" + (double)read/(2*opCount)
+                    + " write:" + (double)write/opCount
+                    + " stat:" + (double)stat/opCount + " ");
+            // a few objects for the whole pass, not for each operation
+            if (read > 2*opCount || write > opCount || stat > opCount)
+                throw new Error("Garbage on hot path!");
+        }
+        tearDown(path);
+    }
+
+    @Test
+    public void testAllocationFree() throws IOException {
+        int[] clusterSizes = new int[] {
+                FATFile.RECORD_SIZE + 17, 4096
+        };
+        int clusterCount = 64;
+        for (int allocatorType : allocatorTypes) {
+            for(int clusterSize : clusterSizes) {
+                logStart(getPath(), clusterSize, clusterCount, allocatorType);
+                testAllocationFree(getPath(), clusterSize, clusterCount, allocatorType);
+                logOk();
+            }
+        }
+    }
+
+    //
+    //  Test of memory-mapped data section
+    //
+    static public void testMappedData(Path path, int clusterSize, int clusterCount,
+                                      int allocatorType) throws IOException
+    {
+        startUp(path);
+
+        // the segment border does not fit the cluster border
+        final int segmentSize = clusterSize*7 + 3;
+        final int pageSize = FATFile.RECORD_SIZE/4;
+        final int pageCount;
+        try (final FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            ffs.setDataMapping(segmentSize);
+            if (ffs.getDataMapping() != segmentSize)
+                throw new Error("Mapping was not set.");
+            // the filler fragments the page file
+            FATFile filler = ffs.getRoot().createFile("filler");
+            FATFile file = ffs.getRoot().createFile("pageFile");
+            pageCount = (int) (ffs.getFreeSize()/(2*pageSize)) - 1;
+            ByteBuffer page = ByteBuffer.allocateDirect(pageSize);
+            ByteBuffer head = ByteBuffer.allocate(pageSize/3);
+            ByteBuffer[] pair = new ByteBuffer[] {head, page};
+            try (FATFileChannel fillerChannel = filler.getChannel(true);
+                 FATFileChannel channel = file.getChannel(true)) {
+                for (int i = 0; i < pageCount; ++i) {
+                    head.clear();
+                    page.clear();
+                    while (head.hasRemaining())
+                        head.put((byte) i);
+                    page.limit(pageSize - head.capacity());
+                    while (page.hasRemaining())
+                        page.put((byte) i);
+                    head.flip();
+                    page.flip();
+                    if (channel.write(pair) != pageSize)
+                        throw new Error("Mapped gathering write problem.");
+                    if ((i & 7) == 0)
+                        fillerChannel.write(ByteBuffer.wrap(new byte[clusterSize/3]));
+                }
+            }
+            log(" Mapped W:Ok");
+        }
+
+        // host I/O reads the mapped writes
+        try (final FATFileSystem ffs  = FATFileSystem.open(path)) {
+            if (ffs.getDataMapping() != 0)
+                throw new Error("Mapping is not a default mode.");
+            checkPages(ffs, pageSize, pageCount, 1);
+            // mapped reads are the same
+            ffs.setDataMapping(segmentSize);
+            checkPages(ffs, pageSize, pageCount, 3);
+            ffs.setDataMapping(0);
+            checkPages(ffs, pageSize, pageCount, 5);
+        }
+        log(", Mapped R:Ok, common:");
+
+        tearDown(path);
+    }
+
+    private static void checkPages(FATFileSystem ffs, int pageSize, int pageCount,
+                                   int step) throws IOException
+    {
+        FATFile file = ffs.getRoot().getChildFile("pageFile");
+        try (FATFileChannel channel = file.getChannel(false)) {
+            if (channel.size() != (long)pageCount*pageSize)
+                throw new Error("Wrong file size.");
+            ByteBuffer page = ByteBuffer.allocate(pageSize);
+            for (int i = 0; i < pageCount; i += step) {
+                page.clear();
+                if (channel.read(page, (long)i*pageSize) != pageSize)
+                    throw new Error("Positional read problem.");
+                page.flip();
+                while (page.hasRemaining()) {
+                    if (page.get() != (byte) i)
+                        throw new Error("Wrong content read.");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMappedData() throws IOException {
+        int[] clusterSizes = new int[] {
+                FATFile.RECORD_SIZE + 17, FATFile.RECORD_SIZE*3
+        };
+        int clusterCount = 1021;
+        for (int allocatorType : allocatorTypes) {
+            for(int clusterSize : clusterSizes) {
+                logStart(getPath(), clusterSize, clusterCount, allocatorType);
+                testMappedData(getPath(), clusterSize, clusterCount, allocatorType);
+                logOk();
+            }
+        }
+    }
+
+    //
+    //  Test of memory-mapped file view
+    //
+    static public void testFileMap(Path path, int clusterSize, int clusterCount,
+                                   int allocatorType) throws IOException
+    {
+        startUp(path);
+
+        try (final FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            FATFolder root = ffs.getRoot();
+            // the filler fragments the index file
+            FATFile filler = root.createFile("filler");
+            FATFile index = root.createFile("index");
+            final int fileSize = (int) (ffs.getFreeSize()/4);
+            try (FATFileChannel fillerChannel = filler.getChannel(true);
+                 FATFileChannel indexChannel = index.getChannel(true)) {
+                ByteBuffer bf = ByteBuffer.allocate(clusterSize);
+                for (int i = 0; i < fileSize; i += bf.capacity()) {
+                    bf.clear();
+                    for (int k = 0; k < bf.capacity(); ++k)
+                        bf.put((byte) (i + k));
+                    bf.flip();
+                    indexChannel.write(bf);
+                    if ((i/bf.capacity() & 3) == 0)
+                        fillerChannel.write(ByteBuffer.wrap(new byte[clusterSize]));
+                }
+            }
+            final long indexSize = index.length();
+
+            FATLock lock = index.getLock(false);
+            try {
+                long position = clusterSize/2;
+                MappedByteBuffer[] view = index.map(FileChannel.MapMode.READ_ONLY,
+                        position, indexSize - position);
+                if (view.length < 2)
+                    throw new Error("Fragmented file was mapped to single buffer.");
+                long pos = position;
+                for (MappedByteBuffer bf : view) {
+                    if (!bf.isReadOnly())
+                        throw new Error("Read-only mapping can be changed.");
+                    while (bf.hasRemaining()) {
+                        if (bf.get() != (byte) pos)
+                            throw new Error("Wrong content in map.");
+                        ++pos;
+                    }
+                }
+                if (pos != indexSize)
+                    throw new Error("Wrong mapped size.");
+                try {
+                    index.map(FileChannel.MapMode.READ_ONLY, indexSize - 1, 2);
+                    throw new Error("Mapped out of file.");
+                } catch (IOException e) {
+                    //ok
+                }
+                if (index.map(FileChannel.MapMode.READ_ONLY, indexSize, 0).length != 0)
+                    throw new Error("Empty region was mapped.");
+            } finally {
+                lock.unlock();
+            }
+            log(" Map R:Ok");
+
+            lock = index.getLock(true);
+            try {
+                // the region crosses the file tail: the file grows
+                long position = indexSize - clusterSize - 3;
+                int size = 3*clusterSize;
+                MappedByteBuffer[] view = index.map(FileChannel.MapMode.READ_WRITE,
+                        position, size);
+                if (index.length() != position + size)
+                    throw new Error("Read-write mapping did not grow the file.");
+                for (MappedByteBuffer bf : view) {
+                    while (bf.hasRemaining())
+                        bf.put((byte) 0x5A);
+                }
+            } finally {
+                lock.unlock();
+            }
+            try (FATFileChannel indexChannel = index.getChannel(false)) {
+                ByteBuffer bf = ByteBuffer.allocate(3*clusterSize);
+                indexChannel.read(bf, indexSize - clusterSize - 3);
+                bf.flip();
+                while (bf.hasRemaining()) {
+                    if (bf.get() != (byte) 0x5A)
+                        throw new Error("Lost write to map.");
+                }
+            }
+            log(", Map W:Ok, common:");
+        }
+
+        tearDown(path);
+    }
+
+    @Test
+    public void testFileMap() throws IOException {
+        int[] clusterSizes = new int[] {
+                FATFile.RECORD_SIZE + 17, 4096
+        };
+        int clusterCount = 257;
+        for (int allocatorType : allocatorTypes) {
+            for(int clusterSize : clusterSizes) {
+                logStart(getPath(), clusterSize, clusterCount, allocatorType);
+                testFileMap(getPath(), clusterSize, clusterCount, allocatorType);
+                logOk();
+            }
+        }
+    }
+
+    //
+    //  Test of cluster cache
+    //
+    static public void testClusterCache(Path path, int clusterSize, int clusterCount,
+                                        int allocatorType) throws IOException
+    {
+        startUp(path);
+
+        try (final FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            final int cacheClusters = 16;
+            ffs.setClusterCacheSize((long)cacheClusters*clusterSize);
+            if (ffs.getClusterCacheSize() != (long)cacheClusters*clusterSize)
+                throw new Error("Cache was not set.");
+            FATFile file = ffs.getRoot().createFile("hotFile");
+            // more clusters than cache
+            final int fileSize = clusterSize*cacheClusters*3;
+            try (FATFileChannel channel = file.getChannel(false)) {
+                ByteBuffer bf = ByteBuffer.allocate(fileSize);
+                for (int i = 0; i < fileSize; ++i)
+                    bf.put((byte) i);
+                bf.flip();
+                channel.write(bf);
+
+                java.util.Random random = new java.util.Random(clusterSize);
+                ByteBuffer small = ByteBuffer.allocateDirect(64);
+                for (int pass = 0; pass < 3; ++pass) {
+                    for (int j = 0; j < 2000; ++j) {
+                        // the hot set fits the cache
+                        int pos = (pass == 1)
+                                ? random.nextInt(fileSize - small.capacity())
+                                : random.nextInt(cacheClusters/2*clusterSize);
+                        small.clear();
+                        if (channel.read(small, pos) != small.capacity())
+                            throw new Error("Cached read problem.");
+                        small.flip();
+                        while (small.hasRemaining()) {
+                            if (small.get() != (byte) pos++)
+                                throw new Error("Wrong content in cache.");
+                        }
+                    }
+                    // write-through: single and gathering writes
+                    int pos = random.nextInt(fileSize - 3*clusterSize);
+                    bf.clear().limit(2*clusterSize + 5);
+                    for (int i = pos; bf.hasRemaining(); ++i)
+                        bf.put((byte) (i + pass + 1));
+                    bf.flip();
+                    if (pass == 2) {
+                        ByteBuffer head = ByteBuffer.allocate(7);
+                        bf.get(head.array());
+                        channel.position(pos).write(new ByteBuffer[] {head, bf});
+                    } else {
+                        channel.write(bf, pos);
+                    }
+                    for (int i = pos; i < pos + 2*clusterSize + 5; ++i) {
+                        small.clear().limit(1);
+                        channel.read(small, i);
+                        if (small.get(0) != (byte) (i + pass + 1))
+                            throw new Error("Stale cache after write.");
+                    }
+                    // restore the pattern
+                    bf.clear().limit(2*clusterSize + 5);
+                    for (int i = pos; bf.hasRemaining(); ++i)
+                        bf.put((byte) i);
+                    bf.flip();
+                    channel.write(bf, pos);
+                }
+            }
+            log(" hits:" + ffs.getClusterCacheHitCount() + " misses:" + ffs.getClusterCacheMissCount());
+            if (ffs.getClusterCacheHitCount() < ffs.getClusterCacheMissCount())
+                throw new Error("Hot set is not cached.");
+
+            FATLock lock = file.getLock(true);
+            try {
+                file.map(FileChannel.MapMode.READ_WRITE, 0, clusterSize);
+            } finally {
+                lock.unlock();
+            }
+            if (ffs.getClusterCacheSize() != 0)
+                throw new Error("Cache follows read-write map.");
+            try {
+                ffs.setClusterCacheSize(clusterSize);
+                throw new Error("Cache was enabled after read-write map.");
+            } catch (IOException e) {
+                //ok
+            }
+            log(", common:");
+        }
+
+        tearDown(path);
+    }
+
+    @Test
+    public void testClusterCache() throws IOException {
+        int[] clusterSizes = new int[] {
+                FATFile.RECORD_SIZE + 17, 4096
+        };
+        int clusterCount = 257;
+        for (int allocatorType : allocatorTypes) {
+            for(int clusterSize : clusterSizes) {
+                logStart(getPath(), clusterSize, clusterCount, allocatorType);
+                testClusterCache(getPath(), clusterSize, clusterCount, allocatorType);
+                logOk();
+            }
+        }
+    }
+
+    //
+    //  Test of write-behind buffer
+    //
+    static public void testWriteBehind(Path path, int clusterSize, int clusterCount,
+                                       int allocatorType) throws IOException
+    {
+        startUp(path);
+
+        final int recordSize = 100;
+        final int recordCount = 200;
+        try (final FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            FATFolder root = ffs.getRoot();
+            FATFile file = root.createFile("log");
+            FATFile tail = root.createFile("tail");
+            try (FATFileChannel channel = file.getChannel(false, 2*clusterSize);
+                 FATFileChannel appender = tail.getChannel(true, 2*clusterSize))
+            {
+                FATFileChannel reader = file.getChannel(false);
+                ByteBuffer record = ByteBuffer.allocate(recordSize);
+                for (int i = 0; i < recordCount; ++i) {
+                    record.clear();
+                    while (record.hasRemaining())
+                        record.put((byte) i);
+                    record.flip();
+                    if (channel.write(record) != recordSize)
+                        throw new Error("Staged write problem.");
+                    record.flip();
+                    appender.write(record);
+                    if (i%10 != 9)
+                        continue;
+                    // read-your-writes: any access flushes the buffer
+                    if (file.length() != (long)(i + 1)*recordSize)
+                        throw new Error("Staged bytes are not visible.");
+                    record.clear();
+                    if (reader.read(record, (long)i*recordSize) != recordSize
+                            || record.get(recordSize - 1) != (byte) i)
+                        throw new Error("Wrong staged content.");
+                }
+                // the staging never keeps the readers out
+                final FATFile shared = file;
+                final CountDownLatch locked = new CountDownLatch(1);
+                final CountDownLatch release = new CountDownLatch(1);
+                Thread holder = new Thread() {
+                    @Override public void run() {
+                        try {
+                            FATLock lock = shared.getLock(false);
+                            try {
+                                locked.countDown();
+                                release.await();
+                            } finally {
+                                lock.unlock();
+                            }
+                        } catch (IOException | InterruptedException e) {
+                            locked.countDown();
+                        }
+                    }
+                };
+                holder.start();
+                try {
+                    locked.await();
+                    record.clear().limit(10);
+                    try {
+                        channel.write(record);
+                        throw new Error("Staged write under the read lock.");
+                    } catch (FATFileLockedException e) {
+                        // as the unbuffered write
+                    }
+                    record.clear();
+                    if (reader.read(record, 0) != recordSize)
+                        throw new Error("Read problem under the read lock.");
+                    release.countDown();
+                    holder.join();
+                } catch (InterruptedException e) {
+                    throw new Error(e);
+                } finally {
+                    release.countDown();
+                }
+                // positional writes out of order
+                record.clear().limit(10);
+                while (record.hasRemaining())
+                    record.put((byte) -1);
+                for (int i = recordCount - 1; i >= 0; i -= 3) {
+                    record.flip();
+                    channel.write(record, (long)i*recordSize);
+                }
+                // gathering write goes around the buffer
+                record.flip();
+                channel.write(new ByteBuffer[] {record});
+            }
+            if (tail.length() != (long)recordCount*recordSize)
+                throw new Error("Wrong append size.");
+            log(", common:");
+        }
+
+        try (final FATFileSystem ffs  = FATFileSystem.open(path)) {
+            FATFolder root = ffs.getRoot();
+            FATFile file = root.getChildFile("log");
+            FATFile tail = root.getChildFile("tail");
+            if (file.length() != (long)recordCount*recordSize + 10
+                    || tail.length() != (long)recordCount*recordSize)
+                throw new Error("Staged bytes were lost.");
+            ByteBuffer all = ByteBuffer.allocate(recordCount*recordSize);
+            file.getChannel(false).read(all, 0);
+            for (int i = 0; i < recordCount*recordSize; ++i) {
+                int index = i/recordSize;
+                byte expected = ((recordCount - 1 - index)%3 == 0 && i%recordSize < 10)
+                        ? (byte) -1
+                        : (byte) index;
+                if (all.get(i) != expected)
+                    throw new Error("Wrong content after remount.");
+            }
+            all.clear();
+            tail.getChannel(false).read(all, 0);
+            for (int i = 0; i < recordCount*recordSize; ++i) {
+                if (all.get(i) != (byte) (i/recordSize))
+                    throw new Error("Wrong append content after remount.");
+            }
+        }
+
+        tearDown(path);
+    }
+
+    @Test
+    public void testWriteBehind() throws IOException {
+        int[] clusterSizes = new int[] {
+                FATFile.RECORD_SIZE, 4096
+        };
+        int clusterCount = 257;
+        for (int allocatorType : allocatorTypes) {
+            for(int clusterSize : clusterSizes) {
+                logStart(getPath(), clusterSize, clusterCount, allocatorType);
+                testWriteBehind(getPath(), clusterSize, clusterCount, allocatorType);
+                logOk();
+            }
+        }
+    }
+
+    //
+    //  Test of sequential read-ahead
+    //
+    static public void testReadAhead(Path path, int clusterSize, int clusterCount,
+                                     int allocatorType) throws IOException
+    {
+        startUp(path);
+
+        try (final FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            ffs.setReadAheadSize(16*clusterSize);
+            if (ffs.getReadAheadSize() != 16*clusterSize)
+                throw new Error("Read-ahead was not set.");
+            FATFolder root = ffs.getRoot();
+            // the interleaved growth makes the chains fragmented
+            FATFile stream = root.createFile("stream");
+            FATFile other = root.createFile("other");
+            final int clusters = clusterCount/3;
+            final int fileSize = clusters*clusterSize;
+            ByteBuffer cluster = ByteBuffer.allocate(clusterSize);
+            try (FATFileChannel writer = stream.getChannel(false);
+                 FATFileChannel otherWriter = other.getChannel(false))
+            {
+                for (int i = 0; i < clusters; ++i) {
+                    cluster.clear();
+                    for (int j = 0; j < clusterSize; ++j)
+                        cluster.put((byte) (i*clusterSize + j));
+                    cluster.flip();
+                    writer.write(cluster);
+                    cluster.flip();
+                    otherWriter.write(cluster);
+                }
+            }
+
+            ByteBuffer chunk = ByteBuffer.allocate(clusterSize/3 + 1);
+            try (FATFileChannel reader = stream.getChannel(false);
+                 FATFileChannel writer = stream.getChannel(false))
+            {
+                boolean changed = false;
+                for (int pass = 0; pass < 2; ++pass) {
+                    reader.position(0);
+                    long pos = 0;
+                    while (true) {
+                        chunk.clear();
+                        int read = reader.read(chunk);
+                        if (read < 0)
+                            break;
+                        chunk.flip();
+                        while (chunk.hasRemaining()) {
+                            byte expected = (changed && pos == fileSize/2)
+                                    ? (byte) 0x55
+                                    : (byte) pos;
+                            if (chunk.get() != expected)
+                                throw new Error("Wrong read-ahead content at " + pos);
+                            ++pos;
+                        }
+                        if (!changed && pos >= fileSize/3) {
+                            // the prefetched bytes have to follow the change
+                            ByteBuffer change = ByteBuffer.allocate(1);
+                            change.put(0, (byte) 0x55);
+                            writer.write(change, fileSize/2);
+                            changed = true;
+                        }
+                    }
+                    if (pos != fileSize)
+                        throw new Error("Wrong read-ahead size:" + pos);
+                }
+                // random access stops the read-ahead
+                reader.position(fileSize - 10);
+                chunk.clear();
+                if (reader.read(chunk) != 10 || chunk.get(9) != (byte) (fileSize - 1))
+                    throw new Error("Wrong tail read.");
+            }
+            log(", common:");
+        }
+
+        tearDown(path);
+    }
+
+    @Test
+    public void testReadAhead() throws IOException {
+        int[] clusterSizes = new int[] {
+                FATFile.RECORD_SIZE + 17, 4096
+        };
+        int clusterCount = 257;
+        for (int allocatorType : allocatorTypes) {
+            for(int clusterSize : clusterSizes) {
+                logStart(getPath(), clusterSize, clusterCount, allocatorType);
+                testReadAhead(getPath(), clusterSize, clusterCount, allocatorType);
+                logOk();
+            }
+        }
+    }
+
+    //
+    //  Test of group commit and durability policies
+    //
+    static public void testGroupCommit(Path path, int clusterSize, int clusterCount,
+                                       int allocatorType) throws IOException
+    {
+        startUp(path);
+
+        try (final FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            final FATFolder root = ffs.getRoot();
+            ffs.setGroupCommitDelay(2000);
+            if (ffs.getGroupCommitDelay() != 2000)
+                throw new Error("Commit delay was not set.");
+
+            final int forceCount = 10;
+            Thread[] writers = new Thread[16];
+            final Throwable[] errors = new Throwable[writers.length];
+            long requestsBefore = ffs.getSyncRequestCount();
+            long syncsBefore = ffs.getSyncCount();
+            for (int k = 0; k < writers.length; ++k) {
+                final int writerI = k;
+                writers[k] = new Thread(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            FATFile file = root.createFile("writer" + writerI);
+                            FATFileChannel channel = file.getChannel(true);
+                            ByteBuffer record = ByteBuffer.allocate(100);
+                            for (int j = 0; j < forceCount; ++j) {
+                                record.clear();
+                                channel.write(record);
+                                channel.force(false);
+                            }
+                        } catch (Throwable e) {
+                            errors[writerI] = e;
+                        }
+                    }
+                });
+                writers[k].start();
+            }
+            for (int k = 0; k < writers.length; ++k) {
+                try {
+                    writers[k].join();
+                } catch (InterruptedException e) {
+                    //ok
+                }
+                if (errors[k] != null)
+                    throw new IOException("Concurrent force problem:" + errors[k].getMessage(), errors[k]);
+            }
+            long requests = ffs.getSyncRequestCount() - requestsBefore;
+            long syncs = ffs.getSyncCount() - syncsBefore;
+            log(" requests:" + requests + " syncs:" + syncs);
+            if (requests != writers.length*forceCount)
+                throw new Error("Lost force request.");
+            if (syncs >= requests)
+                throw new Error("No group commit.");
+            ffs.setGroupCommitDelay(0);
+
+            FATFile file = root.createFile("policy");
+            try (FATFileChannel channel = file.getChannel(false)) {
+                ByteBuffer record = ByteBuffer.allocate(100);
+                if (channel.getDurability() != FATFileChannel.DURABILITY_ON_FORCE)
+                    throw new Error("Wrong default durability.");
+
+                requestsBefore = ffs.getSyncRequestCount();
+                channel.setDurability(FATFileChannel.DURABILITY_NONE);
+                channel.write(record);
+                channel.force(false);
+                if (ffs.getSyncRequestCount() != requestsBefore)
+                    throw new Error("Sync without durability.");
+
+                record.clear();
+                channel.setDurability(FATFileChannel.DURABILITY_ALWAYS);
+                channel.write(record);
+                if (ffs.getSyncRequestCount() != requestsBefore + 1)
+                    throw new Error("Write was not synced.");
+
+                record.clear();
+                channel.setDurability(FATFileChannel.DURABILITY_PERIODIC);
+                channel.write(record);
+                channel.write(record);
+                if (ffs.getSyncRequestCount() != requestsBefore + 1)
+                    throw new Error("Periodic sync is too early.");
+                try {
+                    Thread.sleep(FATFileSystem.SYNC_PERIOD*3);
+                } catch (InterruptedException e) {
+                    //ok
+                }
+                if (ffs.getSyncRequestCount() != requestsBefore + 2)
+                    throw new Error("No periodic sync.");
+            }
+            log(", common:");
+        }
+
+        tearDown(path);
+    }
+
+    @Test
+    public void testGroupCommit() throws IOException {
+        int clusterSize = 4096;
+        int clusterCount = 257;
+        for (int allocatorType : allocatorTypes) {
+            logStart(getPath(), clusterSize, clusterCount, allocatorType);
+            testGroupCommit(getPath(), clusterSize, clusterCount, allocatorType);
+            logOk();
+        }
+    }
 }
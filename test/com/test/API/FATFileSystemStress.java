@@ -8,14 +8,20 @@ package com.test.API;
 
 import com.test.FATBaseTest;
 import com.test.FATFile;
+import com.test.FATFileChannel;
 import com.test.FATFileSystem;
 import com.test.FATFolder;
+import com.test.FATLock;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class FATFileSystemStress extends FATBaseTest {
     //
@@ -206,4 +212,128 @@ public class FATFileSystemStress extends FATBaseTest {
         logOk();
     }
 
+    //
+    //  Benchmark of many concurrent clients.
+    //
+    //  Each client is a short task: find a shared file, wait for its lock,
+    //  write own record by position and read it back. Java 21+ runs a virtual thread per client,
+    //  older runtimes fall back to a fixed platform pool.
+    //
+    static ExecutorService newClientExecutor(String[] kind) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            kind[0] = "virtual";
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            kind[0] = "pool";
+            return Executors.newFixedThreadPool(100);
+        }
+    }
+
+    static public void testManyClients(Path path, int clusterSize, int clusterCount,
+                                       int allocatorType, final int clientCount) throws IOException {
+        startUp(path);
+
+        final int fileCount = 64;
+        final int recordSize = 64;
+        try (final FATFileSystem ffs = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            final FATFolder root = ffs.getRoot();
+            for (int i = 0; i < fileCount; ++i)
+                root.createFile("shared" + i);
+
+            String[] kind = new String[1];
+            ExecutorService executor = newClientExecutor(kind);
+            final CountDownLatch done = new CountDownLatch(clientCount);
+            final AtomicReference<Throwable> problem = new AtomicReference<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < clientCount; ++i) {
+                final int clientId = i;
+                executor.execute(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            FATFile file = root.getChildFile("shared" + (clientId % fileCount));
+                            long position = (long)(clientId / fileCount) * recordSize;
+                            ByteBuffer record = ByteBuffer.allocate(recordSize);
+                            while (record.hasRemaining())
+                                record.putInt(clientId);
+                            record.flip();
+
+                            ByteBuffer check = ByteBuffer.allocate(recordSize);
+                            FATFileChannel channel = file.getChannel(false);
+                            // blocking wait for the file, the channel calls are [tryLock]
+                            FATLock lock = file.getLock(true);
+                            try {
+                                while (record.hasRemaining())
+                                    channel.write(record, position + record.position());
+                                while (check.hasRemaining()) {
+                                    if (channel.read(check, position + check.position()) <= 0)
+                                        throw new Error("Lost record " + clientId);
+                                }
+                            } finally {
+                                lock.unlock();
+                            }
+                            check.flip();
+                            while (check.hasRemaining()) {
+                                if (check.getInt() != clientId)
+                                    throw new Error("Wrong record " + clientId);
+                            }
+                        } catch (Throwable e) {
+                            problem.compareAndSet(null, e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+
+            try {
+                if (!done.await(5, TimeUnit.MINUTES))
+                    throw new Error("Clients hang");
+            } catch (InterruptedException e) {
+                throw new Error("Interrupted");
+            }
+            long elapsed = System.nanoTime() - start;
+            executor.shutdown();
+            if (problem.get() != null)
+                throw new Error(problem.get());
+
+            log(" " + kind[0] + " clients:" + clientCount
+                    + " time:" + (elapsed / 1000000L) + "ms"
+                    + " ops/s:" + (clientCount * 1000000000L / Math.max(elapsed, 1L)) + " ");
+
+            // all the records are in place
+            ByteBuffer check = ByteBuffer.allocate(recordSize);
+            for (int i = 0; i < clientCount; ++i) {
+                FATFile file = root.getChildFile("shared" + (i % fileCount));
+                check.clear();
+                file.getChannel(false).read(check, (long)(i / fileCount) * recordSize);
+                check.flip();
+                if (check.remaining() != recordSize || check.getInt() != i)
+                    throw new Error("Bad record " + i);
+            }
+
+            try {
+                ffs.waitForShutdown();
+            } catch (InterruptedException ex) {
+                //ok
+            }
+        }
+
+        //checkDirty()
+        FATFileSystem.open(path).close();
+        tearDown(path);
+    }
+    @Test
+    public void testManyClients() throws IOException {
+        for (int allocatorType : allocatorTypes) {
+            int clusterSize = 4096;
+            int clusterCount = 1024;
+            logStart(getPath(), clusterSize, clusterCount, allocatorType);
+            testManyClients(getPath(), clusterSize, clusterCount, allocatorType, 10000);
+            logOk();
+        }
+    }
+
 }
@@ -2,9 +2,17 @@ package com.test;
 
 import org.junit.Test;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Tests for basic File System operations with root access.
@@ -218,6 +226,701 @@ public class FATFileSystemTest  extends FATBaseTest {
     }
 
 
+    //
+    // Test of FS disposer records release.
+    //
+    static public void testDisposerRecords(Path path, int clusterSize, int clusterCount,
+                                           int allocatorType) throws IOException {
+        startUp(path);
+        try (FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            ffs.setObjectCacheLimit(0);
+            FATFolder collector = ffs.getRoot().createFolder("collector");
+            for (int pass = 0; pass < 4; ++pass) {
+                for (int i = 0; i < 1000; ++i) {
+                    collector.createFile("file" + i);
+                }
+                collector.deleteChildren();
+                for (int i = 0; i < 10; ++i)
+                    System.gc();
+            }
+            logLN("Disposer Size:" + ffs.getDisposerSize()
+                    + " File Cache Size:" + ffs.getFileCacheSize());
+            if (ffs.getDisposerSize() >= 1000)
+                throw new Error("Disposer records leak!");
+        }
+        tearDown(path);
+    }
+    @Test
+    public void testDisposerRecords() throws IOException {
+        int clusterSize = FATFile.RECORD_SIZE; //fixed!
+        int clusterCount = 1000*3 + 1; //fixed!
+        int allocatorType = allocatorTypes[0];
+
+        logStart(getPath(), clusterSize, clusterCount, allocatorType);
+        testDisposerRecords(getPath(),
+                clusterSize, clusterCount, allocatorType);
+        logOk();
+    }
+
+
+    //
+    // Test of hot object cache.
+    //
+    static public void testObjectCache(Path path, int clusterSize, int clusterCount,
+                                       int allocatorType) throws IOException {
+        startUp(path);
+        try (FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            final int hotCount = 100;
+            ffs.setObjectCacheLimit(hotCount*2);
+            int[] hashes = new int[hotCount];
+            {
+                FATFolder hot = ffs.getRoot().createFolder("hot");
+                for (int i = 0; i < hotCount; ++i)
+                    hashes[i] = System.identityHashCode(hot.createFile("file" + i));
+            }
+            for (int i = 0; i < 10; ++i)
+                System.gc();
+            if (ffs.getFileCacheSize() < hotCount)
+                throw new Error("Hot objects lost!");
+            {
+                // the same objects, no reload from disk
+                FATFolder hot = ffs.getRoot().getChildFolder("hot");
+                for (int i = 0; i < hotCount; ++i) {
+                    if (hashes[i] != System.identityHashCode(hot.getChildFile("file" + i)))
+                        throw new Error("Identity lost!");
+                }
+            }
+
+            // weak references only
+            ffs.setObjectCacheLimit(0);
+            for (int i = 0; i < 10; ++i) {
+                System.gc();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    //ok
+                }
+            }
+            logLN("File Cache Size:" + ffs.getFileCacheSize()
+                    + " Folder Cache Size:" + ffs.getFolderCacheSize());
+            if (ffs.getFileCacheSize() >= hotCount)
+                throw new Error("Cache limit ignored!");
+        }
+        tearDown(path);
+    }
+    @Test
+    public void testObjectCache() throws IOException {
+        int clusterSize = FATFile.RECORD_SIZE; //fixed!
+        int clusterCount = 1000; //fixed!
+        int allocatorType = allocatorTypes[0];
+
+        logStart(getPath(), clusterSize, clusterCount, allocatorType);
+        testObjectCache(getPath(),
+                clusterSize, clusterCount, allocatorType);
+        logOk();
+    }
+
+
+    //
+    // Test of internal buffer pool.
+    //
+    static public void testBufferPool(Path path, int clusterSize, int clusterCount,
+                                      int allocatorType) throws IOException {
+        startUp(path);
+        try (FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            FATFolder folder = ffs.getRoot().createFolder("folder");
+            FATFile file = folder.createFile("file");
+            long startMiss = ffs.getBufferPoolMissCount();
+            long startHit = ffs.getBufferPoolHitCount();
+            for (int i = 0; i < 1000; ++i)
+                file.setLastModified(i);
+            long miss = ffs.getBufferPoolMissCount() - startMiss;
+            long hit = ffs.getBufferPoolHitCount() - startHit;
+            log(" hit:" + hit + " miss:" + miss + " ");
+            if (hit < 1000 || miss > 1)
+                throw new Error("Buffers are not reused!");
+
+            ByteBuffer bf = ffs.ts_allocateBuffer(FATFile.RECORD_SIZE);
+            if (bf.remaining() != FATFile.RECORD_SIZE || !bf.isDirect())
+                throw new Error("Wrong buffer!");
+            if (FATBufferPool.getAlignmentOffset(bf) > 0)
+                throw new Error("Buffer is not page-aligned!");
+            ffs.ts_releaseBuffer(bf);
+        }
+        tearDown(path);
+    }
+    @Test
+    public void testBufferPool() throws IOException {
+        int clusterSize = FATFile.RECORD_SIZE; //fixed!
+        int clusterCount = 100; //fixed!
+        for (int allocatorType : allocatorTypes) {
+            logStart(getPath(), clusterSize, clusterCount, allocatorType);
+            testBufferPool(getPath(),
+                    clusterSize, clusterCount, allocatorType);
+            logOk();
+        }
+    }
+
+    //
+    // Test of little-endian storage.
+    //
+    static public void testByteOrder(Path path, int clusterSize, int clusterCount,
+                                     int allocatorType) throws IOException {
+        startUp(path);
+        try (FATFileSystem ffs  = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType,
+                FATFileSystem.DATA_ALIGNMENT_NONE, ByteOrder.LITTLE_ENDIAN)) {
+            FATFolder folder = ffs.getRoot().createFolder("folder");
+            FATFile file = folder.createFile("file");
+            file.setLength(clusterSize*3 + 1);
+            file.setLastModified(0x0102030405060708L);
+        }
+        try (FileChannel host = FileChannel.open(path)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            host.read(magic);
+            if (!"sfau".equals(new String(magic.array(), "ASCII")))
+                throw new Error("Storage is not little-endian!");
+        }
+        try (FATFileSystem ffs  = FATFileSystem.open(path)) {
+            if (ffs.getByteOrder() != ByteOrder.LITTLE_ENDIAN)
+                throw new Error("Wrong byte order detection!");
+            FATFile file = ffs.getRoot().getChildFolder("folder").getChildFile("file");
+            if (file.length() != clusterSize*3 + 1
+                    || file.lastModified() != 0x0102030405060708L)
+                throw new Error("Wrong file record!");
+        }
+        tearDown(path);
+    }
+    @Test
+    public void testByteOrder() throws IOException {
+        int clusterSize = FATFile.RECORD_SIZE;
+        int clusterCount = 100;
+        for (int allocatorType : allocatorTypes) {
+            logStart(getPath(), clusterSize, clusterCount, allocatorType);
+            testByteOrder(getPath(),
+                    clusterSize, clusterCount, allocatorType);
+            logOk();
+        }
+    }
+
+
+    //
+    // Test of journal recovery after the process crash.
+    //
+    static public void testJournalRecovery(Path path, int clusterSize, int clusterCount,
+                                           int allocatorType) throws IOException {
+        startUp(path);
+        FATFileSystem crashed = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType,
+                FATFileSystem.DATA_ALIGNMENT_NONE, ByteOrder.BIG_ENDIAN,
+                FATFileSystem.DEFAULT_JOURNAL_SIZE);
+        try {
+            if (crashed.getJournalSize() != FATFileSystem.DEFAULT_JOURNAL_SIZE)
+                throw new Error("Wrong journal size!");
+            FATFolder root = crashed.getRoot();
+            FATFolder folder = root.createFolder("folder");
+            FATFile file = folder.createFile("file");
+            file.setLength(clusterSize*3);
+            root.createFolder("deleted");
+            long freeSize = crashed.getFreeSize();
+
+            // the process "dies" in the open transaction
+            FATLock lock = file.getLock(true);
+            try {
+                folder.createFile("lost").setLength(clusterSize*2);
+                file.setLength(clusterSize*5);
+                root.getChildFolder("deleted").asFile().delete();
+
+                try (FATFileSystem ffs = FATFileSystem.open(path)) {
+                    if (ffs.getFreeSize() != freeSize)
+                        throw new Error("Storage was not recovered!");
+                    FATFolder recovered = ffs.getRoot().getChildFolder("folder");
+                    if (recovered.getChildFile("file").length() != clusterSize*3)
+                        throw new Error("Uncommitted size change survived!");
+                    try {
+                        recovered.getChildFile("lost");
+                        throw new Error("Uncommitted file survived!");
+                    } catch (FileNotFoundException e) {
+                        //ok
+                    }
+                    ffs.getRoot().getChildFolder("deleted");
+                    // writable
+                    recovered.createFile("new");
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            crashed.close();
+        }
+
+        // the clusters freed in the transaction go to other file:
+        // the rollback would return the deleted file with foreign bytes
+        startUp(path);
+        crashed = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType,
+                FATFileSystem.DATA_ALIGNMENT_NONE, ByteOrder.BIG_ENDIAN,
+                FATFileSystem.DEFAULT_JOURNAL_SIZE);
+        try {
+            FATFolder root = crashed.getRoot();
+            FATFile holder = root.createFile("holder");
+            FATFile victim = root.createFile("victim");
+            byte[] content = new byte[clusterSize*3];
+            Arrays.fill(content, (byte) 'v');
+            try (FATFileChannel channel = victim.getChannel(false)) {
+                channel.write(ByteBuffer.wrap(content));
+            }
+
+            FATLock lock = holder.getLock(true);
+            try {
+                victim.delete();
+                byte[] foreign = new byte[content.length];
+                Arrays.fill(foreign, (byte) 'f');
+                try (FATFileChannel channel = root.createFile("reuse").getChannel(false)) {
+                    channel.write(ByteBuffer.wrap(foreign));
+                }
+
+                try (FATFileSystem ffs = FATFileSystem.open(path)) {
+                    FATFile recovered;
+                    try {
+                        recovered = ffs.getRoot().getChildFile("victim");
+                    } catch (IOException e) {
+                        // no rollback: maintenance
+                        recovered = null;
+                    }
+                    if (recovered != null) {
+                        ByteBuffer bf = ByteBuffer.allocate(content.length);
+                        recovered.getChannel(false).read(bf, 0);
+                        if (!Arrays.equals(bf.array(), content))
+                            throw new Error("Rollback over the reused clusters!");
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            crashed.close();
+        }
+        tearDown(path);
+    }
+    @Test
+    public void testJournalRecovery() throws IOException {
+        int clusterSize = FATFile.RECORD_SIZE;
+        int clusterCount = 100;
+        for (int allocatorType : allocatorTypes) {
+            logStart(getPath(), clusterSize, clusterCount, allocatorType);
+            testJournalRecovery(getPath(),
+                    clusterSize, clusterCount, allocatorType);
+            logOk();
+        }
+    }
+
+    //
+    // Test of storage check and repair.
+    //
+    static public void testCheck(Path path, int clusterSize, int clusterCount,
+                                 int allocatorType, int journalSize) throws IOException {
+        startUp(path);
+        int brokenId;
+        long freeSize;
+        try (FATFileSystem ffs = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType,
+                FATFileSystem.DATA_ALIGNMENT_NONE, ByteOrder.BIG_ENDIAN, journalSize)) {
+            FATFolder folder = ffs.getRoot().createFolder("folder");
+            folder.createFolder("child").createFile("file").setLength(clusterSize*2);
+            FATFile broken = folder.createFile("broken");
+            broken.setLength(clusterSize*3);
+            brokenId = broken.ts_getFileId();
+            freeSize = ffs.getFreeSize();
+        }
+
+        FATCheckReport report = FATFileSystem.check(path, false);
+        if (!report.isClean() || report.getFolderCount() != 3 || report.getFileCount() != 2
+                || report.getFreeClusterCount()*clusterSize != freeSize)
+            throw new Error("Wrong report of clean storage: " + report);
+
+        // the crash: the chain is cut, the free cluster is lost, the header is dirty
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ByteBuffer entry = ByteBuffer.allocate(FATSystem.FAT_E_SIZE);
+            entry.putInt(0, FATClusterAllocator.CLUSTER_EOC);
+            channel.write(entry, FATSystem.HEADER_SIZE + brokenId*FATSystem.FAT_E_SIZE);
+            entry.clear();
+            channel.write(entry, FATSystem.HEADER_SIZE + (clusterCount - 1)*FATSystem.FAT_E_SIZE);
+            entry.clear();
+            entry.putInt(0, -1);
+            channel.write(entry, FATSystem.FREE_CLUSTER_COUNT_OFFSET);
+        }
+
+        report = FATFileSystem.check(path, false);
+        if (report.isClean() || report.isRepaired() || report.getDamagedChainCount() != 1
+                || report.getOrphanClusterCount() != 3)
+            throw new Error("Wrong report of damaged storage: " + report);
+
+        report = FATFileSystem.check(path, true);
+        if (!report.isRepaired() || report.getFixedRecordCount() != 1
+                || report.getFreeClusterCount()*clusterSize != freeSize + clusterSize*2)
+            throw new Error("Storage was not repaired: " + report);
+
+        try (FATFileSystem ffs = FATFileSystem.open(path)) {
+            if (ffs.getFreeSize() != freeSize + clusterSize*2)
+                throw new Error("Wrong free size after repair!");
+            FATFile broken = ffs.getRoot().getChildFolder("folder").getChildFile("broken");
+            if (broken.length() != clusterSize)
+                throw new Error("Damaged file was not truncated!");
+            broken.setLength(clusterSize*3);
+            if (ffs.getFreeSize() != freeSize)
+                throw new Error("Wrong allocation after repair!");
+        }
+
+        report = FATFileSystem.check(path, false);
+        if (!report.isClean())
+            throw new Error("Repaired storage is not clean: " + report);
+
+        if (journalSize > 0) {
+            // the damaged region map
+            try (FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer magic = ByteBuffer.allocate(4);
+                channel.write(magic, channel.size() - journalSize
+                        - FATRegionMap.getSize(clusterCount));
+            }
+            report = FATFileSystem.check(path, false);
+            if (report.isClean())
+                throw new Error("Damaged region map was not reported: " + report);
+            report = FATFileSystem.check(path, true);
+            if (!report.isRepaired())
+                throw new Error("Region map was not repaired: " + report);
+            try (FATFileSystem ffs = FATFileSystem.open(path)) {
+                if (ffs.getFreeSize() != freeSize)
+                    throw new Error("Wrong free size after region map repair!");
+            }
+        }
+        tearDown(path);
+    }
+    @Test
+    public void testCheck() throws IOException {
+        int clusterSize = FATFile.RECORD_SIZE;
+        int clusterCount = 100;
+        for (int journalSize : new int[] {0, FATFileSystem.DEFAULT_JOURNAL_SIZE}) {
+            for (int allocatorType : allocatorTypes) {
+                logStart(getPath(), clusterSize, clusterCount, allocatorType);
+                testCheck(getPath(), clusterSize, clusterCount, allocatorType, journalSize);
+                logOk();
+            }
+        }
+    }
+
+    //
+    // Test of online storage growth.
+    //
+    static public void testGrow(Path path, int clusterSize, int clusterCount,
+                                int allocatorType) throws IOException {
+        startUp(path);
+        final int fatCapacity = clusterCount*64;
+        final int records = 100;
+        final byte[] record = new byte[100];
+        try (FATFileSystem ffs = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType,
+                FATFileSystem.DATA_ALIGNMENT_NONE, ByteOrder.BIG_ENDIAN,
+                FATFileSystem.DEFAULT_JOURNAL_SIZE, fatCapacity)) {
+            if (ffs.getMaxSize() != (long)fatCapacity*clusterSize)
+                throw new Error("Wrong max size!");
+            final FATFile log = ffs.getRoot().createFile("log");
+            final Throwable[] failure = new Throwable[1];
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (FATFileChannel channel = log.getChannel(true)) {
+                        for (int i = 0; i < records; ++i) {
+                            Arrays.fill(record, (byte) i);
+                            channel.write(ByteBuffer.wrap(record));
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            writer.start();
+            ffs.grow(clusterCount*16);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                throw new Error("Interrupted!");
+            }
+            if (failure[0] != null)
+                throw new Error("Write failed in growth!", failure[0]);
+            if (ffs.getSize() != (long)clusterCount*16*clusterSize)
+                throw new Error("Wrong size after growth!");
+
+            // the old storage could not hold it
+            ffs.getRoot().createFile("big").setLength((long)clusterCount*8*clusterSize);
+            try {
+                ffs.grow(fatCapacity + 1);
+                throw new Error("Growth over FAT capacity!");
+            } catch (IOException e) {
+                //ok
+            }
+            // the growth waits for the end of transactions
+            FATLock lock = ffs.getRoot().getChildFile("big").getLock(false);
+            try {
+                ffs.grow(fatCapacity);
+                throw new Error("Growth under the file lock!");
+            } catch (IOException e) {
+                //ok
+            } finally {
+                lock.unlock();
+            }
+
+            // the lock holder in other thread keeps the growth out till timeout
+            final FATFile big = ffs.getRoot().getChildFile("big");
+            final CountDownLatch locked = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            Thread holder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        FATLock lock = big.getLock(false);
+                        try {
+                            locked.countDown();
+                            release.await();
+                        } finally {
+                            lock.unlock();
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            holder.start();
+            try {
+                locked.await();
+                try {
+                    ffs.grow(fatCapacity, 100, TimeUnit.MILLISECONDS);
+                    throw new Error("Growth under the lock of other thread!");
+                } catch (IOException e) {
+                    //ok
+                }
+                // the new transactions go after the failed growth
+                ffs.getRoot().createFile("after");
+                release.countDown();
+                holder.join();
+            } catch (InterruptedException e) {
+                throw new Error("Interrupted!");
+            }
+            if (failure[0] != null)
+                throw new Error("Lock holder failed!", failure[0]);
+
+            // the growth goes between the overlapped transactions of busy writers
+            final AtomicBoolean stop = new AtomicBoolean();
+            Thread[] writers = new Thread[4];
+            for (int i = 0; i < writers.length; ++i) {
+                final FATFile busy = ffs.getRoot().createFile("busy" + i);
+                writers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try (FATFileChannel channel = busy.getChannel(false)) {
+                            while (!stop.get()) {
+                                FATLock lock = busy.getLock(true);
+                                try {
+                                    channel.write(ByteBuffer.wrap(record), 0);
+                                    Thread.sleep(1);
+                                } finally {
+                                    lock.unlock();
+                                }
+                            }
+                        } catch (Throwable e) {
+                            failure[0] = e;
+                        }
+                    }
+                });
+                writers[i].start();
+            }
+            try {
+                ffs.grow(fatCapacity);
+            } finally {
+                stop.set(true);
+                try {
+                    for (Thread thread : writers)
+                        thread.join();
+                } catch (InterruptedException e) {
+                    throw new Error("Interrupted!");
+                }
+            }
+            if (failure[0] != null)
+                throw new Error("Write failed in growth!", failure[0]);
+        }
+
+        try (FATFileSystem ffs = FATFileSystem.open(path)) {
+            if (ffs.getSize() != (long)fatCapacity*clusterSize)
+                throw new Error("Growth was lost on reopen!");
+            FATFile log = ffs.getRoot().getChildFile("log");
+            if (log.length() != records*record.length)
+                throw new Error("Wrong length of log!");
+            ByteBuffer bf = ByteBuffer.allocate((int) log.length());
+            try (FATFileChannel channel = log.getChannel(false)) {
+                while (bf.hasRemaining() && channel.read(bf) > 0) {
+                    //read all
+                }
+            }
+            for (int i = 0; i < bf.capacity(); ++i) {
+                if (bf.get(i) != (byte) (i/record.length))
+                    throw new Error("Wrong content of log at " + i);
+            }
+            ffs.getRoot().getChildFile("big").setLength((long)clusterCount*32*clusterSize);
+        }
+        if (!FATFileSystem.check(path, false).isClean())
+            throw new Error("Storage is not clean after growth!");
+
+        try (FATFileSystem ffs = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType,
+                FATFileSystem.DATA_ALIGNMENT_NONE, ByteOrder.BIG_ENDIAN,
+                FATFileSystem.DEFAULT_JOURNAL_SIZE)) {
+            ffs.grow(clusterCount + 1);
+            throw new Error("Growth of fixed storage!");
+        } catch (IOException e) {
+            //ok
+        }
+        tearDown(path);
+    }
+    @Test
+    public void testGrow() throws IOException {
+        int clusterSize = FATFile.RECORD_SIZE;
+        int clusterCount = 100;
+        for (int allocatorType : allocatorTypes) {
+            logStart(getPath(), clusterSize, clusterCount, allocatorType);
+            testGrow(getPath(), clusterSize, clusterCount, allocatorType);
+            logOk();
+        }
+    }
+
+    //
+    // Test of online defragmentation.
+    //
+    static public void testDefragment(Path path, int clusterSize, int clusterCount,
+                                      int allocatorType) throws IOException {
+        startUp(path);
+        final int length = 20;
+        try (FATFileSystem ffs = FATFileSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            FATFolder folder = ffs.getRoot().createFolder("folder");
+            FATFile file = folder.createFile("file");
+            FATFile gap = folder.createFile("gap");
+            // the chains go through each other
+            for (int i = 1; i <= length; ++i) {
+                file.setLength((long)i*clusterSize);
+                gap.setLength((long)i*clusterSize);
+            }
+            byte[] content = new byte[length*clusterSize];
+            for (int i = 0; i < content.length; ++i)
+                content[i] = (byte) (i/clusterSize + i);
+            try (FATFileChannel channel = file.getChannel(false)) {
+                channel.write(ByteBuffer.wrap(content));
+            }
+            gap.delete();
+            long freeSize = ffs.getFreeSize();
+            if (ffs.getRunCount(file) < length/2)
+                throw new Error("File is not fragmented!");
+
+            // the busy file is skipped
+            FATLock lock = file.getLock(false);
+            try {
+                if (ffs.defragment() != 0)
+                    throw new Error("Locked file was moved!");
+            } finally {
+                lock.unlock();
+            }
+
+            int passes = 0;
+            while (ffs.defragment() > 0) {
+                if (++passes > 2)
+                    throw new Error("Defragmentation does not converge!");
+            }
+            // the head stays: the rest could go after a foreign cluster
+            if (ffs.getRunCount(file) > 2 || ffs.getFreeSize() != freeSize)
+                throw new Error("File is not defragmented!");
+            ByteBuffer bf = ByteBuffer.allocate(content.length);
+            try (FATFileChannel channel = file.getChannel(false)) {
+                while (bf.hasRemaining() && channel.read(bf) > 0) {
+                    //read all
+                }
+            }
+            if (!Arrays.equals(bf.array(), content))
+                throw new Error("Content was changed by defragmentation!");
+
+            // the write goes in the pause of the background copy and wins
+            FATFile moving = createFragmented(folder, "moving", length, clusterSize);
+            if (!ffs.startDefragmentation((long)(length - 1)*clusterSize))
+                throw new Error("Defragmentation was not started!");
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                //ok
+            }
+            while (true) {
+                try (FATFileChannel channel = moving.getChannel(false)) {
+                    channel.write(ByteBuffer.wrap(content));
+                    break;
+                } catch (FATFileLockedException e) {
+                    // the copy step
+                }
+            }
+            for (int i = 0; i < 50 && ffs.isDefragmenting(); ++i) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    //ok
+                }
+            }
+            ffs.stopDefragmentation();
+            bf.clear();
+            try (FATFileChannel channel = moving.getChannel(false)) {
+                while (bf.hasRemaining() && channel.read(bf) > 0) {
+                    //read all
+                }
+            }
+            if (!Arrays.equals(bf.array(), content))
+                throw new Error("Write in defragmentation was lost!");
+
+            // the read-only view keeps the clusters
+            FATFile viewed = createFragmented(folder, "viewed", length, clusterSize);
+            int runCount = ffs.getRunCount(viewed);
+            viewed.map(FileChannel.MapMode.READ_ONLY, 0, clusterSize);
+            if (ffs.defragment() != 0 || ffs.getRunCount(viewed) != runCount)
+                throw new Error("Mapped file was moved!");
+
+            // the background pass is stopped by close
+            FATFile other = folder.createFile("other");
+            other.setLength((long)length*clusterSize);
+            if (!ffs.startDefragmentation(clusterSize))
+                throw new Error("Defragmentation was not started!");
+        }
+        if (!FATFileSystem.check(path, false).isClean())
+            throw new Error("Storage is not clean after defragmentation!");
+        tearDown(path);
+    }
+
+    /**
+     * @return the file with the chain that goes through the deleted gap
+     */
+    static FATFile createFragmented(FATFolder folder, String name,
+                                    int length, int clusterSize) throws IOException {
+        FATFile file = folder.createFile(name);
+        FATFile gap = folder.createFile(name + ".gap");
+        for (int i = 1; i <= length; ++i) {
+            file.setLength((long)i*clusterSize);
+            gap.setLength((long)i*clusterSize);
+        }
+        gap.delete();
+        if (file.fs.getRunCount(file) < length/2)
+            throw new Error("File is not fragmented!");
+        return file;
+    }
+
+    @Test
+    public void testDefragment() throws IOException {
+        int clusterSize = FATFile.RECORD_SIZE;
+        int clusterCount = 200;
+        for (int allocatorType : allocatorTypes) {
+            logStart(getPath(), clusterSize, clusterCount, allocatorType);
+            testDefragment(getPath(), clusterSize, clusterCount, allocatorType);
+            logOk();
+        }
+    }
+
+
     //
     // Test of forward space reservation in folder store.
     //
@@ -7,7 +7,11 @@ package com.test;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * FAT storage tests.
@@ -331,4 +335,251 @@ public class FATSystemTest extends  FATBaseTest {
             logOk();
         }
     }
+
+    /**
+     * Test of aligned data section layout.
+     */
+    static public void testDataAlignment(Path path, int clusterSize,
+                                         int clusterCount, int allocatorType) throws IOException {
+        startUp(path);
+
+        final int alignment = FATSystem.DATA_ALIGNMENT_PAGE;
+        try (FATSystem ffs  = FATSystem.create(path, clusterSize, clusterCount,
+                allocatorType, alignment)) {
+            if (ffs.getDataAlignment() != alignment)
+                throw new Error("Wrong data alignment!");
+            int first = ffs.allocateClusters(-1, clusterCount/2);
+            for (int i = 0; i < clusterCount/2; ++i) {
+                long hostPos = ffs.getHostPosition(first, (long)i*clusterSize);
+                if (hostPos % Math.min(clusterSize, alignment) != 0)
+                    throw new Error("Unaligned cluster:" + hostPos);
+            }
+        }
+
+        try (FATSystem ffs  = FATSystem.open(path, true)) {
+            if (ffs.getDataAlignment() != alignment)
+                throw new Error("Data alignment was not stored!");
+            if (ffs.getFreeSize() != (long)clusterSize*(clusterCount - clusterCount/2))
+                throw new Error("Wrong storage free size!");
+            if (ffs.getHostPosition(0, 0) % alignment != 0)
+                throw new Error("Unaligned data section!");
+        }
+        tearDown(path);
+
+        // the cluster that straddles the border
+        try {
+            FATSystem.create(path, clusterSize + 17, clusterCount, allocatorType, alignment).close();
+            throw new Error("Unaligned cluster size was accepted!");
+        } catch (IOException e) {
+            //ok
+        }
+        tearDown(path);
+    }
+
+    @Test
+    public void testDataAlignment() throws IOException {
+        final int[] clusterSizes = new int[] {
+                FATFile.RECORD_SIZE, 4096, 4096*3
+        };
+        int clusterCount = 64;
+        for (int allocatorType : allocatorTypes) {
+            for (int clusterSize : clusterSizes) {
+                logStart(getPath(), clusterSize, clusterCount, allocatorType);
+                testDataAlignment(getPath(), clusterSize, clusterCount, allocatorType);
+                logOk();
+            }
+        }
+    }
+
+    /**
+     * Test of FAT region dirty tracking.
+     */
+    static public void testDirtyRegions(Path path, int clusterSize,
+                                        int clusterCount, int allocatorType) throws IOException {
+        startUp(path);
+
+        final FATSystem crashed = FATSystem.create(path, clusterSize, clusterCount, allocatorType,
+                FATSystem.DATA_ALIGNMENT_NONE, ByteOrder.BIG_ENDIAN, FATSystem.MIN_JOURNAL_SIZE*4);
+        try {
+            if (crashed.getDirtyRegionCount() != 0)
+                throw new Error("Dirty regions after format!");
+
+            // transaction
+            crashed.markDiskStateDirty();
+            int chain = crashed.allocateClusters(-1, 10);
+            if (crashed.getDirtyRegionCount() != 1)
+                throw new Error("Wrong dirty region count!");
+            crashed.force();
+            if (crashed.getDirtyRegionCount() != 1)
+                throw new Error("Region was cleaned in transaction!");
+            crashed.markDiskStateActual();
+            crashed.force();
+            if (crashed.getDirtyRegionCount() != 0)
+                throw new Error("Forced region was not cleaned!");
+
+            // the crash after the transaction, no force
+            crashed.markDiskStateDirty();
+            crashed.freeClusters(chain, true);
+            crashed.markDiskStateActual();
+            try (FATSystem ffs = FATSystem.open(path, true)) {
+                if (ffs.getFreeSize() != (long)clusterSize*clusterCount)
+                    throw new Error("Dirty region was not recounted!");
+                if (ffs.getDirtyRegionCount() != 0)
+                    throw new Error("Validated region was not cleaned!");
+            }
+
+        } finally {
+            crashed.close();
+        }
+
+        final FATSystem damaged = FATSystem.open(path, true);
+        try {
+            // the damaged entry in dirty region
+            damaged.markDiskStateDirty();
+            damaged.allocateClusters(-1, 1);
+            damaged.markDiskStateActual();
+            try (FileChannel host = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                ByteBuffer bf = ByteBuffer.allocate(FATSystem.FAT_E_SIZE);
+                bf.putInt(0x80000000).flip();
+                host.write(bf, FATSystem.HEADER_SIZE + 5*FATSystem.FAT_E_SIZE);
+            }
+            try (FATSystem ffs = FATSystem.open(path, true)) {
+                if (ffs.getFreeSize() >= 0)
+                    throw new Error("Damaged region was not detected!");
+            }
+        } finally {
+            damaged.close();
+        }
+
+        // the [VERSION_JOURNAL] layout has no region map before the journal
+        startUp(path);
+        long journalSize;
+        try (FATSystem ffs = FATSystem.create(path, clusterSize, clusterCount, allocatorType,
+                FATSystem.DATA_ALIGNMENT_NONE, ByteOrder.BIG_ENDIAN, FATSystem.MIN_JOURNAL_SIZE)) {
+            if (ffs.getVersion() != FATSystem.VERSION_REGION_MAP)
+                throw new Error("Wrong version of storage with region map!");
+            ffs.allocateClusters(-1, 10);
+            journalSize = ffs.getJournalSize();
+        }
+        try (FileChannel host = FileChannel.open(path,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long regionMapSize = FATRegionMap.getSize(clusterCount);
+            long journalOffset = host.size() - journalSize;
+            ByteBuffer bf = ByteBuffer.allocate((int) journalSize);
+            host.read(bf, journalOffset);
+            bf.flip();
+            host.write(bf, journalOffset - regionMapSize);
+            host.truncate(host.size() - regionMapSize);
+            bf = ByteBuffer.allocate(4);
+            bf.putInt(FATSystem.VERSION_JOURNAL).flip();
+            host.write(bf, 4);
+        }
+        try (FATSystem ffs = FATSystem.open(path, true)) {
+            if (ffs.getVersion() != FATSystem.VERSION_JOURNAL
+                    || ffs.getJournalSize() != journalSize
+                    || ffs.getFreeSize() != (long)clusterSize*(clusterCount - 10))
+                throw new Error("Journal-only storage was not opened!");
+            ffs.allocateClusters(-1, 1);
+        }
+        tearDown(path);
+    }
+
+    @Test
+    public void testDirtyRegions() throws IOException {
+        // a few regions
+        int clusterCount = 3*(1 << FATRegionMap.REGION_SHIFT) + 5;
+        int clusterSize = FATFile.RECORD_SIZE;
+        for (int allocatorType : allocatorTypes) {
+            logStart(getPath(), clusterSize, clusterCount, allocatorType);
+            testDirtyRegions(getPath(), clusterSize, clusterCount, allocatorType);
+            logOk();
+        }
+    }
+
+    /**
+     * Test of free-space summary: lazy validation and full region skip.
+     */
+    static public void testRegionSummary(Path path, int clusterSize,
+                                         int clusterCount, int allocatorType) throws IOException {
+        startUp(path);
+
+        try (FATSystem ffs = FATSystem.create(path, clusterSize, clusterCount, allocatorType,
+                FATSystem.DATA_ALIGNMENT_NONE, ByteOrder.BIG_ENDIAN, FATSystem.MIN_JOURNAL_SIZE)) {
+            ffs.allocateClusters(-1, clusterCount - 1);
+        }
+
+        try (FATSystem ffs = FATSystem.open(path, true)) {
+            if (ffs.getValidatedRegionCount() != 0)
+                throw new Error("Clean region was validated on open!");
+            int count = 0;
+            while (ffs.validateNextRegion())
+                ++count;
+            if (count != ffs.getRegionCount() || ffs.getFreeSize() != clusterSize)
+                throw new Error("Wrong region validation!");
+
+            // the last free cluster is found behind the full regions
+            int last = ffs.allocateClusters(-1, 1);
+            if (last < 0 || ffs.getFreeSize() != 0)
+                throw new Error("Wrong allocation in full storage!");
+            try {
+                ffs.allocateClusters(-1, 1);
+                throw new Error("Allocation in full storage!");
+            } catch (IOException e) {
+                //ok
+            }
+        }
+        tearDown(path);
+    }
+
+    @Test
+    public void testRegionSummary() throws IOException {
+        int clusterCount = 3*(1 << FATRegionMap.REGION_SHIFT) + 5;
+        int clusterSize = FATFile.RECORD_SIZE;
+        for (int allocatorType : allocatorTypes) {
+            logStart(getPath(), clusterSize, clusterCount, allocatorType);
+            testRegionSummary(getPath(), clusterSize, clusterCount, allocatorType);
+            logOk();
+        }
+    }
+
+    //
+    // Test of bulk FAT format.
+    //
+    static public void testFormat(Path path, int clusterSize,
+                                  int clusterCount, int allocatorType) throws IOException {
+        startUp(path);
+
+        try (FATSystem ffs = FATSystem.create(path, clusterSize, clusterCount, allocatorType)) {
+            for (int i = 0; i < clusterCount; ++i) {
+                int expected = (allocatorType == FATSystem.ALLOCATOR_FAST_FORWARD)
+                    ? FATForwardOnlyClusterAllocator.CLUSTER_UNUSED
+                    : (i == clusterCount - 1)
+                        ? FATFreeListClusterAllocator.CLUSTER_FREE_EOC
+                        : FATClusterAllocator.CLUSTER_FREE | (i + 1);
+                if (ffs.getFatEntry(i) != expected)
+                    throw new Error("Wrong FAT entry #" + i + " after format!");
+            }
+        }
+
+        try (FATSystem ffs = FATSystem.open(path, true)) {
+            if (ffs.getFreeSize() != (long)clusterSize*clusterCount)
+                throw new Error("Wrong free size after format!");
+            int head = ffs.allocateClusters(-1, 3);
+            if (ffs.getFreeSize() != (long)clusterSize*(clusterCount - 3))
+                throw new Error("Wrong allocation after format!");
+            ffs.freeClusters(head, true);
+        }
+        tearDown(path);
+    }
+
+    @Test
+    public void testFormat() throws IOException {
+        int clusterCount = 2*FATSystem.FORMAT_CHUNK_ENTRIES + 3;
+        int clusterSize = FATFile.RECORD_SIZE;
+        for (int allocatorType : allocatorTypes) {
+            logStart(getPath(), clusterSize, clusterCount, allocatorType);
+            testFormat(getPath(), clusterSize, clusterCount, allocatorType);
+            logOk();
+        }
+    }
 }
\ No newline at end of file